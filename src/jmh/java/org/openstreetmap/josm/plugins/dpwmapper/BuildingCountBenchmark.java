@@ -0,0 +1,76 @@
+package org.openstreetmap.josm.plugins.dpwmapper;
+
+import org.openjdk.jmh.annotations.*;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.data.projection.ProjectionRegistry;
+import org.openstreetmap.josm.data.projection.Projections;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of keeping the {@link AutoHideListener} building count current: the full scan it
+ * used to run on every data change, against the incremental update from one added and
+ * removed building way.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BuildingCountBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int buildings;
+
+    private SyntheticBuildings task;
+    private AutoHideListener listener;
+    private Way drawing;
+
+    @Setup
+    public void setUp() {
+        ProjectionRegistry.setProjection(Projections.getProjectionByCode("EPSG:3857"));
+        task = SyntheticBuildings.generate(SyntheticBuildings.Layout.INFORMAL, buildings, 42);
+
+        listener = new AutoHideListener();
+        listener.recountBuildings(task.dataSet);
+        task.dataSet.addDataSetListener(listener);
+
+        // One extra building, added and removed again by the incremental benchmark
+        // (its nodes stay in the data set, as a way can only reference nodes already there)
+        double[] corners = {0, 0, 5, 0, 5, 5, 0, 5};
+        List<Node> nodes = new ArrayList<>();
+        for (int k = 0; k < corners.length; k += 2) {
+            Node node = new Node(new LatLon(-1.3 + corners[k + 1] * SyntheticBuildings.METRE,
+                36.8 + corners[k] * SyntheticBuildings.METRE));
+            task.dataSet.addPrimitive(node);
+            nodes.add(node);
+        }
+        nodes.add(nodes.get(0));
+        drawing = new Way();
+        drawing.setNodes(nodes);
+        drawing.put("building", "yes");
+    }
+
+    @TearDown
+    public void tearDown() {
+        task.dataSet.removeDataSetListener(listener);
+    }
+
+    @Benchmark
+    public int fullRecount() {
+        return AutoHideListener.countBuildings(task.dataSet);
+    }
+
+    @Benchmark
+    public int incrementalAddRemove() {
+        task.dataSet.addPrimitive(drawing);
+        int count = listener.getBuildingCount(task.dataSet);
+        task.dataSet.removePrimitive(drawing);
+        return count;
+    }
+}
@@ -0,0 +1,73 @@
+package org.openstreetmap.josm.plugins.dpwmapper;
+
+import org.openjdk.jmh.annotations.*;
+import org.openstreetmap.josm.data.projection.ProjectionRegistry;
+import org.openstreetmap.josm.data.projection.Projections;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The single-threaded building blocks of a merge, one pass over all new buildings each:
+ * candidate scoring through the grid index, and the greedy {@link MergeEngine#findBestMatch}
+ * over the precomputed scores.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MatchingBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int buildings;
+
+    @Param({"GRID", "INFORMAL"})
+    public SyntheticBuildings.Layout layout;
+
+    private BuildingSnapshot newSnapshot;
+    private BuildingSnapshot oldSnapshot;
+    private SpatialGridIndex oldIndex;
+    private MergeEngine.ScoredCandidates[] scores;
+    private final PolygonKernel.Scratch scratch = new PolygonKernel.Scratch();
+
+    @Setup
+    public void setUp() {
+        ProjectionRegistry.setProjection(Projections.getProjectionByCode("EPSG:3857"));
+        SyntheticBuildings task = SyntheticBuildings.generate(layout, buildings, 42);
+
+        double referenceLatitude = BuildingSnapshot.referenceLatitude(task.newWays, task.oldWays);
+        newSnapshot = BuildingSnapshot.of(task.newWays, referenceLatitude);
+        oldSnapshot = BuildingSnapshot.of(task.oldWays, referenceLatitude);
+        oldIndex = MergeEngine.buildIndex(oldSnapshot);
+        scores = MergeEngine.scoreAll(newSnapshot, oldSnapshot, oldIndex, MergeEngine.MergeProgress.NONE);
+    }
+
+    @Benchmark
+    public int scoreCandidates() {
+        int found = 0;
+        for (int i = 0; i < newSnapshot.size(); i++) {
+            found += MergeEngine.scoreCandidates(newSnapshot, i, oldSnapshot, oldIndex, scratch).oldIds.length;
+        }
+        return found;
+    }
+
+    @Benchmark
+    public int findBestMatch() {
+        boolean[] alreadyMatched = new boolean[oldSnapshot.size()];
+        int matched = 0;
+        for (MergeEngine.ScoredCandidates candidates : scores) {
+            int match = MergeEngine.findBestMatch(candidates, alreadyMatched);
+            if (match >= 0) {
+                alreadyMatched[match] = true;
+                matched++;
+            }
+        }
+        return matched;
+    }
+
+    @Benchmark
+    public SpatialGridIndex buildIndex() {
+        return MergeEngine.buildIndex(oldSnapshot);
+    }
+}
@@ -0,0 +1,59 @@
+package org.openstreetmap.josm.plugins.dpwmapper;
+
+import org.openjdk.jmh.annotations.*;
+import org.openstreetmap.josm.data.projection.ProjectionRegistry;
+import org.openstreetmap.josm.data.projection.Projections;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how {@link MergeEngine#plan} scales with the number of buildings.
+ *
+ * Each run merges the retraces of a {@link SyntheticBuildings} task against its old buildings.
+ * With the grid index the time per building should stay roughly flat as the count grows.
+ * {@link #planCached()} is a rerun on unchanged data, where the old buildings come from the cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MergeScalingBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int buildings;
+
+    @Param({"GRID", "INFORMAL"})
+    public SyntheticBuildings.Layout layout;
+
+    @Param({"GREEDY", "OPTIMAL"})
+    public MergeEngine.AssignmentMode mode;
+
+    private SyntheticBuildings task;
+    private MergeEngine engine;
+    private MergeEngine cachedEngine;
+
+    @Setup
+    public void setUp() {
+        ProjectionRegistry.setProjection(Projections.getProjectionByCode("EPSG:3857"));
+        task = SyntheticBuildings.generate(layout, buildings, 42);
+        engine = new MergeEngine(mode, GeometryTransfer.Mode.REUSE_NODES);
+        cachedEngine = engine.withOldBuildingCache(OldBuildingCache.forDataSet(task.dataSet));
+    }
+
+    @TearDown
+    public void tearDown() {
+        OldBuildingCache.evict(task.dataSet);
+    }
+
+    @Benchmark
+    public int plan() {
+        return engine.plan(task.dataSet).mergedCount;
+    }
+
+    @Benchmark
+    public int planCached() {
+        return cachedEngine.plan(task.dataSet).mergedCount;
+    }
+}
@@ -0,0 +1,152 @@
+package org.openstreetmap.josm.plugins.dpwmapper;
+
+import org.openjdk.jmh.annotations.*;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.BBox;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.data.projection.ProjectionRegistry;
+import org.openstreetmap.josm.data.projection.Projections;
+import org.openstreetmap.josm.tools.Geometry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per building pair of the exact IoU kernel against the previous blended metric
+ * (bbox overlap in degrees plus two node-in-polygon passes through {@code getNodes()}).
+ *
+ * Pairs are an irregular old footprint and a retrace of it with sub-metre jitter,
+ * with {@code vertices} corners each.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class OverlapMetricBenchmark {
+
+    private static final double METRE = 0.000009; // degrees, near the equator
+    private static final int PAIRS = 1000;
+
+    @Param({"4", "8", "16"})
+    public int vertices;
+
+    private List<Way> newWays;
+    private List<Way> oldWays;
+    private BuildingSnapshot newSnapshot;
+    private BuildingSnapshot oldSnapshot;
+    private final PolygonKernel.Scratch scratch = new PolygonKernel.Scratch();
+
+    @Setup
+    public void setUp() {
+        ProjectionRegistry.setProjection(Projections.getProjectionByCode("EPSG:3857"));
+
+        Random random = new Random(7);
+        newWays = new ArrayList<>();
+        oldWays = new ArrayList<>();
+        for (int i = 0; i < PAIRS; i++) {
+            double lat = -1.28 + (i / 40) * 30 * METRE;
+            double lon = 36.82 + (i % 40) * 30 * METRE;
+            double[] radii = new double[vertices];
+            for (int k = 0; k < vertices; k++) {
+                radii[k] = 4 + random.nextDouble() * 4;
+            }
+            oldWays.add(polygon(lat, lon, radii, random, 0));
+            newWays.add(polygon(lat, lon, radii, random, 0.5));
+        }
+
+        double referenceLatitude = BuildingSnapshot.referenceLatitude(newWays, oldWays);
+        newSnapshot = BuildingSnapshot.of(newWays, referenceLatitude);
+        oldSnapshot = BuildingSnapshot.of(oldWays, referenceLatitude);
+    }
+
+    @Benchmark
+    public double exactIoU() {
+        double sum = 0;
+        for (int i = 0; i < PAIRS; i++) {
+            sum += MergeEngine.calculateOverlapPercentage(newSnapshot, i, oldSnapshot, i, scratch);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public double exactIoUWithExtraction() {
+        double referenceLatitude = BuildingSnapshot.referenceLatitude(newWays, oldWays);
+        BuildingSnapshot newPairs = BuildingSnapshot.of(newWays, referenceLatitude);
+        BuildingSnapshot oldPairs = BuildingSnapshot.of(oldWays, referenceLatitude);
+        double sum = 0;
+        for (int i = 0; i < PAIRS; i++) {
+            sum += MergeEngine.calculateOverlapPercentage(newPairs, i, oldPairs, i, scratch);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public double legacyBlended() {
+        double sum = 0;
+        for (int i = 0; i < PAIRS; i++) {
+            sum += legacyOverlap(newWays.get(i), oldWays.get(i));
+        }
+        return sum;
+    }
+
+    /** The metric Merge & Fix used before the IoU kernel, without its console output. */
+    private static double legacyOverlap(Way newWay, Way oldWay) {
+        double newArea = Geometry.computeArea(newWay);
+        double oldArea = Geometry.computeArea(oldWay);
+        if (oldArea == 0 || newArea == 0) {
+            return 0;
+        }
+        BBox a = newWay.getBBox();
+        BBox b = oldWay.getBBox();
+        double minLat = Math.max(a.getBottomRightLat(), b.getBottomRightLat());
+        double maxLat = Math.min(a.getTopLeftLat(), b.getTopLeftLat());
+        double minLon = Math.max(a.getTopLeftLon(), b.getTopLeftLon());
+        double maxLon = Math.min(a.getBottomRightLon(), b.getBottomRightLon());
+        if (minLat >= maxLat || minLon >= maxLon) {
+            return 0;
+        }
+        double reference = (b.getTopLeftLat() - b.getBottomRightLat()) * (b.getBottomRightLon() - b.getTopLeftLon());
+        double bboxOverlap = reference == 0 ? 0 : (maxLat - minLat) * (maxLon - minLon) / reference;
+        if (bboxOverlap < 0.3) {
+            return 0;
+        }
+
+        List<Node> newNodes = newWay.getNodes();
+        List<Node> oldNodes = oldWay.getNodes();
+        int newInside = 0;
+        for (Node node : newNodes) {
+            if (Geometry.nodeInsidePolygon(node, oldNodes)) {
+                newInside++;
+            }
+        }
+        int oldInside = 0;
+        for (Node node : oldNodes) {
+            if (Geometry.nodeInsidePolygon(node, newNodes)) {
+                oldInside++;
+            }
+        }
+        double nodeOverlap = Math.max((double) newInside / newNodes.size(), (double) oldInside / oldNodes.size());
+        return bboxOverlap * 0.3 + nodeOverlap * 0.7;
+    }
+
+    /** Star-shaped footprint with the given corner radii in metres, each corner jittered by up to {@code jitter} metres. */
+    private static Way polygon(double lat, double lon, double[] radii, Random random, double jitter) {
+        List<Node> nodes = new ArrayList<>();
+        for (int k = 0; k < radii.length; k++) {
+            double angle = 2 * Math.PI * k / radii.length;
+            double dx = radii[k] * Math.cos(angle) + (random.nextDouble() - 0.5) * 2 * jitter;
+            double dy = radii[k] * Math.sin(angle) + (random.nextDouble() - 0.5) * 2 * jitter;
+            nodes.add(new Node(new LatLon(lat + dy * METRE, lon + dx * METRE)));
+        }
+        nodes.add(nodes.get(0));
+        Way way = new Way();
+        way.setNodes(nodes);
+        way.put("building", "yes");
+        return way;
+    }
+}
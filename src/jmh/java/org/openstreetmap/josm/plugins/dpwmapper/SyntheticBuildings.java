@@ -0,0 +1,173 @@
+package org.openstreetmap.josm.plugins.dpwmapper;
+
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.Way;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic mapping tasks for the benchmarks: a downloaded layer of old buildings plus
+ * the mapper's retraces of them, all in one {@link DataSet}.
+ *
+ * Retraces follow what field mappers produce on imagery: per-vertex jitter, a constant
+ * imagery offset, and now and then an extra or a missing corner. A few old buildings are
+ * not retraced (demolished) and a few new buildings have no old counterpart (new construction).
+ * Generation is deterministic for a given seed.
+ */
+final class SyntheticBuildings {
+
+    /** Degrees per metre, near the equator */
+    static final double METRE = 0.000009;
+
+    private static final double ORIGIN_LAT = -1.28;
+    private static final double ORIGIN_LON = 36.82;
+    private static final double JITTER_METRES = 0.4;
+    private static final double OFFSET_X_METRES = 0.8;
+    private static final double OFFSET_Y_METRES = -0.6;
+    private static final double EXTRA_VERTEX_RATE = 0.15;
+    private static final double MISSING_VERTEX_RATE = 0.10;
+    private static final double UNTRACED_RATE = 0.05;
+    private static final double NEW_CONSTRUCTION_RATE = 0.05;
+
+    enum Layout {
+        /** Planned estate: 10 m squares on a 15 m pitch */
+        GRID,
+        /** Informal settlement: small rotated, partly L-shaped roofs packed wall to wall */
+        INFORMAL
+    }
+
+    final DataSet dataSet = new DataSet();
+    /** Downloaded buildings, with positive ids */
+    final List<Way> oldWays = new ArrayList<>();
+    /** Mapper drawings, with negative ids */
+    final List<Way> newWays = new ArrayList<>();
+
+    private final Random random;
+    private long nextId = 1;
+
+    private SyntheticBuildings(long seed) {
+        random = new Random(seed);
+    }
+
+    /**
+     * Generates {@code buildings} old buildings in the given layout and their retraces.
+     */
+    static SyntheticBuildings generate(Layout layout, int buildings, long seed) {
+        SyntheticBuildings result = new SyntheticBuildings(seed);
+        double pitch = layout == Layout.GRID ? 15 : 7;
+        int side = (int) Math.ceil(Math.sqrt(buildings));
+        for (int i = 0; i < buildings; i++) {
+            double x = (i % side) * pitch;
+            double y = (i / side) * pitch;
+            double[] ring = layout == Layout.GRID ? result.square(x, y, 10) : result.informalRoof(x, y);
+            result.oldWays.add(result.addOld(ring));
+            if (result.random.nextDouble() >= UNTRACED_RATE) {
+                result.newWays.add(result.addNew(result.retrace(ring)));
+            }
+        }
+        // New construction north of the existing buildings
+        int extra = (int) (buildings * NEW_CONSTRUCTION_RATE);
+        double top = (buildings / side + 2) * pitch;
+        for (int i = 0; i < extra; i++) {
+            double x = (i % side) * pitch;
+            double y = top + (i / side) * pitch;
+            double[] ring = layout == Layout.GRID ? result.square(x, y, 10) : result.informalRoof(x, y);
+            result.newWays.add(result.addNew(result.retrace(ring)));
+        }
+        return result;
+    }
+
+    /** Axis-aligned square with its lower left corner at x, y (metres). */
+    private double[] square(double x, double y, double size) {
+        return new double[] {x, y, x + size, y, x + size, y + size, x, y + size};
+    }
+
+    /** Rotated rectangle or L-shape of 3-6 m in a 7 m cell. */
+    private double[] informalRoof(double x, double y) {
+        double w = 3 + random.nextDouble() * 3;
+        double h = 3 + random.nextDouble() * 3;
+        double[] ring;
+        if (random.nextDouble() < 0.3) {
+            double cx = w * (0.4 + random.nextDouble() * 0.3);
+            double cy = h * (0.4 + random.nextDouble() * 0.3);
+            ring = new double[] {0, 0, w, 0, w, cy, cx, cy, cx, h, 0, h};
+        } else {
+            ring = new double[] {0, 0, w, 0, w, h, 0, h};
+        }
+        double angle = (random.nextDouble() - 0.5) * 0.6;
+        double cos = Math.cos(angle);
+        double sin = Math.sin(angle);
+        for (int k = 0; k < ring.length; k += 2) {
+            double rx = ring[k] - w / 2;
+            double ry = ring[k + 1] - h / 2;
+            ring[k] = x + 3.5 + rx * cos - ry * sin;
+            ring[k + 1] = y + 3.5 + rx * sin + ry * cos;
+        }
+        return ring;
+    }
+
+    /** A mapper's copy of the ring: offset, jittered, sometimes with one corner more or less. */
+    private double[] retrace(double[] ring) {
+        List<double[]> points = new ArrayList<>();
+        for (int k = 0; k < ring.length; k += 2) {
+            points.add(new double[] {
+                ring[k] + OFFSET_X_METRES + random.nextGaussian() * JITTER_METRES,
+                ring[k + 1] + OFFSET_Y_METRES + random.nextGaussian() * JITTER_METRES});
+        }
+        double roll = random.nextDouble();
+        if (roll < EXTRA_VERTEX_RATE) {
+            int at = random.nextInt(points.size());
+            double[] a = points.get(at);
+            double[] b = points.get((at + 1) % points.size());
+            points.add(at + 1, new double[] {
+                (a[0] + b[0]) / 2 + random.nextGaussian() * JITTER_METRES,
+                (a[1] + b[1]) / 2 + random.nextGaussian() * JITTER_METRES});
+        } else if (roll < EXTRA_VERTEX_RATE + MISSING_VERTEX_RATE && points.size() > 4) {
+            points.remove(random.nextInt(points.size()));
+        }
+        double[] result = new double[points.size() * 2];
+        for (int k = 0; k < points.size(); k++) {
+            result[k * 2] = points.get(k)[0];
+            result[k * 2 + 1] = points.get(k)[1];
+        }
+        return result;
+    }
+
+    private Way addOld(double[] ring) {
+        Way way = new Way(nextId++, 1);
+        List<Node> nodes = new ArrayList<>();
+        for (int k = 0; k < ring.length; k += 2) {
+            Node node = new Node(nextId++, 1);
+            node.setCoor(toLatLon(ring[k], ring[k + 1]));
+            dataSet.addPrimitive(node);
+            nodes.add(node);
+        }
+        return addWay(way, nodes);
+    }
+
+    private Way addNew(double[] ring) {
+        List<Node> nodes = new ArrayList<>();
+        for (int k = 0; k < ring.length; k += 2) {
+            Node node = new Node(toLatLon(ring[k], ring[k + 1]));
+            dataSet.addPrimitive(node);
+            nodes.add(node);
+        }
+        return addWay(new Way(), nodes);
+    }
+
+    private Way addWay(Way way, List<Node> nodes) {
+        nodes.add(nodes.get(0));
+        way.setNodes(nodes);
+        way.put("building", "yes");
+        dataSet.addPrimitive(way);
+        return way;
+    }
+
+    private static LatLon toLatLon(double x, double y) {
+        return new LatLon(ORIGIN_LAT + y * METRE, ORIGIN_LON + x * METRE);
+    }
+}
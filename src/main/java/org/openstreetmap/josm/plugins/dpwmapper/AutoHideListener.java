@@ -1,6 +1,8 @@
 package org.openstreetmap.josm.plugins.dpwmapper;
 
 import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Way;
 import org.openstreetmap.josm.data.osm.event.*;
 import org.openstreetmap.josm.gui.MainApplication;
 import org.openstreetmap.josm.gui.Notification;
@@ -10,10 +12,19 @@ import org.openstreetmap.josm.gui.layer.LayerManager.LayerOrderChangeEvent;
 import org.openstreetmap.josm.gui.layer.LayerManager.LayerRemoveEvent;
 import org.openstreetmap.josm.gui.layer.OsmDataLayer;
 import org.openstreetmap.josm.gui.util.GuiHelper;
+import org.openstreetmap.josm.spi.preferences.Config;
 
 import javax.swing.*;
 import java.awt.Frame;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Listener that automatically applies a filter to hide existing OSM data
@@ -21,72 +32,214 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 public class AutoHideListener implements LayerChangeListener, DataSetListener {
     
-    private static final String FILTER_TEXT = "-new";  // Hide everything that is NOT new
+    private static final int DEFAULT_QUIET_PERIOD_MS = 750;
     private final AtomicBoolean isProcessing = new AtomicBoolean(false);
     
+    // Non-deleted building ways per data set, maintained from dataset events
+    private final Map<DataSet, AtomicInteger> buildingCounts = new ConcurrentHashMap<>();
+    
+    // One pending preparation per layer; restarted by every event of a burst (EDT only)
+    private final Map<OsmDataLayer, Timer> pendingPreparations = new HashMap<>();
+    
+    // Data sets the plugin is editing itself, with the nesting depth of the edits
+    private static final Map<DataSet, Integer> OWN_UPDATES = new ConcurrentHashMap<>();
+    
+    /**
+     * Runs an edit the plugin makes itself as one data set update. Listeners get a single
+     * batched event when it ends, and that event does not schedule workspace preparation:
+     * a merge or its undo leaves the clean slate filter in place.
+     */
+    static void runOwnUpdate(DataSet dataSet, Runnable edit) {
+        OWN_UPDATES.merge(dataSet, 1, Integer::sum);
+        try {
+            dataSet.beginUpdate();
+            try {
+                edit.run();
+            } finally {
+                // The batched event is fired here, while the update still counts as our own
+                dataSet.endUpdate();
+            }
+        } finally {
+            OWN_UPDATES.computeIfPresent(dataSet, (ds, depth) -> depth > 1 ? depth - 1 : null);
+        }
+    }
+    
     @Override
     public void layerAdded(LayerAddEvent e) {
-        System.out.println("[DPWMapper] ===== LAYER ADDED EVENT =====");
-        System.out.println("[DPWMapper] Layer type: " + e.getAddedLayer().getClass().getName());
+        DPWLog.trace(() -> "Layer added: " + e.getAddedLayer().getClass().getName());
         
         if (e.getAddedLayer() instanceof OsmDataLayer) {
             OsmDataLayer dataLayer = (OsmDataLayer) e.getAddedLayer();
             
-            System.out.println("[DPWMapper] OsmDataLayer detected: " + dataLayer.getName());
+            // Count once; from here on the count follows the dataset events
+            DataSet dataSet = dataLayer.getDataSet();
+            int immediateCount = recountBuildings(dataSet);
             
             // Add dataset listener to detect when data is downloaded
-            dataLayer.getDataSet().addDataSetListener(this);
-            System.out.println("[DPWMapper] DataSet listener registered");
-            
-            // IMMEDIATELY check if data already exists
-            long immediateCount = dataLayer.getDataSet().getWays().stream()
-                .filter(w -> !w.isDeleted() && w.hasTag("building"))
-                .count();
-            System.out.println("[DPWMapper] Immediate building count: " + immediateCount);
+            dataSet.addDataSetListener(this);
+            LiveMatchTracker.startIfEnabled(dataSet);
+            DPWLog.debug(() -> "Listening to " + dataLayer.getName() + ", " + immediateCount + " buildings");
             
             if (immediateCount > 0) {
-                System.out.println("[DPWMapper] Data already present, triggering preparation immediately");
-                prepareWorkspace(dataLayer, (int) immediateCount);
+                schedulePreparation(dataLayer);
             }
-        } else {
-            System.out.println("[DPWMapper] Not an OsmDataLayer, ignoring");
         }
     }
     
     @Override
     public void dataChanged(DataChangedEvent event) {
-        System.out.println("[DPWMapper] ===== DATA CHANGED EVENT =====");
-        System.out.println("[DPWMapper] Event source: " + event.getDataset());
+        // Batched updates arrive here instead of the individual callbacks. Fold them
+        // to keep the count current; JOSM drops the list for very large batches.
+        if (event.getEvents() != null) {
+            adjustBuildingCount(event.getDataset(), batchDelta(event.getDataset(), event.getEvents()));
+        } else if (buildingCounts.containsKey(event.getDataset())) {
+            recountBuildings(event.getDataset());
+        }
         
-        OsmDataLayer layer = MainApplication.getLayerManager().getEditLayer();
+        if (OWN_UPDATES.containsKey(event.getDataset())) {
+            DPWLog.trace(() -> "Own edit, workspace preparation not scheduled");
+            return;
+        }
+        
+        OsmDataLayer layer = layerOf(event.getDataset());
         if (layer == null) {
-            System.out.println("[DPWMapper] No active edit layer");
             return;
         }
         
-        if (isProcessing.get()) {
-            System.out.println("[DPWMapper] Already processing, skipping...");
+        schedulePreparation(layer);
+    }
+    
+    /**
+     * Returns the change in building count of a batch. The events of a batch are only seen once
+     * it has ended, when the primitives already have their final state, so replaying them one by
+     * one counts a way twice if it has several events. Instead each way is compared once: its
+     * state before the batch comes from its first event, its state after from the way itself.
+     */
+    static int batchDelta(DataSet dataSet, List<AbstractDatasetChangedEvent> events) {
+        Map<OsmPrimitive, Boolean> countedBefore = new IdentityHashMap<>();
+        Set<OsmPrimitive> firstRemoved = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (AbstractDatasetChangedEvent e : events) {
+            if (e instanceof PrimitivesAddedEvent) {
+                for (OsmPrimitive p : ((PrimitivesAddedEvent) e).getPrimitives()) {
+                    if (p instanceof Way) {
+                        countedBefore.putIfAbsent(p, false);
+                    }
+                }
+            } else if (e instanceof PrimitivesRemovedEvent) {
+                for (OsmPrimitive p : ((PrimitivesRemovedEvent) e).getPrimitives()) {
+                    if (!(p instanceof Way)) {
+                        continue;
+                    }
+                    if (!countedBefore.containsKey(p)) {
+                        // As in primitivesRemoved: a deleted way that has left the data set was
+                        // already uncounted, unless it is removed again below in this batch
+                        countedBefore.put(p, p.hasTag("building") && !(p.isDeleted() && p.getDataSet() == null));
+                        firstRemoved.add(p);
+                    } else if (firstRemoved.contains(p)) {
+                        // Deleted and then purged in the same batch: the deletion uncounted it
+                        countedBefore.put(p, p.hasTag("building"));
+                    }
+                }
+            } else if (e instanceof TagsChangedEvent) {
+                TagsChangedEvent tagsChanged = (TagsChangedEvent) e;
+                if (tagsChanged.getPrimitive() instanceof Way) {
+                    countedBefore.putIfAbsent(tagsChanged.getPrimitive(), tagsChanged.getOriginalKeys().containsKey("building"));
+                }
+            }
+        }
+        int delta = 0;
+        for (Map.Entry<OsmPrimitive, Boolean> entry : countedBefore.entrySet()) {
+            OsmPrimitive p = entry.getKey();
+            boolean countedAfter = !p.isDeleted() && p.getDataSet() == dataSet && p.hasTag("building");
+            delta += (countedAfter ? 1 : 0) - (entry.getValue() ? 1 : 0);
+        }
+        return delta;
+    }
+    
+    /**
+     * Returns the layer that owns the data set, or null if it has none (any more). The data set
+     * of a batched change need not be the edit layer's, e.g. a download into a background layer.
+     */
+    private static OsmDataLayer layerOf(DataSet dataSet) {
+        for (OsmDataLayer layer : MainApplication.getLayerManager().getLayersOfType(OsmDataLayer.class)) {
+            if (layer.getDataSet() == dataSet) {
+                return layer;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * (Re)starts the quiet-period timer of the layer. A download fires a burst of
+     * dataset events; only once the layer has been quiet for
+     * {@code dpwmapper.prepare.quiet-period-ms} is the workspace prepared, once.
+     */
+    private void schedulePreparation(OsmDataLayer layer) {
+        GuiHelper.runInEDT(() -> {
+            Timer timer = pendingPreparations.get(layer);
+            if (timer == null) {
+                timer = new Timer(0, e -> preparePending(layer));
+                timer.setRepeats(false);
+                pendingPreparations.put(layer, timer);
+            }
+            int quietPeriod = Math.max(0, Config.getPref().getInt("dpwmapper.prepare.quiet-period-ms", DEFAULT_QUIET_PERIOD_MS));
+            timer.setInitialDelay(quietPeriod);
+            timer.restart();
+        });
+    }
+    
+    /**
+     * Runs the coalesced preparation of a layer after its quiet period (EDT).
+     */
+    private void preparePending(OsmDataLayer layer) {
+        if (!MainApplication.getLayerManager().containsLayer(layer)) {
+            pendingPreparations.remove(layer);
             return;
         }
         
-        System.out.println("[DPWMapper] Active layer: " + layer.getName());
+        if (isProcessing.get()) {
+            // Try again once the running preparation is done rather than dropping this burst
+            DPWLog.debug(() -> "Already processing, postponing");
+            schedulePreparation(layer);
+            return;
+        }
         
-        // Count ALL ways first
-        long totalWays = layer.getDataSet().getWays().size();
-        System.out.println("[DPWMapper] Total ways in dataset: " + totalWays);
+        int buildingCount = getBuildingCount(layer.getDataSet());
+        DPWLog.debug(() -> "Buildings found: " + buildingCount);
         
-        // Count buildings
-        long buildingCount = layer.getDataSet().getWays().stream()
+        if (buildingCount > 0) {
+            prepareWorkspace(layer, buildingCount);
+        }
+    }
+    
+    /**
+     * Returns the current number of non-deleted building ways in the data set.
+     * Data sets not seen in {@link #layerAdded} are counted on the spot.
+     */
+    int getBuildingCount(DataSet dataSet) {
+        AtomicInteger count = buildingCounts.get(dataSet);
+        return count != null ? count.get() : countBuildings(dataSet);
+    }
+    
+    /**
+     * Counts the building ways with a full scan and resets the tracked count.
+     */
+    int recountBuildings(DataSet dataSet) {
+        int count = countBuildings(dataSet);
+        buildingCounts.computeIfAbsent(dataSet, ds -> new AtomicInteger()).set(count);
+        return count;
+    }
+    
+    static int countBuildings(DataSet dataSet) {
+        return (int) dataSet.getWays().stream()
             .filter(w -> !w.isDeleted() && w.hasTag("building"))
             .count();
-        
-        System.out.println("[DPWMapper] Buildings found: " + buildingCount);
-        
-        if (buildingCount > 0) {
-            System.out.println("[DPWMapper] Triggering workspace preparation");
-            prepareWorkspace(layer, (int) buildingCount);
-        } else {
-            System.out.println("[DPWMapper] No buildings found, not applying filter");
+    }
+    
+    private void adjustBuildingCount(DataSet dataSet, int delta) {
+        AtomicInteger count = buildingCounts.get(dataSet);
+        if (count != null && delta != 0) {
+            count.addAndGet(delta);
         }
     }
     
@@ -95,11 +248,11 @@ public class AutoHideListener implements LayerChangeListener, DataSetListener {
      */
     private void prepareWorkspace(OsmDataLayer layer, int buildingCount) {
         if (!isProcessing.compareAndSet(false, true)) {
-            System.out.println("[DPWMapper] Already processing workspace preparation");
+            DPWLog.debug(() -> "Already processing workspace preparation");
             return;
         }
         
-        System.out.println("[DPWMapper] Starting workspace preparation...");
+        DPWLog.debug(() -> "Starting workspace preparation");
         
         GuiHelper.runInEDT(() -> {
             // Create progress dialog
@@ -140,7 +293,6 @@ public class AutoHideListener implements LayerChangeListener, DataSetListener {
             SwingWorker<Boolean, Void> worker = new SwingWorker<Boolean, Void>() {
                 @Override
                 protected Boolean doInBackground() throws Exception {
-                    Thread.sleep(500); // Brief delay to show the dialog
                     return applyCleanSlateFilter(layer);
                 }
                 
@@ -150,7 +302,7 @@ public class AutoHideListener implements LayerChangeListener, DataSetListener {
                     
                     try {
                         if (get()) {
-                            System.out.println("[DPWMapper] Workspace preparation complete");
+                            DPWLog.info("Workspace prepared, " + buildingCount + " buildings");
                             
                             new Notification("✓ Clean Slate Ready!\n\n" +
                                     String.format("Loaded %d buildings - existing data hidden.\n", buildingCount) +
@@ -160,7 +312,7 @@ public class AutoHideListener implements LayerChangeListener, DataSetListener {
                                 .setDuration(Notification.TIME_LONG)
                                 .show();
                         } else {
-                            System.out.println("[DPWMapper] Filter application failed");
+                            DPWLog.warn("Clean slate filter could not be applied");
                             
                             new Notification("⚠ Could not activate Clean Slate filter.\n" +
                                     "You may need to manually hide existing data.")
@@ -169,7 +321,7 @@ public class AutoHideListener implements LayerChangeListener, DataSetListener {
                                 .show();
                         }
                     } catch (Exception ex) {
-                        ex.printStackTrace();
+                        DPWLog.error("Workspace preparation failed", ex);
                         new Notification("Error preparing workspace: " + ex.getMessage())
                             .setIcon(JOptionPane.ERROR_MESSAGE)
                             .show();
@@ -188,65 +340,10 @@ public class AutoHideListener implements LayerChangeListener, DataSetListener {
      * Returns true if successful, false otherwise.
      */
     private boolean applyCleanSlateFilter(OsmDataLayer layer) {
-        System.out.println("[DPWMapper] Starting applyCleanSlateFilter...");
-        
         try {
-            if (MainApplication.getMap() == null) {
-                System.out.println("[DPWMapper] ERROR: MainApplication.getMap() is null");
-                return false;
-            }
-            
-            if (MainApplication.getMap().filterDialog == null) {
-                System.out.println("[DPWMapper] ERROR: filterDialog is null");
-                return false;
-            }
-            
-            org.openstreetmap.josm.gui.dialogs.FilterTableModel filterModel = 
-                MainApplication.getMap().filterDialog.getFilterModel();
-            System.out.println("[DPWMapper] Got FilterTableModel: " + filterModel);
-            
-            // Check if filter already exists
-            boolean filterExists = false;
-            for (int i = 0; i < filterModel.getRowCount(); i++) {
-                org.openstreetmap.josm.data.osm.Filter existingFilter = filterModel.getValue(i);
-                if (existingFilter != null && FILTER_TEXT.equals(existingFilter.text)) {
-                    System.out.println("[DPWMapper] Filter already exists at index " + i);
-                    filterExists = true;
-                    existingFilter.enable = true;
-                    existingFilter.hiding = true;
-                    break;
-                }
-            }
-            
-            if (!filterExists) {
-                System.out.println("[DPWMapper] Creating new filter with text: " + FILTER_TEXT);
-                
-                // Create new filter
-                org.openstreetmap.josm.data.osm.Filter filter = 
-                    new org.openstreetmap.josm.data.osm.Filter();
-                filter.text = FILTER_TEXT;
-                filter.hiding = true;
-                filter.enable = true;
-                filter.inverted = false;
-                
-                System.out.println("[DPWMapper] Filter created: text=" + filter.text + 
-                    ", hiding=" + filter.hiding + ", enable=" + filter.enable);
-                
-                // Add to filter model
-                filterModel.addFilter(filter);
-                System.out.println("[DPWMapper] Filter added to model");
-            }
-            
-            // Execute the filters to apply them
-            System.out.println("[DPWMapper] Executing filters...");
-            filterModel.executeFilters();
-            System.out.println("[DPWMapper] Filters executed successfully");
-            
-            return true;
-            
+            return CleanSlateFilter.apply();
         } catch (Exception ex) {
-            System.out.println("[DPWMapper] ERROR in applyCleanSlateFilter: " + ex.getMessage());
-            ex.printStackTrace();
+            DPWLog.error("Could not apply clean slate filter", ex);
             return false;
         }
     }
@@ -256,7 +353,16 @@ public class AutoHideListener implements LayerChangeListener, DataSetListener {
         if (e.getRemovedLayer() instanceof OsmDataLayer) {
             OsmDataLayer dataLayer = (OsmDataLayer) e.getRemovedLayer();
             dataLayer.getDataSet().removeDataSetListener(this);
-            System.out.println("[DPWMapper] Layer removed: " + dataLayer.getName());
+            buildingCounts.remove(dataLayer.getDataSet());
+            LiveMatchTracker.stop(dataLayer.getDataSet());
+            OldBuildingCache.evict(dataLayer.getDataSet());
+            GuiHelper.runInEDT(() -> {
+                Timer timer = pendingPreparations.remove(dataLayer);
+                if (timer != null) {
+                    timer.stop();
+                }
+            });
+            DPWLog.debug(() -> "Layer removed: " + dataLayer.getName());
         }
     }
     
@@ -265,16 +371,46 @@ public class AutoHideListener implements LayerChangeListener, DataSetListener {
         // Not needed for this plugin
     }
     
-    // Unused DataSetListener methods
+    // Added covers downloads, new drawings and undeleted ways
     @Override
-    public void primitivesAdded(PrimitivesAddedEvent event) {}
+    public void primitivesAdded(PrimitivesAddedEvent event) {
+        int delta = 0;
+        for (OsmPrimitive p : event.getPrimitives()) {
+            if (p instanceof Way && !p.isDeleted() && p.hasTag("building")) {
+                delta++;
+            }
+        }
+        adjustBuildingCount(event.getDataset(), delta);
+    }
     
+    // Removed covers deleted and purged ways. A deletion fires this with the way already flagged
+    // but still in the data set; a deleted way that has left the data set (cleanup after upload,
+    // purge) was uncounted by its deletion event and must not be uncounted again.
     @Override
-    public void primitivesRemoved(PrimitivesRemovedEvent event) {}
+    public void primitivesRemoved(PrimitivesRemovedEvent event) {
+        int delta = 0;
+        for (OsmPrimitive p : event.getPrimitives()) {
+            if (p instanceof Way && p.hasTag("building") && !(p.isDeleted() && p.getDataSet() == null)) {
+                delta--;
+            }
+        }
+        adjustBuildingCount(event.getDataset(), delta);
+    }
     
     @Override
-    public void tagsChanged(TagsChangedEvent event) {}
+    public void tagsChanged(TagsChangedEvent event) {
+        OsmPrimitive p = event.getPrimitive();
+        if (!(p instanceof Way) || p.isDeleted()) {
+            return;
+        }
+        boolean wasBuilding = event.getOriginalKeys().containsKey("building");
+        boolean isBuilding = p.hasTag("building");
+        if (wasBuilding != isBuilding) {
+            adjustBuildingCount(event.getDataset(), isBuilding ? 1 : -1);
+        }
+    }
     
+    // Unused DataSetListener methods
     @Override
     public void wayNodesChanged(WayNodesChangedEvent event) {}
     
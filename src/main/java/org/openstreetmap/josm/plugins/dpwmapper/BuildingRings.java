@@ -0,0 +1,136 @@
+package org.openstreetmap.josm.plugins.dpwmapper;
+
+import org.openstreetmap.josm.data.osm.MultipolygonBuilder;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Relation;
+import org.openstreetmap.josm.data.osm.RelationMember;
+import org.openstreetmap.josm.data.osm.Way;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outer and inner rings of a building. A closed way is one outer ring; the member ways of a
+ * multipolygon relation are joined into rings with JOSM's {@link MultipolygonBuilder}.
+ *
+ * Joining is the expensive part of relation buildings, so the merge does it once per relation
+ * when the snapshot is extracted. The old-building cache keeps the projected rings and only
+ * joins a relation again after one of its members changed.
+ */
+final class BuildingRings {
+
+    private final List<List<Node>> nodes = new ArrayList<>();
+    private final List<Boolean> inner = new ArrayList<>();
+    private final List<Way> ways = new ArrayList<>();
+
+    private BuildingRings() {
+    }
+
+    /**
+     * Returns true if the relation is a building modelled as a multipolygon.
+     */
+    static boolean isBuildingRelation(Relation relation) {
+        return relation.isMultipolygon() && relation.hasTag("building");
+    }
+
+    /**
+     * Assembles the rings of a building way or relation, or returns null if they cannot be
+     * assembled: members not downloaded, no outer ring, or member ways that do not close.
+     */
+    static BuildingRings of(OsmPrimitive building) {
+        if (building instanceof Way) {
+            Way way = (Way) building;
+            BuildingRings rings = new BuildingRings();
+            List<Node> ring = way.getNodes();
+            rings.add(ring.subList(0, Math.max(0, ring.size() - 1)), false, way);
+            return rings;
+        }
+        return building instanceof Relation ? of((Relation) building) : null;
+    }
+
+    private static BuildingRings of(Relation relation) {
+        List<Way> outer = new ArrayList<>();
+        List<Way> innerWays = new ArrayList<>();
+        for (RelationMember member : relation.getMembers()) {
+            if (!member.isWay()) {
+                continue;
+            }
+            Way way = member.getWay();
+            if (way.isIncomplete() || way.isDeleted()) {
+                return null;
+            }
+            // JOSM treats members without a role as outer rings; other roles are not part of the outline
+            String role = member.getRole();
+            if ("inner".equals(role)) {
+                innerWays.add(way);
+            } else if (role.isEmpty() || "outer".equals(role)) {
+                outer.add(way);
+            }
+        }
+        if (outer.isEmpty()) {
+            return null;
+        }
+        try {
+            BuildingRings rings = new BuildingRings();
+            rings.join(outer, false);
+            rings.join(innerWays, true);
+            return rings;
+        } catch (MultipolygonBuilder.JoinedPolygonCreationException ex) {
+            DPWLog.debug(() -> "Cannot assemble building relation " + relation.getUniqueId() + ": " + ex.getMessage());
+            return null;
+        }
+    }
+
+    private void join(Collection<Way> members, boolean innerRings) {
+        if (members.isEmpty()) {
+            return;
+        }
+        for (MultipolygonBuilder.JoinedPolygon polygon : MultipolygonBuilder.joinWays(members)) {
+            add(polygon.getNodes(), innerRings, polygon.ways.size() == 1 ? polygon.ways.get(0) : null);
+        }
+    }
+
+    private void add(List<Node> ring, boolean innerRing, Way way) {
+        nodes.add(Collections.unmodifiableList(ring));
+        inner.add(innerRing);
+        ways.add(way);
+    }
+
+    int size() {
+        return nodes.size();
+    }
+
+    /** Nodes of ring {@code r}, without the closing node */
+    List<Node> nodes(int r) {
+        return nodes.get(r);
+    }
+
+    boolean isInner(int r) {
+        return inner.get(r);
+    }
+
+    /** The closed way that forms ring {@code r} on its own, or null if the ring was joined from several ways */
+    Way way(int r) {
+        return ways.get(r);
+    }
+
+    int innerCount() {
+        int count = 0;
+        for (boolean ring : inner) {
+            if (ring) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns true if every ring is a single closed way, so its geometry can be transferred way by way.
+     */
+    boolean isWayPerRing() {
+        return !ways.contains(null);
+    }
+}
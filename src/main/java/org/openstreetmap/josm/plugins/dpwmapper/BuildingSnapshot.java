@@ -0,0 +1,389 @@
+package org.openstreetmap.josm.plugins.dpwmapper;
+
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Relation;
+import org.openstreetmap.josm.data.osm.RelationMember;
+import org.openstreetmap.josm.data.osm.Way;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Projected geometry of a list of buildings, extracted once per merge so the
+ * overlap scoring never touches the OSM objects again.
+ *
+ * The snapshot is columnar: building {@code i} is a plain int index into parallel arrays of
+ * ids, areas, convexity and boxes, and all rings share one packed coordinate array, so a
+ * 100k-building merge holds a handful of arrays instead of a {@code double[]} per building.
+ * A multipolygon building keeps all its rings next to each other in that array, described by
+ * its {@link Rings}; its area is the outer rings minus the inner ones.
+ *
+ * Coordinates are metres in a local equirectangular projection around a reference
+ * latitude shared by all snapshots of one merge. Over the extent of a mapping task the
+ * scale error is negligible, and the projection needs no JOSM projection setup.
+ */
+final class BuildingSnapshot {
+
+    private static final double EARTH_RADIUS = 6378137.0;
+
+    /** OSM id per building (negative for new buildings) */
+    final long[] ids;
+    /** True for buildings that are multipolygon relations, whose ids are relation ids */
+    final boolean[] relations;
+    /** Rings of all buildings: interleaved x, y without the closing vertex */
+    double[] coords;
+    /**
+     * Rings of building {@code i} start at {@code coords[offsets[i]]} and have {@code vertexCounts[i]} vertices
+     * in total. That is a single ring unless {@link #multipolygons} has an entry for the building
+     */
+    final int[] offsets;
+    final int[] vertexCounts;
+    /** Ring layout of multipolygon buildings, null for buildings with a single ring */
+    final Rings[] multipolygons;
+    /** Absolute area per building in square metres */
+    final double[] areas;
+    final boolean[] convex;
+    /** Bounding boxes per building: minX, minY, maxX, maxY */
+    final double[] boxes;
+    /** Area centroids per building: x, y */
+    final double[] centroids;
+    final double referenceLatitude;
+
+    private final double xScale;
+    /** Used length of {@link #coords}; rings moved by {@link #update} leave gaps behind */
+    private int used;
+
+    private BuildingSnapshot(int size, int coordinates, double referenceLatitude) {
+        ids = new long[size];
+        relations = new boolean[size];
+        multipolygons = new Rings[size];
+        coords = new double[coordinates];
+        offsets = new int[size];
+        vertexCounts = new int[size];
+        areas = new double[size];
+        convex = new boolean[size];
+        boxes = new double[size * 4];
+        centroids = new double[size * 2];
+        this.referenceLatitude = referenceLatitude;
+        this.xScale = Math.cos(Math.toRadians(referenceLatitude)) * EARTH_RADIUS;
+    }
+
+    int size() {
+        return ids.length;
+    }
+
+    /**
+     * Layout of the rings of one multipolygon building in {@link #coords}.
+     */
+    static final class Rings {
+        final int[] offsets;
+        final int[] counts;
+        final boolean[] inner;
+        final boolean[] convex;
+        /** Bounding box per ring: minX, minY, maxX, maxY */
+        final double[] boxes;
+
+        Rings(int size) {
+            offsets = new int[size];
+            counts = new int[size];
+            inner = new boolean[size];
+            convex = new boolean[size];
+            boxes = new double[size * 4];
+        }
+
+        int size() {
+            return offsets.length;
+        }
+    }
+
+    /** Start of the building's ring in {@link #coords} */
+    int offset(int building) {
+        return offsets[building];
+    }
+
+    int vertexCount(int building) {
+        return vertexCounts[building];
+    }
+
+    /** Number of rings of a building: 1 unless it is a multipolygon */
+    int ringCount(int building) {
+        Rings rings = multipolygons[building];
+        return rings == null ? 1 : rings.size();
+    }
+
+    int ringOffset(int building, int ring) {
+        Rings rings = multipolygons[building];
+        return rings == null ? offsets[building] : rings.offsets[ring];
+    }
+
+    int ringVertexCount(int building, int ring) {
+        Rings rings = multipolygons[building];
+        return rings == null ? vertexCounts[building] : rings.counts[ring];
+    }
+
+    boolean isInnerRing(int building, int ring) {
+        Rings rings = multipolygons[building];
+        return rings != null && rings.inner[ring];
+    }
+
+    boolean isConvexRing(int building, int ring) {
+        Rings rings = multipolygons[building];
+        return rings == null ? convex[building] : rings.convex[ring];
+    }
+
+    /** One coordinate of a ring's bounding box, {@code corner} 0 to 3 for minX, minY, maxX, maxY */
+    double ringBox(int building, int ring, int corner) {
+        Rings rings = multipolygons[building];
+        return rings == null ? boxes[building * 4 + corner] : rings.boxes[ring * 4 + corner];
+    }
+
+    /**
+     * Extracts and projects closed ways and multipolygon relations. Buildings with unknown node
+     * coordinates or rings that cannot be assembled get an empty ring, so they never overlap anything.
+     */
+    static BuildingSnapshot of(List<? extends OsmPrimitive> buildings, double referenceLatitude) {
+        // Relations are joined up front to size the coordinate array
+        BuildingRings[] assembled = new BuildingRings[buildings.size()];
+        int coordinates = 0;
+        for (int i = 0; i < buildings.size(); i++) {
+            OsmPrimitive building = buildings.get(i);
+            if (building instanceof Way) {
+                coordinates += ringLength((Way) building);
+            } else {
+                assembled[i] = BuildingRings.of(building);
+                coordinates += ringLength(assembled[i]);
+            }
+        }
+        BuildingSnapshot snapshot = new BuildingSnapshot(buildings.size(), coordinates, referenceLatitude);
+        for (int i = 0; i < buildings.size(); i++) {
+            snapshot.project(i, buildings.get(i), assembled[i], snapshot.used);
+            snapshot.used += snapshot.vertexCounts[i] * 2;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Re-extracts one building after its way or relation changed. The rings are rewritten in
+     * place if they did not grow, otherwise appended at the end of {@link #coords}.
+     */
+    void update(int i, OsmPrimitive building) {
+        BuildingRings assembled = building instanceof Way ? null : BuildingRings.of(building);
+        int length = building instanceof Way ? ringLength((Way) building) : ringLength(assembled);
+        if (length <= vertexCounts[i] * 2) {
+            project(i, building, assembled, offsets[i]);
+            return;
+        }
+        if (used + length > coords.length) {
+            coords = Arrays.copyOf(coords, Math.max(used + length, coords.length + (coords.length >> 1)));
+        }
+        project(i, building, assembled, used);
+        used += vertexCounts[i] * 2;
+    }
+
+    /**
+     * Empties a building's rings, e.g. after its way was deleted, so it never overlaps anything.
+     */
+    void clear(int i) {
+        vertexCounts[i] = 0;
+        multipolygons[i] = null;
+        measure(i);
+    }
+
+    /** Coordinates needed for a closed way, which repeats its first node at the end */
+    private static int ringLength(Way way) {
+        return Math.max(0, way.getNodesCount() - 1) * 2;
+    }
+
+    /** Coordinates needed for assembled rings, which do not repeat their first node */
+    private static int ringLength(BuildingRings rings) {
+        int length = 0;
+        for (int r = 0; rings != null && r < rings.size(); r++) {
+            length += rings.nodes(r).size() * 2;
+        }
+        return length;
+    }
+
+    private void project(int i, OsmPrimitive building, BuildingRings assembled, int start) {
+        ids[i] = building.getUniqueId();
+        relations[i] = building instanceof Relation;
+        offsets[i] = start;
+        multipolygons[i] = null;
+        if (building instanceof Way) {
+            Way way = (Way) building;
+            int count = ringLength(way) / 2;
+            int k = 0;
+            while (k < count && put(way.getNode(k), start + k * 2)) {
+                k++;
+            }
+            vertexCounts[i] = k == count ? count : 0;
+        } else {
+            vertexCounts[i] = 0;
+            if (assembled != null) {
+                projectRings(i, assembled, start);
+            }
+        }
+        measure(i);
+    }
+
+    /**
+     * Writes all rings of a multipolygon building from {@code start} and sets up its {@link Rings},
+     * or leaves the building empty if a node position is unknown.
+     */
+    private void projectRings(int i, BuildingRings assembled, int start) {
+        Rings rings = new Rings(assembled.size());
+        int position = start;
+        for (int r = 0; r < assembled.size(); r++) {
+            rings.offsets[r] = position;
+            rings.inner[r] = assembled.isInner(r);
+            for (Node node : assembled.nodes(r)) {
+                if (!put(node, position)) {
+                    return;
+                }
+                position += 2;
+            }
+            rings.counts[r] = assembled.nodes(r).size();
+        }
+        vertexCounts[i] = (position - start) / 2;
+        multipolygons[i] = rings;
+    }
+
+    /** Projects a node to {@code coords[position]}; returns false if its position is unknown */
+    private boolean put(Node node, int position) {
+        if (!node.isLatLonKnown()) {
+            return false;
+        }
+        coords[position] = x(node.lon());
+        coords[position + 1] = y(node.lat());
+        return true;
+    }
+
+    /** Projects a longitude to this snapshot's x axis in metres */
+    double x(double lon) {
+        return Math.toRadians(lon) * xScale;
+    }
+
+    /** Projects a latitude to this snapshot's y axis in metres */
+    double y(double lat) {
+        return Math.toRadians(lat) * EARTH_RADIUS;
+    }
+
+    /** Inverse of {@link #x} */
+    double lon(double x) {
+        return Math.toDegrees(x / xScale);
+    }
+
+    /** Inverse of {@link #y} */
+    double lat(double y) {
+        return Math.toDegrees(y / EARTH_RADIUS);
+    }
+
+    /**
+     * Picks a reference latitude for the projection: the mean latitude of the first node of each
+     * building, for relations that of their first member way.
+     */
+    static double referenceLatitude(List<? extends OsmPrimitive> first, List<? extends OsmPrimitive> second) {
+        double sum = 0;
+        int count = 0;
+        for (int i = 0; i < first.size() + second.size(); i++) {
+            OsmPrimitive building = i < first.size() ? first.get(i) : second.get(i - first.size());
+            Way way = building instanceof Relation ? firstMemberWay((Relation) building) : (Way) building;
+            if (way != null && way.getNodesCount() > 0 && way.getNode(0).isLatLonKnown()) {
+                sum += way.getNode(0).lat();
+                count++;
+            }
+        }
+        return count == 0 ? 0 : sum / count;
+    }
+
+    private static Way firstMemberWay(Relation relation) {
+        for (RelationMember member : relation.getMembers()) {
+            if (member.isWay()) {
+                return member.getWay();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if the building has a usable ring (at least a triangle with known coordinates).
+     */
+    boolean isValid(int building) {
+        return vertexCount(building) >= 3;
+    }
+
+    /**
+     * Precomputes area, convexity, centroid and bounding box of a building whose ring is in place.
+     */
+    private void measure(int i) {
+        if (multipolygons[i] != null) {
+            measureRings(i, multipolygons[i]);
+            return;
+        }
+        int offset = offsets[i];
+        int count = vertexCounts[i];
+        areas[i] = Math.abs(PolygonKernel.signedArea(coords, offset, count));
+        convex[i] = PolygonKernel.isConvex(coords, offset, count);
+        PolygonKernel.centroid(coords, offset, count, centroids, i * 2);
+        box(offset, count, boxes, i * 4);
+    }
+
+    /**
+     * Like {@link #measure} for a multipolygon: the area is the outer rings minus the inner rings,
+     * the centroid is weighted the same way and the box covers all rings.
+     */
+    private void measureRings(int i, Rings rings) {
+        double area = 0, cx = 0, cy = 0;
+        double[] centroid = new double[2];
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for (int r = 0; r < rings.size(); r++) {
+            int offset = rings.offsets[r];
+            int count = rings.counts[r];
+            double ringArea = Math.abs(PolygonKernel.signedArea(coords, offset, count));
+            if (rings.inner[r]) {
+                ringArea = -ringArea;
+            }
+            PolygonKernel.centroid(coords, offset, count, centroid, 0);
+            area += ringArea;
+            cx += ringArea * centroid[0];
+            cy += ringArea * centroid[1];
+            rings.convex[r] = PolygonKernel.isConvex(coords, offset, count);
+            box(offset, count, rings.boxes, r * 4);
+            minX = Math.min(minX, rings.boxes[r * 4]);
+            minY = Math.min(minY, rings.boxes[r * 4 + 1]);
+            maxX = Math.max(maxX, rings.boxes[r * 4 + 2]);
+            maxY = Math.max(maxY, rings.boxes[r * 4 + 3]);
+        }
+        areas[i] = Math.max(0, area);
+        convex[i] = false;
+        boxes[i * 4] = minX;
+        boxes[i * 4 + 1] = minY;
+        boxes[i * 4 + 2] = maxX;
+        boxes[i * 4 + 3] = maxY;
+        // Degenerate relations fall back to the middle of their box
+        centroids[i * 2] = area > 0 ? cx / area : (minX + maxX) / 2;
+        centroids[i * 2 + 1] = area > 0 ? cy / area : (minY + maxY) / 2;
+    }
+
+    /**
+     * Bounding box of one ring, written as minX, minY, maxX, maxY from {@code target[targetOffset]}.
+     */
+    private void box(int offset, int count, double[] target, int targetOffset) {
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for (int p = offset; p < offset + count * 2; p += 2) {
+            minX = Math.min(minX, coords[p]);
+            maxX = Math.max(maxX, coords[p]);
+            minY = Math.min(minY, coords[p + 1]);
+            maxY = Math.max(maxY, coords[p + 1]);
+        }
+        if (count == 0) {
+            minX = minY = maxX = maxY = 0;
+        }
+        target[targetOffset] = minX;
+        target[targetOffset + 1] = minY;
+        target[targetOffset + 2] = maxX;
+        target[targetOffset + 3] = maxY;
+    }
+}
@@ -0,0 +1,525 @@
+package org.openstreetmap.josm.plugins.dpwmapper;
+
+import org.openstreetmap.josm.io.Compression;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The closed building ways of an OSM XML file with their node coordinates, assembled on disk.
+ *
+ * The file is streamed once and never loaded into a {@code DataSet}. Nodes and the node
+ * references of all ways are spilled to {@link ExternalSort}s by node id and joined there, which
+ * also tells whether a node is tagged or used by anything but one building way. The joined
+ * references are sorted back into way order and written as one {@link Building} record per valid
+ * building to a temporary file, which {@link #buildings()} reads as often as needed. Memory is
+ * bounded by the sort chunks, whatever the size of the file.
+ */
+final class BuildingStore implements Closeable {
+
+    private static final double EARTH_RADIUS = 6378137.0;
+
+    /** Buildings with all nodes present and at least three vertices, in file order */
+    int buildingCount;
+
+    /** New primitives in the file that are not building ways or their nodes */
+    int otherNewPrimitives;
+
+    private final File directory;
+    private final int chunkSize;
+    private final File buildingFile;
+    private final List<Closeable> open = new ArrayList<>();
+
+    /**
+     * One building way with everything the merge and the change file need. Boxes are in local
+     * metres around the average latitude of the file's building nodes.
+     */
+    static final class Building {
+        long id;
+        int version;
+        /** Tags as key, value, key, value, ... */
+        String[] tags;
+        /** The ring without the closing node */
+        long[] nodeIds;
+        int[] nodeVersions;
+        double[] lats;
+        double[] lons;
+        /** Nodes that are tagged or used by more than one way or by a relation, and must stay as they are */
+        boolean[] pinned;
+        double minX;
+        double minY;
+        double maxX;
+        double maxY;
+
+        boolean isNew() {
+            return id < 0;
+        }
+    }
+
+    static final ExternalSort.Codec<Building> BUILDING_CODEC = new ExternalSort.Codec<Building>() {
+        @Override
+        public void write(DataOutput out, Building b) throws IOException {
+            out.writeLong(b.id);
+            out.writeInt(b.version);
+            writeTags(out, b.tags);
+            out.writeInt(b.nodeIds.length);
+            for (int k = 0; k < b.nodeIds.length; k++) {
+                out.writeLong(b.nodeIds[k]);
+                out.writeInt(b.nodeVersions[k]);
+                out.writeDouble(b.lats[k]);
+                out.writeDouble(b.lons[k]);
+                out.writeBoolean(b.pinned[k]);
+            }
+            out.writeDouble(b.minX);
+            out.writeDouble(b.minY);
+            out.writeDouble(b.maxX);
+            out.writeDouble(b.maxY);
+        }
+
+        @Override
+        public Building read(DataInput in) throws IOException {
+            Building b = new Building();
+            b.id = in.readLong();
+            b.version = in.readInt();
+            b.tags = readTags(in);
+            int count = in.readInt();
+            b.nodeIds = new long[count];
+            b.nodeVersions = new int[count];
+            b.lats = new double[count];
+            b.lons = new double[count];
+            b.pinned = new boolean[count];
+            for (int k = 0; k < count; k++) {
+                b.nodeIds[k] = in.readLong();
+                b.nodeVersions[k] = in.readInt();
+                b.lats[k] = in.readDouble();
+                b.lons[k] = in.readDouble();
+                b.pinned[k] = in.readBoolean();
+            }
+            b.minX = in.readDouble();
+            b.minY = in.readDouble();
+            b.maxX = in.readDouble();
+            b.maxY = in.readDouble();
+            return b;
+        }
+    };
+
+    private BuildingStore(File directory, int chunkSize) {
+        this.directory = directory;
+        this.chunkSize = chunkSize;
+        this.buildingFile = new File(directory, "buildings.bin");
+    }
+
+    /**
+     * Reads the building ways of a plain or compressed OSM XML file.
+     *
+     * @param directory empty directory for the temporary files, which {@link #close()} deletes
+     * @param chunkSize records per sort chunk, see {@link ExternalSort#DEFAULT_CHUNK_SIZE}
+     */
+    static BuildingStore read(File file, File directory, int chunkSize) throws IOException, XMLStreamException {
+        BuildingStore store = new BuildingStore(directory, chunkSize);
+        File wayFile = new File(directory, "ways.bin");
+        try (ExternalSort<NodeRecord> nodes = new ExternalSort<>(directory, NodeRecord.CODEC, NodeRecord.BY_ID, chunkSize);
+             ExternalSort<RefRecord> refs = new ExternalSort<>(directory, RefRecord.CODEC, RefRecord.BY_NODE, chunkSize);
+             ExternalSort<RefRecord> joined = new ExternalSort<>(directory, RefRecord.CODEC, RefRecord.BY_WAY, chunkSize)) {
+            try (InputStream in = Compression.getUncompressedFileInputStream(file);
+                 DataOutputStream ways = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(wayFile)))) {
+                store.readFile(in, nodes, refs, ways);
+            }
+            double referenceLatitude = store.join(nodes.sorted(), refs.sorted(), joined);
+            try (DataInputStream ways = new DataInputStream(new BufferedInputStream(new FileInputStream(wayFile)));
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(store.buildingFile)))) {
+                store.assemble(ways, joined.sorted(), referenceLatitude, out);
+            }
+        } catch (IOException | XMLStreamException | RuntimeException ex) {
+            store.close();
+            throw ex;
+        } finally {
+            delete(wayFile);
+        }
+        return store;
+    }
+
+    /**
+     * The valid buildings in file order. Each call reads the file again.
+     */
+    ExternalSort.Cursor<Building> buildings() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(buildingFile)));
+        open.add(in);
+        return new ExternalSort.Cursor<Building>() {
+            private int remaining = buildingCount;
+
+            @Override
+            Building read() throws IOException {
+                if (remaining == 0) {
+                    return null;
+                }
+                remaining--;
+                return BUILDING_CODEC.read(in);
+            }
+        };
+    }
+
+    /** Deletes the temporary files */
+    @Override
+    public void close() throws IOException {
+        for (Closeable in : open) {
+            in.close();
+        }
+        open.clear();
+        delete(buildingFile);
+    }
+
+    /** Records per sort chunk of this store, for sorts that follow it */
+    int chunkSize() {
+        return chunkSize;
+    }
+
+    /** Directory of the temporary files */
+    File directory() {
+        return directory;
+    }
+
+    private static void delete(File file) {
+        if (!file.delete() && file.exists()) {
+            DPWLog.warn("Could not delete " + file);
+        }
+    }
+
+    private static XMLStreamReader open(InputStream in) throws XMLStreamException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory.createXMLStreamReader(in);
+    }
+
+    /**
+     * The one pass over the file: every non-deleted node, every node reference of a closed,
+     * non-deleted building way with its position, and the references of all other ways and
+     * relations, which pin the node. Building way headers go to {@code ways} in file order.
+     */
+    private void readFile(InputStream in, ExternalSort<NodeRecord> nodes, ExternalSort<RefRecord> refs,
+            DataOutputStream ways) throws XMLStreamException, IOException {
+        XMLStreamReader reader = open(in);
+        List<Long> wayRefs = new ArrayList<>();
+        List<String> wayTagList = new ArrayList<>();
+        NodeRecord node = null;
+        String element = null;
+        long id = 0;
+        int version = 0;
+        boolean deleted = false;
+        int wayIndex = 0;
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = reader.getLocalName();
+                if ("node".equals(name) || "way".equals(name) || "relation".equals(name)) {
+                    element = name;
+                    id = Long.parseLong(reader.getAttributeValue(null, "id"));
+                    version = parseVersion(reader);
+                    deleted = "delete".equals(reader.getAttributeValue(null, "action"));
+                    wayRefs.clear();
+                    wayTagList.clear();
+                    if ("node".equals(name) && !deleted) {
+                        node = new NodeRecord(id, version,
+                            Double.parseDouble(reader.getAttributeValue(null, "lat")),
+                            Double.parseDouble(reader.getAttributeValue(null, "lon")));
+                    } else if ("relation".equals(name) && !deleted && id < 0) {
+                        otherNewPrimitives++;
+                    }
+                } else if ("tag".equals(name)) {
+                    if (node != null) {
+                        node.tagged = true;
+                    } else if ("way".equals(element)) {
+                        wayTagList.add(reader.getAttributeValue(null, "k"));
+                        wayTagList.add(reader.getAttributeValue(null, "v"));
+                    }
+                } else if ("nd".equals(name) && "way".equals(element)) {
+                    wayRefs.add(Long.parseLong(reader.getAttributeValue(null, "ref")));
+                } else if ("member".equals(name) && "relation".equals(element) && !deleted
+                        && "node".equals(reader.getAttributeValue(null, "type"))) {
+                    refs.add(new RefRecord(Long.parseLong(reader.getAttributeValue(null, "ref")), -1, 0));
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                String name = reader.getLocalName();
+                if ("node".equals(name)) {
+                    if (node != null) {
+                        nodes.add(node);
+                    }
+                    node = null;
+                    element = null;
+                } else if ("way".equals(name)) {
+                    element = null;
+                    if (deleted) {
+                        continue;
+                    }
+                    int size = wayRefs.size();
+                    boolean closed = size >= 4 && wayRefs.get(0).equals(wayRefs.get(size - 1));
+                    if (closed && isKey(wayTagList, "building")) {
+                        ways.writeLong(id);
+                        ways.writeInt(version);
+                        writeTags(ways, wayTagList.toArray(new String[0]));
+                        // The closing ref repeats the first node
+                        ways.writeInt(size - 1);
+                        for (int pos = 0; pos < size - 1; pos++) {
+                            refs.add(new RefRecord(wayRefs.get(pos), wayIndex, pos));
+                        }
+                        wayIndex++;
+                    } else {
+                        for (long ref : wayRefs) {
+                            refs.add(new RefRecord(ref, -1, 0));
+                        }
+                        if (id < 0) {
+                            otherNewPrimitives++;
+                        }
+                    }
+                } else if ("relation".equals(name)) {
+                    element = null;
+                }
+            }
+        }
+        reader.close();
+        buildingCount = wayIndex;
+    }
+
+    /**
+     * Joins the sorted nodes with the sorted references. Every building reference comes out with
+     * its node's coordinates, or marked unknown if the file lacks the node, and pinned if the node
+     * is tagged or referenced more than once.
+     *
+     * @return average latitude of the building nodes, the reference for the local projection
+     */
+    private double join(ExternalSort.Cursor<NodeRecord> nodes, ExternalSort.Cursor<RefRecord> refs,
+            ExternalSort<RefRecord> joined) throws IOException {
+        double latSum = 0;
+        long known = 0;
+        List<RefRecord> group = new ArrayList<>();
+        RefRecord ref = refs.next();
+        while (ref != null || nodes.peek() != null) {
+            long nodeId = ref != null ? ref.nodeId : Long.MAX_VALUE;
+            // Nodes that no building way uses
+            while (nodes.peek() != null && nodes.peek().id < nodeId) {
+                if (nodes.next().id < 0) {
+                    otherNewPrimitives++;
+                }
+            }
+            if (ref == null) {
+                break;
+            }
+
+            group.clear();
+            boolean usedElsewhere = false;
+            while (ref != null && ref.nodeId == nodeId) {
+                if (ref.way >= 0) {
+                    group.add(ref);
+                } else {
+                    usedElsewhere = true;
+                }
+                ref = refs.next();
+            }
+            NodeRecord node = nodes.peek() != null && nodes.peek().id == nodeId ? nodes.next() : null;
+            while (nodes.peek() != null && nodes.peek().id == nodeId) {
+                nodes.next(); // duplicate node in the file, the first one wins
+            }
+            if (group.isEmpty()) {
+                if (node != null && nodeId < 0) {
+                    otherNewPrimitives++;
+                }
+                continue;
+            }
+            if (node != null) {
+                latSum += node.lat;
+                known++;
+            }
+            boolean pinned = usedElsewhere || group.size() > 1 || (node != null && node.tagged);
+            for (RefRecord r : group) {
+                r.pinned = pinned;
+                if (node != null) {
+                    r.known = true;
+                    r.version = node.version;
+                    r.lat = node.lat;
+                    r.lon = node.lon;
+                }
+                joined.add(r);
+            }
+        }
+        return known == 0 ? 0 : latSum / known;
+    }
+
+    /**
+     * Puts the joined references back together with the way headers. Ways with missing nodes
+     * or fewer than three vertices are dropped.
+     */
+    private void assemble(DataInputStream ways, ExternalSort.Cursor<RefRecord> refs, double referenceLatitude,
+            DataOutputStream out) throws IOException {
+        double xScale = EARTH_RADIUS * Math.cos(Math.toRadians(referenceLatitude));
+        int wayCount = buildingCount;
+        int valid = 0;
+        for (int w = 0; w < wayCount; w++) {
+            Building b = new Building();
+            b.id = ways.readLong();
+            b.version = ways.readInt();
+            b.tags = readTags(ways);
+            int count = ways.readInt();
+            b.nodeIds = new long[count];
+            b.nodeVersions = new int[count];
+            b.lats = new double[count];
+            b.lons = new double[count];
+            b.pinned = new boolean[count];
+            boolean complete = count >= 3;
+            b.minX = b.minY = Double.POSITIVE_INFINITY;
+            b.maxX = b.maxY = Double.NEGATIVE_INFINITY;
+            for (int pos = 0; pos < count; pos++) {
+                RefRecord ref = refs.next();
+                complete &= ref.known;
+                b.nodeIds[pos] = ref.nodeId;
+                b.nodeVersions[pos] = ref.version;
+                b.lats[pos] = ref.lat;
+                b.lons[pos] = ref.lon;
+                b.pinned[pos] = ref.pinned;
+                double x = Math.toRadians(ref.lon) * xScale;
+                double y = Math.toRadians(ref.lat) * EARTH_RADIUS;
+                b.minX = Math.min(b.minX, x);
+                b.minY = Math.min(b.minY, y);
+                b.maxX = Math.max(b.maxX, x);
+                b.maxY = Math.max(b.maxY, y);
+            }
+            if (complete) {
+                BUILDING_CODEC.write(out, b);
+                valid++;
+            }
+        }
+        buildingCount = valid;
+    }
+
+    private static int parseVersion(XMLStreamReader reader) {
+        String version = reader.getAttributeValue(null, "version");
+        return version == null ? 0 : Integer.parseInt(version);
+    }
+
+    private static boolean isKey(List<String> tags, String key) {
+        for (int i = 0; i < tags.size(); i += 2) {
+            if (key.equals(tags.get(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void writeTags(DataOutput out, String[] tags) throws IOException {
+        out.writeInt(tags.length);
+        for (String tag : tags) {
+            out.writeUTF(tag);
+        }
+    }
+
+    private static String[] readTags(DataInput in) throws IOException {
+        String[] tags = new String[in.readInt()];
+        for (int t = 0; t < tags.length; t++) {
+            tags[t] = in.readUTF();
+        }
+        return tags;
+    }
+
+    /** A node of the file, spilled by id */
+    private static final class NodeRecord {
+        static final Comparator<NodeRecord> BY_ID = (a, b) -> Long.compare(a.id, b.id);
+
+        static final ExternalSort.Codec<NodeRecord> CODEC = new ExternalSort.Codec<NodeRecord>() {
+            @Override
+            public void write(DataOutput out, NodeRecord node) throws IOException {
+                out.writeLong(node.id);
+                out.writeInt(node.version);
+                out.writeDouble(node.lat);
+                out.writeDouble(node.lon);
+                out.writeBoolean(node.tagged);
+            }
+
+            @Override
+            public NodeRecord read(DataInput in) throws IOException {
+                NodeRecord node = new NodeRecord(in.readLong(), in.readInt(), in.readDouble(), in.readDouble());
+                node.tagged = in.readBoolean();
+                return node;
+            }
+        };
+
+        final long id;
+        final int version;
+        final double lat;
+        final double lon;
+        boolean tagged;
+
+        NodeRecord(long id, int version, double lat, double lon) {
+            this.id = id;
+            this.version = version;
+            this.lat = lat;
+            this.lon = lon;
+        }
+    }
+
+    /**
+     * A node reference: position {@code pos} of building way {@code way}, or {@code way} -1 for
+     * any other way or relation. After the join it carries the node's data.
+     */
+    private static final class RefRecord {
+        static final Comparator<RefRecord> BY_NODE = (a, b) -> Long.compare(a.nodeId, b.nodeId);
+        static final Comparator<RefRecord> BY_WAY = Comparator.<RefRecord>comparingInt(r -> r.way)
+            .thenComparingInt(r -> r.pos);
+
+        static final ExternalSort.Codec<RefRecord> CODEC = new ExternalSort.Codec<RefRecord>() {
+            @Override
+            public void write(DataOutput out, RefRecord ref) throws IOException {
+                out.writeLong(ref.nodeId);
+                out.writeInt(ref.way);
+                out.writeInt(ref.pos);
+                out.writeBoolean(ref.known);
+                out.writeBoolean(ref.pinned);
+                out.writeInt(ref.version);
+                out.writeDouble(ref.lat);
+                out.writeDouble(ref.lon);
+            }
+
+            @Override
+            public RefRecord read(DataInput in) throws IOException {
+                RefRecord ref = new RefRecord(in.readLong(), in.readInt(), in.readInt());
+                ref.known = in.readBoolean();
+                ref.pinned = in.readBoolean();
+                ref.version = in.readInt();
+                ref.lat = in.readDouble();
+                ref.lon = in.readDouble();
+                return ref;
+            }
+        };
+
+        final long nodeId;
+        final int way;
+        final int pos;
+        boolean known;
+        boolean pinned;
+        int version;
+        double lat;
+        double lon;
+
+        RefRecord(long nodeId, int way, int pos) {
+            this.nodeId = nodeId;
+            this.way = way;
+            this.pos = pos;
+        }
+    }
+}
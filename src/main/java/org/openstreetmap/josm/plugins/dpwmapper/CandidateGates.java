@@ -0,0 +1,171 @@
+package org.openstreetmap.josm.plugins.dpwmapper;
+
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cheap tests that reject a candidate pair before the exact overlap is computed.
+ *
+ * The tiers run in order of cost on values precomputed in the {@link BuildingSnapshot}:
+ * <ol>
+ * <li>area ratio: the overlap can never exceed the smaller area over the larger one; a profile
+ * may demand a higher ratio than the threshold</li>
+ * <li>bbox bound: the intersection can never exceed the intersection of the bounding boxes</li>
+ * <li>centroid distance, relative to the size of the larger building (optional)</li>
+ * <li>bounding box intersection over union (optional)</li>
+ * </ol>
+ * The first two are upper bounds of the overlap and never reject a pair that would match.
+ * The optional tiers and a minimum area ratio above the threshold are heuristics for dense areas,
+ * set by the {@link MatchingProfile} or the preferences {@code dpwmapper.merge.gate.centroid-factor}
+ * and {@code dpwmapper.merge.gate.bbox-iou}.
+ */
+final class CandidateGates {
+
+    static final String CENTROID_PREFERENCE = "dpwmapper.merge.gate.centroid-factor";
+    static final String BBOX_IOU_PREFERENCE = "dpwmapper.merge.gate.bbox-iou";
+
+    /** Only the exact bounds, at the default threshold */
+    static final CandidateGates LOSSLESS = MatchingProfile.defaults().gates();
+
+    /** Tier indices for {@link Counters} */
+    static final int CANDIDATES = 0;
+    static final int AREA_RATIO = 1;
+    static final int BBOX_BOUND = 2;
+    static final int CENTROID = 3;
+    static final int BBOX_IOU = 4;
+    static final int EXACT = 5;
+    static final int MATCHED = 6;
+    private static final String[] TIER_NAMES = {
+        "candidates", "area-ratio", "bbox-bound", "centroid", "bbox-iou", "exact", "matched"};
+    static final int TIER_COUNT = TIER_NAMES.length;
+
+    /** A pair matches if its overlap is above this */
+    final double threshold;
+    /** Reject if the smaller area is at most this fraction of the larger; below the threshold it changes nothing */
+    final double minAreaRatio;
+    /** Reject if the centroids are further apart than this times the size of the larger building; 0 disables */
+    final double centroidFactor;
+    /** Reject if the bounding box intersection over union is below this; 0 disables */
+    final double minBoxOverlap;
+
+    CandidateGates(double threshold, double minAreaRatio, double centroidFactor, double minBoxOverlap) {
+        this.threshold = threshold;
+        this.minAreaRatio = minAreaRatio;
+        this.centroidFactor = centroidFactor;
+        this.minBoxOverlap = minBoxOverlap;
+    }
+
+    /**
+     * Returns the tier that rejects the pair, or {@link #EXACT} if the exact overlap has to be computed.
+     */
+    int reject(BuildingSnapshot a, int i, BuildingSnapshot b, int j) {
+        double areaA = a.areas[i];
+        double areaB = b.areas[j];
+        double smaller = Math.min(areaA, areaB);
+        double larger = Math.max(areaA, areaB);
+        if (smaller <= Math.max(threshold, minAreaRatio) * larger) {
+            return AREA_RATIO;
+        }
+
+        double[] boxA = a.boxes;
+        double[] boxB = b.boxes;
+        double width = Math.min(boxA[i * 4 + 2], boxB[j * 4 + 2]) - Math.max(boxA[i * 4], boxB[j * 4]);
+        double height = Math.min(boxA[i * 4 + 3], boxB[j * 4 + 3]) - Math.max(boxA[i * 4 + 1], boxB[j * 4 + 1]);
+        double boxIntersection = Math.max(0, width) * Math.max(0, height);
+        // The overlap grows with the intersection, so its largest possible value bounds it
+        double maxIntersection = Math.min(boxIntersection, smaller);
+        if (maxIntersection <= threshold * (areaA + areaB - maxIntersection)) {
+            return BBOX_BOUND;
+        }
+
+        if (centroidFactor > 0) {
+            double dx = a.centroids[i * 2] - b.centroids[j * 2];
+            double dy = a.centroids[i * 2 + 1] - b.centroids[j * 2 + 1];
+            double reach = centroidFactor * Math.sqrt(larger);
+            if (dx * dx + dy * dy > reach * reach) {
+                return CENTROID;
+            }
+        }
+
+        if (minBoxOverlap > 0) {
+            double boxAreaA = (boxA[i * 4 + 2] - boxA[i * 4]) * (boxA[i * 4 + 3] - boxA[i * 4 + 1]);
+            double boxAreaB = (boxB[j * 4 + 2] - boxB[j * 4]) * (boxB[j * 4 + 3] - boxB[j * 4 + 1]);
+            if (boxIntersection < minBoxOverlap * (boxAreaA + boxAreaB - boxIntersection)) {
+                return BBOX_IOU;
+            }
+        }
+        return EXACT;
+    }
+
+    static String tierName(int tier) {
+        return TIER_NAMES[tier];
+    }
+
+    /** Gates with the same values reject the same pairs, so scores made with one are valid for the other */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof CandidateGates)) {
+            return false;
+        }
+        CandidateGates other = (CandidateGates) obj;
+        return Double.compare(threshold, other.threshold) == 0
+            && Double.compare(minAreaRatio, other.minAreaRatio) == 0
+            && Double.compare(centroidFactor, other.centroidFactor) == 0
+            && Double.compare(minBoxOverlap, other.minBoxOverlap) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(threshold, minAreaRatio, centroidFactor, minBoxOverlap);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "threshold=%s area-ratio=%s centroid-factor=%s bbox-iou=%s",
+            threshold, minAreaRatio, centroidFactor, minBoxOverlap);
+    }
+
+    /**
+     * Per-tier counts over one merge: how many pairs each tier rejected, how many reached the
+     * exact overlap and how many of those matched. Safe to update from several threads.
+     */
+    static final class Counters {
+        private final LongAdder[] counts = new LongAdder[TIER_NAMES.length];
+
+        Counters() {
+            for (int t = 0; t < counts.length; t++) {
+                counts[t] = new LongAdder();
+            }
+        }
+
+        /** Adds the counts of one new building, indexed by tier */
+        void add(int[] tiers) {
+            for (int t = 0; t < tiers.length; t++) {
+                if (tiers[t] != 0) {
+                    counts[t].add(tiers[t]);
+                }
+            }
+        }
+
+        long get(int tier) {
+            return counts[tier].sum();
+        }
+
+        /** One line such as {@code candidates=120 area-ratio=40 ...} */
+        @Override
+        public String toString() {
+            StringBuilder line = new StringBuilder();
+            for (int t = 0; t < counts.length; t++) {
+                if (t > 0) {
+                    line.append(' ');
+                }
+                line.append(TIER_NAMES[t]).append('=').append(counts[t].sum());
+            }
+            return line.toString();
+        }
+    }
+}
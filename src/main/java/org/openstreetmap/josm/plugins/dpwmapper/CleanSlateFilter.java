@@ -0,0 +1,97 @@
+package org.openstreetmap.josm.plugins.dpwmapper;
+
+import org.openstreetmap.josm.data.osm.Filter;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.dialogs.FilterTableModel;
+
+import java.util.Collection;
+
+/**
+ * Access to the "Clean Slate" filter that hides all existing OSM data.
+ *
+ * Filtering only marks primitives as disabled/hidden; they stay in the data set,
+ * so the merge engine reads them directly and the filter never has to be toggled.
+ * Full filter runs are only done when the filter itself changes. The filter text is
+ * {@code dpwmapper.filter.text}, from the preferences or {@code dpwmapper.properties}.
+ */
+final class CleanSlateFilter {
+
+    static final String FILTER_TEXT_PREFERENCE = "dpwmapper.filter.text";
+    private static final String DEFAULT_FILTER_TEXT = "-new";  // Hide everything that is NOT new
+
+    private CleanSlateFilter() {
+        // Hide default constructor for utilities classes
+    }
+
+    /**
+     * Makes sure the clean slate filter exists, is enabled and hides its matches.
+     * Runs the filters over the whole data set only if that changed anything.
+     *
+     * @return true if the filter is in place, false if there is no filter dialog
+     */
+    static boolean apply() {
+        FilterTableModel filterModel = getFilterModel();
+        if (filterModel == null) {
+            DPWLog.warn("Filter dialog is not available");
+            return false;
+        }
+
+        String text = filterText();
+        Filter existingFilter = find(filterModel, text);
+        if (existingFilter != null) {
+            if (existingFilter.enable && existingFilter.hiding) {
+                // New primitives are filtered incrementally by JOSM, nothing to redo
+                DPWLog.debug(() -> "Filter already active");
+                return true;
+            }
+            existingFilter.enable = true;
+            existingFilter.hiding = true;
+        } else {
+            DPWLog.debug(() -> "Creating new filter with text: " + text);
+
+            Filter filter = new Filter();
+            filter.text = text;
+            filter.hiding = true;
+            filter.enable = true;
+            filter.inverted = false;
+            filterModel.addFilter(filter);
+        }
+
+        DPWLog.debug(() -> "Executing filters");
+        filterModel.executeFilters();
+        return true;
+    }
+
+    /**
+     * Re-evaluates the filters for the given primitives only, e.g. the ones a merge changed.
+     */
+    static void refilter(Collection<? extends OsmPrimitive> primitives) {
+        FilterTableModel filterModel = getFilterModel();
+        if (filterModel != null && !primitives.isEmpty()) {
+            filterModel.executeFilters(primitives);
+        }
+    }
+
+    private static FilterTableModel getFilterModel() {
+        if (MainApplication.getMap() == null || MainApplication.getMap().filterDialog == null) {
+            return null;
+        }
+        return MainApplication.getMap().filterDialog.getFilterModel();
+    }
+
+    /** Search expression of the clean slate filter; must match what hides the old data */
+    static String filterText() {
+        return MatchingProfile.setting(FILTER_TEXT_PREFERENCE, DEFAULT_FILTER_TEXT);
+    }
+
+    private static Filter find(FilterTableModel filterModel, String text) {
+        for (int i = 0; i < filterModel.getRowCount(); i++) {
+            Filter filter = filterModel.getValue(i);
+            if (filter != null && text.equals(filter.text)) {
+                return filter;
+            }
+        }
+        return null;
+    }
+}
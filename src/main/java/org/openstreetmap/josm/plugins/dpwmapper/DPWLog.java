@@ -0,0 +1,53 @@
+package org.openstreetmap.josm.plugins.dpwmapper;
+
+import org.openstreetmap.josm.tools.Logging;
+
+import java.util.function.Supplier;
+
+/**
+ * Plugin logging, routed through JOSM {@link Logging} with a common prefix.
+ *
+ * Debug and trace messages are passed as suppliers, so nothing is formatted unless
+ * the level is enabled. In loops, check {@link #isTraceEnabled()} first to avoid even
+ * the lambda allocation.
+ */
+final class DPWLog {
+
+    private static final String PREFIX = "[DPWMapper] ";
+
+    private DPWLog() {
+        // Hide default constructor for utilities classes
+    }
+
+    static boolean isDebugEnabled() {
+        return Logging.isDebugEnabled();
+    }
+
+    static boolean isTraceEnabled() {
+        return Logging.isTraceEnabled();
+    }
+
+    static void info(String message) {
+        Logging.info(PREFIX + message);
+    }
+
+    static void warn(String message) {
+        Logging.warn(PREFIX + message);
+    }
+
+    static void error(String message, Throwable t) {
+        Logging.log(Logging.LEVEL_ERROR, PREFIX + message, t);
+    }
+
+    static void debug(Supplier<String> message) {
+        if (Logging.isDebugEnabled()) {
+            Logging.debug(PREFIX + message.get());
+        }
+    }
+
+    static void trace(Supplier<String> message) {
+        if (Logging.isTraceEnabled()) {
+            Logging.trace(PREFIX + message.get());
+        }
+    }
+}
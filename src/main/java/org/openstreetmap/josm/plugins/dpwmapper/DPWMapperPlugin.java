@@ -4,7 +4,6 @@ import org.openstreetmap.josm.gui.MainApplication;
 import org.openstreetmap.josm.gui.MapFrame;
 import org.openstreetmap.josm.plugins.Plugin;
 import org.openstreetmap.josm.plugins.PluginInformation;
-import org.openstreetmap.josm.tools.Logging;
 
 /**
  * DPW Mapper Support Plugin - The Clean Slate Tool
@@ -23,41 +22,30 @@ public class DPWMapperPlugin extends Plugin {
     
     public DPWMapperPlugin(PluginInformation info) {
         super(info);
-        System.out.println("========================================");
-        System.out.println("[DPWMapper] Plugin initialized v" + info.version);
-        System.out.println("[DPWMapper] Plugin loading at: " + System.currentTimeMillis());
-        System.out.println("========================================");
-        Logging.info("DPW Mapper Support Plugin v1.0.0 loaded");
+        DPWLog.info("Plugin initialized v" + info.version);
     }
     
     @Override
     public void mapFrameInitialized(MapFrame oldFrame, MapFrame newFrame) {
         if (newFrame != null) {
-            System.out.println("========================================");
-            System.out.println("[DPWMapper] Map frame initialized");
-            System.out.println("[DPWMapper] Registering AutoHideListener...");
+            DPWLog.debug(() -> "Map frame initialized");
             
             // Initialize and register the auto-hide listener
             if (autoHideListener == null) {
                 autoHideListener = new AutoHideListener();
-                System.out.println("[DPWMapper] AutoHideListener created");
             }
             MainApplication.getLayerManager().addLayerChangeListener(autoHideListener);
-            System.out.println("[DPWMapper] Listener registered with LayerManager");
             
             // Register the Merge & Fix action in the Tools menu
             MainApplication.getMenu().toolsMenu.add(new MergeAndFixAction());
-            System.out.println("[DPWMapper] Merge & Fix action added to Tools menu");
-            System.out.println("[DPWMapper] Plugin ready!");
-            System.out.println("========================================");
+            MainApplication.getMenu().toolsMenu.add(new MergeAndFixAction(true));
             
-            Logging.info("DPW Mapper: Auto-hide listener and Merge & Fix action registered");
+            DPWLog.info("Auto-hide listener and Merge & Fix action registered");
         } else if (oldFrame != null) {
-            System.out.println("[DPWMapper] Map frame destroyed, cleaning up...");
+            DPWLog.debug(() -> "Map frame destroyed, cleaning up");
             // Cleanup when map frame is destroyed
             if (autoHideListener != null) {
                 MainApplication.getLayerManager().removeLayerChangeListener(autoHideListener);
-                System.out.println("[DPWMapper] AutoHideListener removed");
             }
         }
     }
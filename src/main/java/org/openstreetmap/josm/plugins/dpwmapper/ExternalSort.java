@@ -0,0 +1,205 @@
+package org.openstreetmap.josm.plugins.dpwmapper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts more records than fit in memory: records are collected in chunks of a fixed size, each
+ * chunk is sorted and spilled to a temporary file, and the chunks are read back in one k-way merge.
+ *
+ * Memory is bounded by one chunk while adding and one buffered record per chunk while reading.
+ * The sort is stable: records that compare equal come out in the order they were added.
+ *
+ * @param <T> record type
+ */
+final class ExternalSort<T> implements Closeable {
+
+    /** Records per chunk, a few tens of megabytes for the records of the streaming merge */
+    static final int DEFAULT_CHUNK_SIZE = 1 << 18;
+
+    /**
+     * Binary form of a record in the spill files.
+     *
+     * @param <T> record type
+     */
+    interface Codec<T> {
+        void write(DataOutput out, T record) throws IOException;
+
+        T read(DataInput in) throws IOException;
+    }
+
+    private final File directory;
+    private final Codec<T> codec;
+    private final Comparator<? super T> order;
+    private final int chunkSize;
+
+    private final List<T> buffer = new ArrayList<>();
+    private final List<File> chunks = new ArrayList<>();
+    private final List<Integer> chunkSizes = new ArrayList<>();
+    private final List<DataInputStream> readers = new ArrayList<>();
+    private long size;
+
+    /**
+     * @param directory where the chunk files are created
+     */
+    ExternalSort(File directory, Codec<T> codec, Comparator<? super T> order, int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+        }
+        this.directory = directory;
+        this.codec = codec;
+        this.order = order;
+        this.chunkSize = chunkSize;
+    }
+
+    void add(T record) throws IOException {
+        buffer.add(record);
+        size++;
+        if (buffer.size() == chunkSize) {
+            spill();
+        }
+    }
+
+    /** Number of records added */
+    long size() {
+        return size;
+    }
+
+    private void spill() throws IOException {
+        buffer.sort(order);
+        File chunk = File.createTempFile("sort", ".bin", directory);
+        chunks.add(chunk);
+        chunkSizes.add(buffer.size());
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(chunk)))) {
+            for (T record : buffer) {
+                codec.write(out, record);
+            }
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Ends adding and returns the records in order. Can be called once.
+     */
+    Cursor<T> sorted() throws IOException {
+        if (chunks.isEmpty()) {
+            buffer.sort(order);
+            List<T> records = new ArrayList<>(buffer);
+            buffer.clear();
+            return new Cursor<T>() {
+                private int next;
+
+                @Override
+                T read() {
+                    return next < records.size() ? records.get(next++) : null;
+                }
+            };
+        }
+        if (!buffer.isEmpty()) {
+            spill();
+        }
+
+        PriorityQueue<Source> heads = new PriorityQueue<>((a, b) -> {
+            int byRecord = order.compare(a.head, b.head);
+            return byRecord != 0 ? byRecord : Integer.compare(a.chunk, b.chunk);
+        });
+        for (int c = 0; c < chunks.size(); c++) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(chunks.get(c))));
+            readers.add(in);
+            Source source = new Source(c, in, chunkSizes.get(c));
+            if (source.advance()) {
+                heads.add(source);
+            }
+        }
+        return new Cursor<T>() {
+            @Override
+            T read() throws IOException {
+                Source source = heads.poll();
+                if (source == null) {
+                    return null;
+                }
+                T record = source.head;
+                if (source.advance()) {
+                    heads.add(source);
+                }
+                return record;
+            }
+        };
+    }
+
+    /** Deletes the chunk files */
+    @Override
+    public void close() throws IOException {
+        for (DataInputStream in : readers) {
+            in.close();
+        }
+        for (File chunk : chunks) {
+            if (!chunk.delete() && chunk.exists()) {
+                DPWLog.warn("Could not delete " + chunk);
+            }
+        }
+        readers.clear();
+        chunks.clear();
+    }
+
+    private final class Source {
+        final int chunk;
+        final DataInputStream in;
+        int remaining;
+        T head;
+
+        Source(int chunk, DataInputStream in, int remaining) {
+            this.chunk = chunk;
+            this.in = in;
+            this.remaining = remaining;
+        }
+
+        boolean advance() throws IOException {
+            if (remaining == 0) {
+                return false;
+            }
+            remaining--;
+            head = codec.read(in);
+            return true;
+        }
+    }
+
+    /**
+     * Sorted records, one at a time, with a look at the next one for grouping.
+     *
+     * @param <T> record type
+     */
+    abstract static class Cursor<T> {
+        private T peeked;
+
+        abstract T read() throws IOException;
+
+        /** The next record without consuming it, or null at the end */
+        T peek() throws IOException {
+            if (peeked == null) {
+                peeked = read();
+            }
+            return peeked;
+        }
+
+        /** The next record, or null at the end */
+        T next() throws IOException {
+            T record = peek();
+            peeked = null;
+            return record;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package org.openstreetmap.josm.plugins.dpwmapper;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hash of the old buildings by quantized geometry, to recognise a new building that retraces an
+ * old one almost exactly without scoring all of its candidates.
+ *
+ * The key is the centroid snapped to a grid as fine as the tolerance, plus the vertex count. A
+ * lookup probes the nine cells around the new centroid, so a centroid near a cell edge is still
+ * found, and verifies every hit vertex by vertex: with the rings aligned at the old vertex nearest
+ * to the first new one, in either orientation, each new vertex must be within the tolerance of its
+ * old counterpart. Only a single verified old building is a match; none or several fall through to
+ * the full overlap scoring. Multipolygon buildings are never fingerprinted.
+ *
+ * The hash follows its snapshot: after a building of the snapshot is re-extracted in place,
+ * {@link #update} moves it to the bucket of its new geometry.
+ */
+final class GeometryFingerprint {
+
+    private final BuildingSnapshot snapshot;
+    private final double tolerance;
+    private final Map<Long, int[]> buckets = new HashMap<>();
+    /** Bucket key of every fingerprinted building, valid where {@code indexed} is set */
+    private final long[] keys;
+    private final boolean[] indexed;
+
+    private GeometryFingerprint(BuildingSnapshot snapshot, double tolerance) {
+        this.snapshot = snapshot;
+        this.tolerance = tolerance;
+        this.keys = new long[snapshot.size()];
+        this.indexed = new boolean[snapshot.size()];
+    }
+
+    /**
+     * Fingerprints every single-ring building of the snapshot.
+     *
+     * @param tolerance largest vertex offset, in metres, of a retrace that counts as unchanged
+     */
+    static GeometryFingerprint index(BuildingSnapshot snapshot, double tolerance) {
+        if (!(tolerance > 0)) {
+            throw new IllegalArgumentException("Fingerprint tolerance must be positive: " + tolerance);
+        }
+        GeometryFingerprint fingerprints = new GeometryFingerprint(snapshot, tolerance);
+        for (int i = 0; i < snapshot.size(); i++) {
+            fingerprints.add(i);
+        }
+        return fingerprints;
+    }
+
+    /**
+     * Re-files a building of the snapshot after its geometry was updated or cleared.
+     */
+    void update(int i) {
+        if (indexed[i]) {
+            int[] bucket = buckets.get(keys[i]);
+            int k = 0;
+            while (bucket[k] != i) {
+                k++;
+            }
+            if (bucket.length == 1) {
+                buckets.remove(keys[i]);
+            } else {
+                int[] rest = Arrays.copyOf(bucket, bucket.length - 1);
+                System.arraycopy(bucket, k + 1, rest, k, bucket.length - k - 1);
+                buckets.put(keys[i], rest);
+            }
+            indexed[i] = false;
+        }
+        add(i);
+    }
+
+    private void add(int i) {
+        if (!isEligible(snapshot, i)) {
+            return;
+        }
+        long key = key(cell(snapshot.centroids[i * 2]), cell(snapshot.centroids[i * 2 + 1]), snapshot.vertexCount(i));
+        int[] bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = new int[] {i};
+        } else {
+            bucket = Arrays.copyOf(bucket, bucket.length + 1);
+            bucket[bucket.length - 1] = i;
+        }
+        buckets.put(key, bucket);
+        keys[i] = key;
+        indexed[i] = true;
+    }
+
+    double tolerance() {
+        return tolerance;
+    }
+
+    private static boolean isEligible(BuildingSnapshot snapshot, int i) {
+        return snapshot.isValid(i) && !snapshot.relations[i] && snapshot.multipolygons[i] == null;
+    }
+
+    /**
+     * Returns the only old building that the new building retraces within the tolerance, or -1.
+     * Both snapshots must be projected with the same reference latitude.
+     */
+    int find(BuildingSnapshot newSnapshot, int newId) {
+        if (!isEligible(newSnapshot, newId)) {
+            return -1;
+        }
+        long cellX = cell(newSnapshot.centroids[newId * 2]);
+        long cellY = cell(newSnapshot.centroids[newId * 2 + 1]);
+        int vertices = newSnapshot.vertexCount(newId);
+        int found = -1;
+        for (long dx = -1; dx <= 1; dx++) {
+            for (long dy = -1; dy <= 1; dy++) {
+                int[] bucket = buckets.get(key(cellX + dx, cellY + dy, vertices));
+                if (bucket == null) {
+                    continue;
+                }
+                for (int oldId : bucket) {
+                    if (sameShape(newSnapshot, newId, oldId)) {
+                        if (found >= 0) {
+                            // Two old buildings fit, e.g. a duplicate in the old data: let the scores decide
+                            return -1;
+                        }
+                        found = oldId;
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    private long cell(double coordinate) {
+        return (long) Math.floor(coordinate / tolerance);
+    }
+
+    /** 24 bits per cell coordinate and 16 for the vertex count; wrapped values only cost a verification */
+    private static long key(long cellX, long cellY, int vertices) {
+        return (cellX & 0xFFFFFFL) << 40 | (cellY & 0xFFFFFFL) << 16 | (vertices & 0xFFFFL);
+    }
+
+    private boolean sameShape(BuildingSnapshot newSnapshot, int newId, int oldId) {
+        int count = newSnapshot.vertexCount(newId);
+        if (snapshot.vertexCount(oldId) != count) {
+            return false;
+        }
+        double[] newCoords = newSnapshot.coords;
+        double[] oldCoords = snapshot.coords;
+        int newOffset = newSnapshot.offset(newId);
+        int oldOffset = snapshot.offset(oldId);
+        double limit = tolerance * tolerance;
+
+        // Rings may start anywhere: align at the old vertex nearest to the first new one
+        int start = -1;
+        double nearest = limit;
+        for (int k = 0; k < count; k++) {
+            double distance = distanceSquared(newCoords, newOffset, oldCoords, oldOffset + k * 2);
+            if (distance <= nearest) {
+                nearest = distance;
+                start = k;
+            }
+        }
+        if (start < 0) {
+            return false;
+        }
+        return follows(newCoords, newOffset, oldCoords, oldOffset, count, start, 1, limit)
+            || follows(newCoords, newOffset, oldCoords, oldOffset, count, start, count - 1, limit);
+    }
+
+    /** Checks the remaining vertices, walking the old ring forward (step 1) or backward (step count - 1) */
+    private static boolean follows(double[] newCoords, int newOffset, double[] oldCoords, int oldOffset,
+            int count, int start, int step, double limit) {
+        for (int v = 1; v < count; v++) {
+            int k = (start + v * step) % count;
+            if (distanceSquared(newCoords, newOffset + v * 2, oldCoords, oldOffset + k * 2) > limit) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static double distanceSquared(double[] a, int p, double[] b, int q) {
+        double dx = a[p] - b[q];
+        double dy = a[p + 1] - b[q + 1];
+        return dx * dx + dy * dy;
+    }
+}
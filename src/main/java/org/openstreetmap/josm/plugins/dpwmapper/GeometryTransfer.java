@@ -0,0 +1,287 @@
+package org.openstreetmap.josm.plugins.dpwmapper;
+
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Relation;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.spi.preferences.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Collects the edits that give an old building the geometry of the new one drawn over it.
+ */
+final class GeometryTransfer {
+
+    private GeometryTransfer() {
+        // Hide default constructor for utilities classes
+    }
+
+    /**
+     * How the new geometry is moved onto the old way.
+     */
+    enum Mode {
+        /**
+         * Old nodes are moved onto the new vertex positions and keep their ids; only
+         * surplus nodes are created or deleted. Smaller changesets, no orphaned nodes.
+         */
+        REUSE_NODES,
+        /** The old way takes the new way's nodes; the old nodes are left behind (default) */
+        REPLACE_NODES;
+
+        static Mode fromPreferences() {
+            String value = Config.getPref().get("dpwmapper.merge.transfer", "replace");
+            return "reuse".equalsIgnoreCase(value) ? REUSE_NODES : REPLACE_NODES;
+        }
+    }
+
+    /**
+     * Returns the edits that move the geometry of {@code newWay} onto {@code oldWay}
+     * and delete {@code newWay}. The old way keeps its id and tags.
+     */
+    static MergeCommand.Edits transfer(Way oldWay, Way newWay, Mode mode) {
+        return transfer(oldWay, newWay, mode, node -> false);
+    }
+
+    /**
+     * Like {@link #transfer(Way, Way, Mode)}, additionally keeping the {@code pinned} nodes
+     * as they are even if they look exclusive to one of the ways.
+     */
+    static MergeCommand.Edits transfer(Way oldWay, Way newWay, Mode mode, Predicate<Node> pinned) {
+        MergeCommand.Edits edits = new MergeCommand.Edits();
+        if (mode == Mode.REPLACE_NODES) {
+            edits.changeNodes(oldWay, newWay.getNodes());
+            edits.delete(newWay);
+            return edits;
+        }
+        reuseNodes(oldWay, newWay, pinned, edits);
+        return edits;
+    }
+
+    /**
+     * Returns the edits that drop a new way that retraces an old building unchanged: the way and
+     * its new nodes that nothing else uses are deleted, and the old building is left as it is.
+     */
+    static MergeCommand.Edits discard(Way newWay, Predicate<Node> pinned) {
+        MergeCommand.Edits edits = new MergeCommand.Edits();
+        edits.delete(newWay);
+        List<Node> newRing = ring(newWay);
+        for (int j = 0; j < newRing.size(); j++) {
+            Node node = newRing.get(j);
+            if (node.isNew() && !pinned.test(node) && isExclusive(newRing, j, newWay)) {
+                edits.delete(node);
+            }
+        }
+        return edits;
+    }
+
+    /**
+     * Returns true if the rings of the two buildings pair up one to one: as many outer and inner
+     * rings on both sides, each a single closed way. Always true for two ways.
+     */
+    static boolean canTransfer(OsmPrimitive oldBuilding, OsmPrimitive newBuilding) {
+        if (oldBuilding instanceof Way && newBuilding instanceof Way) {
+            return true;
+        }
+        return haveSameRings(BuildingRings.of(oldBuilding), BuildingRings.of(newBuilding));
+    }
+
+    private static boolean haveSameRings(BuildingRings oldRings, BuildingRings newRings) {
+        return oldRings != null && newRings != null
+            && oldRings.size() == newRings.size() && oldRings.innerCount() == newRings.innerCount()
+            && oldRings.isWayPerRing() && newRings.isWayPerRing();
+    }
+
+    /**
+     * Like {@link #transfer(Way, Way, Mode, Predicate)} for buildings that may be multipolygon
+     * relations. Outer rings are paired with outer rings and inner with inner, nearest first, and
+     * each pair is transferred like two ways. A new relation is deleted before its member ways;
+     * the old building keeps its ids, tags and members.
+     *
+     * @throws IllegalArgumentException if {@link #canTransfer} is false for the buildings
+     */
+    static MergeCommand.Edits transfer(OsmPrimitive oldBuilding, OsmPrimitive newBuilding, Mode mode, Predicate<Node> pinned) {
+        if (oldBuilding instanceof Way && newBuilding instanceof Way) {
+            return transfer((Way) oldBuilding, (Way) newBuilding, mode, pinned);
+        }
+        BuildingRings oldRings = BuildingRings.of(oldBuilding);
+        BuildingRings newRings = BuildingRings.of(newBuilding);
+        if (!haveSameRings(oldRings, newRings)) {
+            throw new IllegalArgumentException("Rings of " + oldBuilding.getUniqueId() + " and "
+                + newBuilding.getUniqueId() + " cannot be paired");
+        }
+        MergeCommand.Edits edits = new MergeCommand.Edits();
+        if (newBuilding instanceof Relation) {
+            edits.delete(newBuilding);
+        }
+        int[] pairs = pairRings(oldRings, newRings);
+        for (int r = 0; r < pairs.length; r++) {
+            edits.addAll(transfer(oldRings.way(pairs[r]), newRings.way(r), mode, pinned));
+        }
+        return edits;
+    }
+
+    /**
+     * Pairs each new ring with the nearest old ring of the same kind, closest pairs first, by the
+     * mean position of their nodes. Returns for each new ring the index of its old ring.
+     */
+    private static int[] pairRings(BuildingRings oldRings, BuildingRings newRings) {
+        List<double[]> pairs = new ArrayList<>();
+        for (int r = 0; r < newRings.size(); r++) {
+            LatLon newCenter = center(newRings.nodes(r));
+            double xScale = Math.cos(Math.toRadians(newCenter.lat()));
+            for (int k = 0; k < oldRings.size(); k++) {
+                if (oldRings.isInner(k) != newRings.isInner(r)) {
+                    continue;
+                }
+                LatLon oldCenter = center(oldRings.nodes(k));
+                double dx = (oldCenter.lon() - newCenter.lon()) * xScale;
+                double dy = oldCenter.lat() - newCenter.lat();
+                pairs.add(new double[] {dx * dx + dy * dy, r, k});
+            }
+        }
+        Collections.sort(pairs, (a, b) -> Double.compare(a[0], b[0]));
+
+        int[] pairing = new int[newRings.size()];
+        Arrays.fill(pairing, -1);
+        boolean[] oldTaken = new boolean[oldRings.size()];
+        for (double[] pair : pairs) {
+            int r = (int) pair[1];
+            int k = (int) pair[2];
+            if (pairing[r] < 0 && !oldTaken[k]) {
+                pairing[r] = k;
+                oldTaken[k] = true;
+            }
+        }
+        return pairing;
+    }
+
+    private static LatLon center(List<Node> ring) {
+        double lat = 0;
+        double lon = 0;
+        for (Node node : ring) {
+            lat += node.lat();
+            lon += node.lon();
+        }
+        return ring.isEmpty() ? new LatLon(0, 0) : new LatLon(lat / ring.size(), lon / ring.size());
+    }
+
+    /**
+     * Pairs each replaceable new vertex with the nearest free reusable old node, closest pairs first.
+     * Nodes shared with other ways, tagged nodes and existing nodes the mapper snapped to are never
+     * reused or deleted, so connections to neighbouring features survive the merge.
+     */
+    private static void reuseNodes(Way oldWay, Way newWay, Predicate<Node> pinned, MergeCommand.Edits edits) {
+        List<Node> oldRing = ring(oldWay);
+        List<Node> newRing = ring(newWay);
+
+        boolean[] oldReusable = new boolean[oldRing.size()];
+        for (int k = 0; k < oldRing.size(); k++) {
+            oldReusable[k] = !pinned.test(oldRing.get(k)) && isExclusive(oldRing, k, oldWay);
+        }
+        boolean[] newReplaceable = new boolean[newRing.size()];
+        for (int j = 0; j < newRing.size(); j++) {
+            newReplaceable[j] = newRing.get(j).isNew() && !pinned.test(newRing.get(j)) && isExclusive(newRing, j, newWay);
+        }
+
+        int[] replacement = pairNearest(oldRing, oldReusable, newRing, newReplaceable);
+
+        List<Node> nodes = new ArrayList<>(newRing.size() + 1);
+        edits.delete(newWay);
+        boolean[] oldUsed = new boolean[oldRing.size()];
+        for (int j = 0; j < newRing.size(); j++) {
+            Node newNode = newRing.get(j);
+            if (replacement[j] < 0) {
+                nodes.add(newNode);
+                continue;
+            }
+            Node oldNode = oldRing.get(replacement[j]);
+            oldUsed[replacement[j]] = true;
+            LatLon target = newNode.getCoor();
+            if (!target.equals(oldNode.getCoor())) {
+                edits.move(oldNode, target);
+            }
+            nodes.add(oldNode);
+            edits.delete(newNode);
+        }
+        // Reusable old nodes without a new vertex would be orphaned
+        for (int k = 0; k < oldRing.size(); k++) {
+            if (oldReusable[k] && !oldUsed[k]) {
+                edits.delete(oldRing.get(k));
+            }
+        }
+        nodes.add(nodes.get(0));
+
+        edits.changeNodes(oldWay, nodes);
+    }
+
+    /**
+     * Greedy nearest pairing. Returns for each new vertex the index of its old node, or -1.
+     * Buildings have few vertices, so all pairs are simply sorted by distance.
+     */
+    private static int[] pairNearest(List<Node> oldRing, boolean[] oldReusable, List<Node> newRing, boolean[] newReplaceable) {
+        int[] replacement = new int[newRing.size()];
+        Arrays.fill(replacement, -1);
+
+        // Equirectangular distances are enough to rank neighbours within one building
+        double xScale = newRing.isEmpty() ? 1 : Math.cos(Math.toRadians(newRing.get(0).lat()));
+        List<double[]> pairs = new ArrayList<>();
+        for (int j = 0; j < newRing.size(); j++) {
+            if (!newReplaceable[j]) {
+                continue;
+            }
+            Node newNode = newRing.get(j);
+            for (int k = 0; k < oldRing.size(); k++) {
+                if (!oldReusable[k]) {
+                    continue;
+                }
+                Node oldNode = oldRing.get(k);
+                double dx = (oldNode.lon() - newNode.lon()) * xScale;
+                double dy = oldNode.lat() - newNode.lat();
+                pairs.add(new double[] {dx * dx + dy * dy, j, k});
+            }
+        }
+        Collections.sort(pairs, (a, b) -> Double.compare(a[0], b[0]));
+
+        boolean[] oldTaken = new boolean[oldRing.size()];
+        for (double[] pair : pairs) {
+            int j = (int) pair[1];
+            int k = (int) pair[2];
+            if (replacement[j] < 0 && !oldTaken[k]) {
+                replacement[j] = k;
+                oldTaken[k] = true;
+            }
+        }
+        return replacement;
+    }
+
+    /**
+     * Returns true if the ring node is untagged, has a position, belongs to no primitive but {@code way}
+     * and appears only once in the ring (a pinched outline keeps its shared vertex).
+     */
+    private static boolean isExclusive(List<Node> ring, int index, Way way) {
+        Node node = ring.get(index);
+        if (node.hasKeys() || node.isDeleted() || !node.isLatLonKnown() || ring.lastIndexOf(node) != ring.indexOf(node)) {
+            return false;
+        }
+        for (OsmPrimitive referrer : node.getReferrers()) {
+            if (referrer != way) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Nodes of a closed way without the repeated closing node.
+     */
+    private static List<Node> ring(Way way) {
+        List<Node> nodes = way.getNodes();
+        return new ArrayList<>(nodes.subList(0, Math.max(0, nodes.size() - 1)));
+    }
+}
@@ -0,0 +1,255 @@
+package org.openstreetmap.josm.plugins.dpwmapper;
+
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.data.osm.event.*;
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.MapFrame;
+import org.openstreetmap.josm.gui.util.GuiHelper;
+import org.openstreetmap.josm.spi.preferences.Config;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Optional "merge as you trace" mode: scores each new building against the old buildings
+ * as soon as it is drawn or edited, so Merge &amp; Fix finds the work already done.
+ *
+ * Edits are collected from dataset events and scored in one background thread once the
+ * data set has been quiet for a moment. The best pending match of the last scored building
+ * is shown in the status line. Scores are handed to {@link MergeEngine} as
+ * {@link MergeEngine.PrecomputedScores}; a building edited after scoring, a change to the
+ * old buildings or to the matching gates simply makes Merge &amp; Fix score it again.
+ * Enable with {@code dpwmapper.merge.live=true}.
+ */
+final class LiveMatchTracker implements DataSetListener, MergeEngine.PrecomputedScores {
+
+    static final String LIVE_PREFERENCE = "dpwmapper.merge.live";
+    private static final long QUIET_PERIOD_MS = 300;
+
+    private static final Map<DataSet, LiveMatchTracker> TRACKERS = new ConcurrentHashMap<>();
+
+    // One daemon thread for all layers; scoring a handful of buildings takes milliseconds
+    private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "dpwmapper-live-match");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final DataSet dataSet;
+    private final OldBuildingCache cache;
+    private final Map<Way, Scored> scores = new ConcurrentHashMap<>();
+
+    // Guarded by this
+    private final Set<Way> pending = new HashSet<>();
+    private boolean scheduled;
+
+    /** Scores of one new building, the cache generation they refer to and the gates that filtered them */
+    private static final class Scored {
+        final MergeEngine.ScoredCandidates candidates;
+        final long generation;
+        final CandidateGates gates;
+
+        Scored(MergeEngine.ScoredCandidates candidates, long generation, CandidateGates gates) {
+            this.candidates = candidates;
+            this.generation = generation;
+            this.gates = gates;
+        }
+    }
+
+    private LiveMatchTracker(DataSet dataSet) {
+        this.dataSet = dataSet;
+        this.cache = OldBuildingCache.forDataSet(dataSet);
+    }
+
+    /**
+     * Starts tracking the data set if live mode is enabled in the preferences.
+     */
+    static void startIfEnabled(DataSet dataSet) {
+        if (Config.getPref().getBoolean(LIVE_PREFERENCE, false)) {
+            TRACKERS.computeIfAbsent(dataSet, ds -> {
+                LiveMatchTracker tracker = new LiveMatchTracker(ds);
+                ds.addDataSetListener(tracker);
+                DPWLog.debug(() -> "Live matching enabled");
+                return tracker;
+            });
+        }
+    }
+
+    /**
+     * Stops tracking a data set whose layer is gone.
+     */
+    static void stop(DataSet dataSet) {
+        LiveMatchTracker tracker = TRACKERS.remove(dataSet);
+        if (tracker != null) {
+            dataSet.removeDataSetListener(tracker);
+        }
+    }
+
+    /**
+     * Returns the tracker of the data set, or null if live mode is off for it.
+     */
+    static LiveMatchTracker get(DataSet dataSet) {
+        return TRACKERS.get(dataSet);
+    }
+
+    @Override
+    public MergeEngine.ScoredCandidates get(OsmPrimitive newBuilding, long generation, CandidateGates gates) {
+        Scored scored = scores.get(newBuilding);
+        return scored != null && scored.generation == generation && scored.gates.equals(gates) ? scored.candidates : null;
+    }
+
+    private static boolean isNewBuilding(Way way) {
+        return way.isNew() && !way.isDeleted() && way.isClosed() && way.hasTag("building");
+    }
+
+    private void changed(OsmPrimitive primitive) {
+        if (!(primitive instanceof Way) || !primitive.isNew()) {
+            return;
+        }
+        Way way = (Way) primitive;
+        scores.remove(way);
+        if (!isNewBuilding(way)) {
+            return;
+        }
+        synchronized (this) {
+            pending.add(way);
+            if (!scheduled) {
+                scheduled = true;
+                EXECUTOR.schedule(this::scorePending, QUIET_PERIOD_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Scores the buildings edited since the last run (tracker thread).
+     */
+    private void scorePending() {
+        List<Way> ways;
+        synchronized (this) {
+            ways = new ArrayList<>(pending);
+            pending.clear();
+            scheduled = false;
+        }
+        if (TRACKERS.get(dataSet) != this) {
+            return;
+        }
+
+        String status = null;
+        Lock lock = dataSet.getReadLock();
+        lock.lock();
+        try {
+            ways.removeIf(way -> !isNewBuilding(way));
+            if (ways.isEmpty()) {
+                return;
+            }
+            // Same profile as Merge & Fix, so the scores are interchangeable. Merge & Fix ignores
+            // scores made with other gates, e.g. before a profile switch or a threshold edit
+            MatchingProfile profile = MatchingProfile.fromPreferences();
+            CandidateGates gates = profile.gates();
+            OldBuildingCache.View view = cache.refresh(profile);
+            BuildingSnapshot snapshot = BuildingSnapshot.of(ways, view.snapshot.referenceLatitude);
+            PolygonKernel.Scratch scratch = new PolygonKernel.Scratch();
+            for (int i = 0; i < ways.size(); i++) {
+                MergeEngine.ScoredCandidates candidates =
+                    MergeEngine.scoreCandidates(snapshot, i, view.snapshot, view.index, gates, null, scratch);
+                scores.put(ways.get(i), new Scored(candidates, view.generation, gates));
+                status = describe(candidates, view);
+            }
+        } catch (RuntimeException ex) {
+            DPWLog.error("Live matching failed", ex);
+        } finally {
+            lock.unlock();
+        }
+
+        if (status != null) {
+            String text = status;
+            GuiHelper.runInEDT(() -> showStatus(text));
+        }
+    }
+
+    /** Status line text for the best candidate above the threshold, as Merge &amp; Fix would see it */
+    private static String describe(MergeEngine.ScoredCandidates candidates, OldBuildingCache.View view) {
+        int best = MergeEngine.findBestMatch(candidates, new boolean[view.buildings.size()]);
+        if (best < 0) {
+            return "DPW: new building, no matching old building";
+        }
+        return String.format(Locale.ROOT, "DPW: new building will replace old building %d (%.0f%% overlap)",
+            view.snapshot.ids[best], candidates.overlapOf(best) * 100);
+    }
+
+    private void showStatus(String text) {
+        MapFrame map = MainApplication.getMap();
+        if (map != null && map.statusLine != null && MainApplication.getLayerManager().getEditDataSet() == dataSet) {
+            map.statusLine.setHelpText(text);
+        }
+    }
+
+    @Override
+    public void primitivesAdded(PrimitivesAddedEvent event) {
+        for (OsmPrimitive primitive : event.getPrimitives()) {
+            changed(primitive);
+        }
+    }
+
+    @Override
+    public void primitivesRemoved(PrimitivesRemovedEvent event) {
+        for (OsmPrimitive primitive : event.getPrimitives()) {
+            if (primitive instanceof Way) {
+                scores.remove(primitive);
+            }
+        }
+    }
+
+    @Override
+    public void wayNodesChanged(WayNodesChangedEvent event) {
+        changed(event.getChangedWay());
+    }
+
+    @Override
+    public void nodeMoved(NodeMovedEvent event) {
+        Node node = event.getNode();
+        for (OsmPrimitive referrer : node.getReferrers()) {
+            changed(referrer);
+        }
+    }
+
+    @Override
+    public void tagsChanged(TagsChangedEvent event) {
+        changed(event.getPrimitive());
+    }
+
+    @Override
+    public void dataChanged(DataChangedEvent event) {
+        if (event.getEvents() != null) {
+            for (AbstractDatasetChangedEvent e : event.getEvents()) {
+                e.fire(this);
+            }
+        } else {
+            // JOSM drops the event list for very large batches. The generation check does not
+            // cover edits of new buildings, so forget everything and let Merge & Fix score it
+            scores.clear();
+        }
+    }
+
+    @Override
+    public void relationMembersChanged(RelationMembersChangedEvent event) {
+        // Relations are not scored
+    }
+
+    @Override
+    public void otherDatasetChange(AbstractDatasetChangedEvent event) {
+        // Flag and changeset changes do not affect geometry
+    }
+}
@@ -0,0 +1,150 @@
+package org.openstreetmap.josm.plugins.dpwmapper;
+
+import org.openstreetmap.josm.spi.preferences.Config;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Named set of matching parameters, so speed and accuracy can be tuned per project area
+ * without a rebuild.
+ *
+ * Profiles ship in {@code dpwmapper.properties} as {@code dpwmapper.merge.profile.<name>.<key>};
+ * {@code dpwmapper.merge.profile} selects one. A JOSM preference of the same name overrides any
+ * bundled value, and profiles that exist only in the preferences work too. Missing keys fall back
+ * to the built-in defaults, which match the behaviour before profiles existed.
+ */
+final class MatchingProfile {
+
+    static final String PROFILE_PREFERENCE = "dpwmapper.merge.profile";
+    static final String DEFAULT_NAME = "default";
+
+    private static final double DEFAULT_THRESHOLD = 0.50;
+    private static final double DEFAULT_FINGERPRINT_METRES = 0.5;
+    /** Cell size used when the index cannot measure the buildings and the profile leaves it automatic */
+    static final double DEFAULT_GRID_CELL_METRES = 50;
+
+    private static final Properties BUNDLED = loadBundled();
+
+    final String name;
+    /** A pair matches if its intersection over union is above this */
+    final double threshold;
+    /** Edge of a grid index cell; 0 picks it from the average building size */
+    final double gridCellMetres;
+    /** Reject pairs whose smaller area is at most this fraction of the larger; only matters above the threshold */
+    final double minAreaRatio;
+    final double centroidFactor;
+    final double minBoxOverlap;
+    /** Largest vertex offset of a retrace that matches by {@link GeometryFingerprint}; 0 disables the fast path */
+    final double fingerprintMetres;
+
+    MatchingProfile(String name, double threshold, double gridCellMetres, double minAreaRatio,
+            double centroidFactor, double minBoxOverlap, double fingerprintMetres) {
+        if (!(threshold >= 0 && threshold < 1)) {
+            throw new IllegalArgumentException("Overlap threshold of profile " + name + " must be in [0, 1): " + threshold);
+        }
+        this.name = name;
+        this.threshold = threshold;
+        this.gridCellMetres = Math.max(0, gridCellMetres);
+        this.minAreaRatio = Math.max(0, minAreaRatio);
+        this.centroidFactor = Math.max(0, centroidFactor);
+        this.minBoxOverlap = Math.max(0, minBoxOverlap);
+        this.fingerprintMetres = Math.max(0, fingerprintMetres);
+    }
+
+    /** The built-in defaults: 50% overlap, automatic grid, only the exact gates, half-metre fingerprints */
+    static MatchingProfile defaults() {
+        return new MatchingProfile(DEFAULT_NAME, DEFAULT_THRESHOLD, 0, 0, 0, 0, DEFAULT_FINGERPRINT_METRES);
+    }
+
+    /**
+     * Returns the profile selected in the preferences.
+     */
+    static MatchingProfile fromPreferences() {
+        return named(setting(PROFILE_PREFERENCE, DEFAULT_NAME));
+    }
+
+    /**
+     * Returns the profile of the given name. The gate preferences
+     * {@code dpwmapper.merge.gate.centroid-factor} and {@code dpwmapper.merge.gate.bbox-iou}
+     * still override every profile when set.
+     *
+     * @throws IllegalArgumentException if no profile of that name is bundled or set in the preferences
+     */
+    static MatchingProfile named(String name) {
+        String prefix = PROFILE_PREFERENCE + "." + name + ".";
+        if (!DEFAULT_NAME.equals(name) && setting(prefix + "threshold", null) == null) {
+            throw new IllegalArgumentException("Unknown matching profile: " + name);
+        }
+        MatchingProfile defaults = defaults();
+        return new MatchingProfile(name,
+            number(prefix + "threshold", defaults.threshold),
+            number(prefix + "grid-cell-metres", defaults.gridCellMetres),
+            number(prefix + "min-area-ratio", defaults.minAreaRatio),
+            Config.getPref().getDouble(CandidateGates.CENTROID_PREFERENCE,
+                number(prefix + "centroid-factor", defaults.centroidFactor)),
+            Config.getPref().getDouble(CandidateGates.BBOX_IOU_PREFERENCE,
+                number(prefix + "bbox-iou", defaults.minBoxOverlap)),
+            number(prefix + "fingerprint-metres", defaults.fingerprintMetres));
+    }
+
+    /**
+     * Returns the preference of the given key, else its value in {@code dpwmapper.properties},
+     * else the fallback.
+     */
+    static String setting(String key, String fallback) {
+        String value = Config.getPref().get(key, null);
+        if (value == null || value.trim().isEmpty()) {
+            value = BUNDLED.getProperty(key);
+        }
+        return value == null || value.trim().isEmpty() ? fallback : value.trim();
+    }
+
+    private static double number(String key, double fallback) {
+        String value = setting(key, null);
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException ex) {
+            DPWLog.warn("Ignoring " + key + "=" + value + ", not a number");
+            return fallback;
+        }
+    }
+
+    private static Properties loadBundled() {
+        Properties properties = new Properties();
+        try (InputStream in = MatchingProfile.class.getResourceAsStream("/dpwmapper.properties")) {
+            if (in != null) {
+                properties.load(in);
+            }
+        } catch (IOException ex) {
+            DPWLog.error("Could not read dpwmapper.properties", ex);
+        }
+        return properties;
+    }
+
+    /**
+     * The candidate gates of this profile.
+     */
+    CandidateGates gates() {
+        return new CandidateGates(threshold, minAreaRatio, centroidFactor, minBoxOverlap);
+    }
+
+    /**
+     * Cell size for a grid index over the given boxes: the profile's fixed size, or one measured
+     * from the boxes if the profile leaves it automatic.
+     */
+    double cellSize(double[] boxes, int count) {
+        return gridCellMetres > 0 ? gridCellMetres : SpatialGridIndex.suggestCellSize(boxes, count, DEFAULT_GRID_CELL_METRES);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%s (threshold=%s grid-cell=%s)", name, threshold,
+            gridCellMetres > 0 ? gridCellMetres + "m" : "auto");
+    }
+}
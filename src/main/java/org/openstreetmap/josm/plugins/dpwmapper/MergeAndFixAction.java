@@ -1,24 +1,24 @@
 package org.openstreetmap.josm.plugins.dpwmapper;
 
 import org.openstreetmap.josm.actions.JosmAction;
-import org.openstreetmap.josm.command.ChangeCommand;
-import org.openstreetmap.josm.command.DeleteCommand;
-import org.openstreetmap.josm.command.SequenceCommand;
-import org.openstreetmap.josm.command.Command;
 import org.openstreetmap.josm.data.osm.*;
-import org.openstreetmap.josm.data.osm.BBox;
 import org.openstreetmap.josm.data.UndoRedoHandler;
 import org.openstreetmap.josm.gui.MainApplication;
 import org.openstreetmap.josm.gui.Notification;
 import org.openstreetmap.josm.gui.layer.OsmDataLayer;
-import org.openstreetmap.josm.tools.Geometry;
+import org.openstreetmap.josm.gui.util.GuiHelper;
+import org.openstreetmap.josm.spi.preferences.Config;
 import org.openstreetmap.josm.tools.Shortcut;
 
-import javax.swing.JOptionPane;
+import javax.swing.*;
+import java.awt.BorderLayout;
+import java.awt.Font;
 import java.awt.event.ActionEvent;
 import java.awt.event.KeyEvent;
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * The "Merge & Fix" action that:
@@ -26,393 +26,386 @@ import java.util.stream.Collectors;
  * 2. Transfers geometry from new buildings to old buildings
  * 3. Deletes temporary new buildings
  * 4. Preserves OSM history and tags
+ *
+ * As "Preview Merge" it only plans the merge and shows the result in a {@link MergePreviewLayer},
+ * from where it can be applied.
  */
 public class MergeAndFixAction extends JosmAction {
     
-    private static final double OVERLAP_THRESHOLD = 0.50; // 50%
+    /** Also select the new nodes of the preserved buildings after a merge, not only the buildings */
+    static final String SELECT_NODES_PREFERENCE = "dpwmapper.merge.select-nodes";
+    
+    private final AtomicBoolean isRunning = new AtomicBoolean(false);
+    private final boolean preview;
     
     public MergeAndFixAction() {
+        this(false);
+    }
+    
+    /**
+     * @param preview only plan the merge and show it in a preview layer
+     */
+    public MergeAndFixAction(boolean preview) {
         super(
-            "Merge & Fix",
+            preview ? "Preview Merge" : "Merge & Fix",
             (String) null,  // No icon
-            "Merge new buildings into existing OSM data",
+            preview ? "Show what Merge & Fix would do, without changing the data"
+                : "Merge new buildings into existing OSM data",
             Shortcut.registerShortcut(
-                "tools:dpwmerge",
-                "Tool: DPW Merge and Fix",
+                preview ? "tools:dpwmergepreview" : "tools:dpwmerge",
+                preview ? "Tool: DPW Preview Merge" : "Tool: DPW Merge and Fix",
                 KeyEvent.VK_M,
-                Shortcut.ALT_CTRL
+                preview ? Shortcut.ALT_CTRL_SHIFT : Shortcut.ALT_CTRL
             ),
             true
         );
+        this.preview = preview;
     }
     
     @Override
     public void actionPerformed(ActionEvent e) {
-        System.out.println("\n========================================");
-        System.out.println("[DPWMapper] MERGE & FIX STARTED");
-        System.out.println("========================================");
+        DPWLog.info("Merge & Fix started");
         
         // Get active data layer
         OsmDataLayer layer = MainApplication.getLayerManager().getEditLayer();
         if (layer == null) {
-            System.out.println("[DPWMapper] ERROR: No active data layer");
+            DPWLog.warn("No active data layer");
             new Notification("No active data layer found")
                 .setIcon(JOptionPane.WARNING_MESSAGE)
                 .show();
             return;
         }
         
-        DataSet dataSet = layer.getDataSet();
-        System.out.println("[DPWMapper] Active layer: " + layer.getName());
+        if (!isRunning.compareAndSet(false, true)) {
+            DPWLog.debug(() -> "Merge already running, ignoring");
+            return;
+        }
         
-        // Temporarily disable the clean slate filter to access hidden objects
-        System.out.println("[DPWMapper] Disabling clean slate filter...");
-        disableCleanSlateFilter();
+        DataSet dataSet = layer.getDataSet();
+        DPWLog.debug(() -> "Active layer: " + layer.getName());
         
-        try {
-            // Perform the merge operation
-            MergeResult result = performMerge(dataSet);
-            
-            // Show results to user
-            if (result.commands.isEmpty()) {
-                if (result.newBuildingCount == 0) {
-                    new Notification("No new buildings found to merge.\n\nWorkflow: 1) Download data, 2) Trace new buildings, 3) Run Merge & Fix")
-                        .setIcon(JOptionPane.INFORMATION_MESSAGE)
-                        .setDuration(Notification.TIME_LONG)
-                        .show();
-                } else {
-                    new Notification(String.format("Found %d new buildings but no overlapping matches.\n\nNew buildings preserved.", result.newBuildingCount))
-                        .setIcon(JOptionPane.INFORMATION_MESSAGE)
-                        .setDuration(Notification.TIME_LONG)
-                        .show();
-                }
-            } else {
-                // Execute all commands as a single undoable operation
-                UndoRedoHandler.getInstance().add(
-                    new SequenceCommand("DPW Auto-Merge", result.commands)
-                );
-                
-                String message = String.format(
-                    "✓ Merged %d buildings\n%d new buildings preserved\n\n" +
-                    "VALIDATION TIP:\n" +
-                    "• Only NEW objects are now selected\n" +
-                    "• Click 'Validate' to check ONLY your work\n" +
-                    "• Old data errors (hidden) can be ignored",
-                    result.mergedCount,
-                    result.newBuildingCount - result.mergedCount
-                );
-                
-                new Notification(message)
-                    .setIcon(JOptionPane.INFORMATION_MESSAGE)
-                    .setDuration(Notification.TIME_LONG)
-                    .show();
-                
-                // Select conflicted objects for manual review
-                if (!result.conflicts.isEmpty()) {
-                    dataSet.setSelected(result.conflicts);
-                } else {
-                    // Select only NEW objects for validation
-                    List<OsmPrimitive> newObjects = dataSet.allPrimitives().stream()
-                        .filter(p -> p.isNew() && !p.isDeleted())
-                        .collect(Collectors.toList());
-                    
-                    if (!newObjects.isEmpty()) {
-                        dataSet.setSelected(newObjects);
-                        System.out.println("[DPWMapper] Selected " + newObjects.size() + " new objects for validation");
-                        
-                        // Show helpful message
-                        new Notification("Ready for validation!\n\nOnly NEW objects are selected.\nClick 'Validate' to check your work only.")
-                            .setIcon(JOptionPane.INFORMATION_MESSAGE)
-                            .setDuration(Notification.TIME_LONG)
-                            .show();
-                    }
-                }
-            }
-            
-        } catch (Exception ex) {
-            ex.printStackTrace();
-            new Notification("Merge failed: " + ex.getMessage())
-                .setIcon(JOptionPane.ERROR_MESSAGE)
-                .show();
-        } finally {
-            // Re-enable the clean slate filter
-            enableCleanSlateFilter();
-        }
+        // Hidden old buildings are still in the data set, so the clean slate filter stays on
+        startMerge(dataSet);
     }
     
     /**
-     * Performs the merge operation between new and old buildings.
+     * Runs the merge analysis in a background worker while a progress dialog is shown.
+     * The dialog is modal so the data cannot be edited while it is being analysed;
+     * the resulting commands are applied on the EDT once the worker is done.
      */
-    private MergeResult performMerge(DataSet dataSet) {
-        MergeResult result = new MergeResult();
+    private void startMerge(DataSet dataSet) {
+        JDialog progressDialog = new JDialog(MainApplication.getMainFrame(), "DPW Mapper - Merge & Fix", true);
+        JPanel panel = new JPanel();
+        panel.setBorder(BorderFactory.createEmptyBorder(20, 30, 20, 30));
+        panel.setLayout(new BoxLayout(panel, BoxLayout.Y_AXIS));
         
-        System.out.println("\n[DPWMapper] === MERGE ANALYSIS ===");
+        JLabel titleLabel = new JLabel("Matching new buildings to existing data");
+        titleLabel.setFont(titleLabel.getFont().deriveFont(16f));
+        titleLabel.setAlignmentX(JLabel.CENTER_ALIGNMENT);
         
-        // Separate ways into new and old
-        List<Way> newBuildings = dataSet.getWays().stream()
-            .filter(w -> w.isNew() && !w.isDeleted() && w.isClosed() && w.hasTag("building"))
-            .collect(Collectors.toList());
-            
-        List<Way> oldBuildings = dataSet.getWays().stream()
-            .filter(w -> !w.isNew() && !w.isDeleted() && w.isClosed() && w.hasTag("building"))
-            .collect(Collectors.toList());
+        JLabel statusLabel = new JLabel("Collecting buildings...");
+        statusLabel.setAlignmentX(JLabel.CENTER_ALIGNMENT);
+        
+        JProgressBar progressBar = new JProgressBar();
+        progressBar.setStringPainted(true);
+        progressBar.setAlignmentX(JProgressBar.CENTER_ALIGNMENT);
+        
+        JButton cancelButton = new JButton("Cancel");
+        cancelButton.setAlignmentX(JButton.CENTER_ALIGNMENT);
         
-        result.newBuildingCount = newBuildings.size();
+        panel.add(titleLabel);
+        panel.add(Box.createVerticalStrut(15));
+        panel.add(statusLabel);
+        panel.add(Box.createVerticalStrut(10));
+        panel.add(progressBar);
+        panel.add(Box.createVerticalStrut(15));
+        panel.add(cancelButton);
         
-        System.out.println("[DPWMapper] New buildings: " + newBuildings.size());
-        System.out.println("[DPWMapper] Old buildings: " + oldBuildings.size());
+        progressDialog.add(panel);
+        progressDialog.pack();
+        progressDialog.setLocationRelativeTo(MainApplication.getMainFrame());
+        progressDialog.setDefaultCloseOperation(JDialog.DO_NOTHING_ON_CLOSE);
         
-        // Track which old buildings have been matched
-        Set<Way> matchedOldBuildings = new HashSet<>();
+        // Old buildings are kept per data set, so reruns only re-extract what changed
+        // In live mode most new buildings were already scored while they were traced
+        LiveMatchTracker liveMatches = LiveMatchTracker.get(dataSet);
+        MergeEngine engine = MergeEngine.fromPreferences()
+            .withOldBuildingCache(OldBuildingCache.forDataSet(dataSet))
+            .withPrecomputedScores(liveMatches != null ? liveMatches : MergeEngine.PrecomputedScores.NONE);
+        MergeTrace trace = MergeTrace.fromPreferences();
         
-        // Process each new building
-        for (int i = 0; i < newBuildings.size(); i++) {
-            Way newBuilding = newBuildings.get(i);
-            System.out.println("\n[DPWMapper] Processing new building " + (i+1) + "/" + newBuildings.size());
-            System.out.println("[DPWMapper] New building ID: " + newBuilding.getId());
+        // Published chunks are {processed, total}
+        SwingWorker<MergePlan, int[]> worker = new SwingWorker<MergePlan, int[]>() {
+            @Override
+            protected MergePlan doInBackground() {
+                SwingWorker<?, ?> self = this;
+                MergeEngine.MergeProgress progress = new MergeEngine.MergeProgress() {
+                    @Override
+                    public void buildingProcessed(int processed, int total) {
+                        // Publishing every building would flood the EDT on large merges
+                        int step = Math.max(1, total / 200);
+                        if (processed == total || processed % step == 0) {
+                            publish(new int[] {processed, total});
+                        }
+                    }
+                    
+                    @Override
+                    public boolean isCancelled() {
+                        return self.isCancelled();
+                    }
+                };
+                
+                try {
+                    MergePlan result;
+                    dataSet.getReadLock().lock();
+                    try {
+                        result = engine.plan(dataSet, progress, trace);
+                    } finally {
+                        dataSet.getReadLock().unlock();
+                    }
+                    writeTrace(trace);
+                    return result;
+                } finally {
+                    // Cancelling runs done() at once, while this thread may still hold the read
+                    // lock. The dialog stays up, and a cancelled merge is only finished here,
+                    // once the engine has stopped. Runs before done() of a merge that completes
+                    GuiHelper.runInEDT(() -> {
+                        cancelButton.setEnabled(false);
+                        progressDialog.dispose();
+                        if (isCancelled()) {
+                            DPWLog.info("Merge cancelled by user");
+                            new Notification("Merge & Fix cancelled.\n\nNo changes were made.")
+                                .setIcon(JOptionPane.INFORMATION_MESSAGE)
+                                .show();
+                            isRunning.set(false);
+                        }
+                    });
+                }
+            }
             
-            Way bestMatch = findBestMatch(newBuilding, oldBuildings, matchedOldBuildings);
+            @Override
+            protected void process(List<int[]> chunks) {
+                int[] latest = chunks.get(chunks.size() - 1);
+                progressBar.setMaximum(latest[1]);
+                progressBar.setValue(latest[0]);
+                statusLabel.setText(String.format("Processed %d of %d new buildings", latest[0], latest[1]));
+            }
             
-            if (bestMatch != null) {
-                System.out.println("[DPWMapper] MATCH FOUND with old building ID: " + bestMatch.getId());
-                // Check for conflicts (multiple new buildings matching one old)
-                if (matchedOldBuildings.contains(bestMatch)) {
-                    result.conflicts.add(newBuilding);
-                    result.conflictCount++;
-                    continue;
+            @Override
+            protected void done() {
+                if (isCancelled()) {
+                    // Finished by doInBackground once the engine has actually stopped
+                    return;
                 }
                 
-                // Create the merge commands
                 try {
-                    // Create a new way with old building's ID but new building's geometry
-                    Way updatedWay = new Way(bestMatch);
-                    updatedWay.setNodes(new ArrayList<>(newBuilding.getNodes()));
-                    
-                    // Preserve old building's tags (don't overwrite with new building's tags)
-                    // The geometry changes, but tags stay the same
-                    
-                    result.commands.add(new ChangeCommand(bestMatch, updatedWay));
-                    result.commands.add(new DeleteCommand(newBuilding));
-                    
-                    matchedOldBuildings.add(bestMatch);
-                    result.mergedCount++;
-                    System.out.println("[DPWMapper] Successfully merged");
-                    
+                    if (preview) {
+                        showPreview(dataSet, get());
+                    } else {
+                        applyResult(dataSet, get());
+                    }
                 } catch (Exception ex) {
-                    System.out.println("[DPWMapper] MERGE FAILED: " + ex.getMessage());
-                    ex.printStackTrace();
-                    result.conflicts.add(newBuilding);
-                    result.conflictCount++;
+                    DPWLog.error("Merge failed", ex);
+                    new Notification("Merge failed: " + ex.getMessage())
+                        .setIcon(JOptionPane.ERROR_MESSAGE)
+                        .show();
+                } finally {
+                    isRunning.set(false);
                 }
-            } else {
-                System.out.println("[DPWMapper] No match found - keeping as new building");
             }
-        }
+        };
+        
+        cancelButton.addActionListener(ev -> {
+            cancelButton.setEnabled(false);
+            statusLabel.setText("Cancelling...");
+            worker.cancel(false);
+        });
         
-        return result;
+        worker.execute();
+        progressDialog.setVisible(true);
     }
     
     /**
-     * Finds the best matching old building for a new building based on overlap.
-     * Returns null if no suitable match found (overlap < 50%).
+     * Adds a preview layer for the plan, replacing an earlier preview. Must be called on the EDT.
      */
-    private Way findBestMatch(Way newBuilding, List<Way> oldBuildings, Set<Way> alreadyMatched) {
-        Way bestMatch = null;
-        double maxOverlap = OVERLAP_THRESHOLD;
-        
-        int candidateCount = 0;
-        
-        for (Way oldBuilding : oldBuildings) {
-            if (alreadyMatched.contains(oldBuilding)) {
-                continue;
-            }
-            
-            // Fast check: Bounding box intersection
-            if (!newBuilding.getBBox().intersects(oldBuilding.getBBox())) {
-                continue;
-            }
-            
-            candidateCount++;
-            System.out.println("  [DPWMapper] Checking overlap with old building ID: " + oldBuilding.getId());
-            
-            // Precise check: Calculate overlap percentage
-            double overlap = calculateOverlapPercentage(newBuilding, oldBuilding);
-            
-            System.out.println("  [DPWMapper] Overlap: " + String.format("%.2f%%", overlap * 100) + " (threshold: " + (OVERLAP_THRESHOLD * 100) + "%)");
-            
-            if (overlap > maxOverlap) {
-                maxOverlap = overlap;
-                bestMatch = oldBuilding;
-                System.out.println("  [DPWMapper] NEW BEST MATCH (" + String.format("%.2f%%", overlap * 100) + ")");
-            }
+    private static void showPreview(DataSet dataSet, MergePlan result) {
+        if (result.newBuildingCount == 0) {
+            new Notification("No new buildings found to preview.")
+                .setIcon(JOptionPane.INFORMATION_MESSAGE)
+                .show();
+            return;
         }
-        
-        System.out.println("  [DPWMapper] Checked " + candidateCount + " candidates, best overlap: " + String.format("%.2f%%", maxOverlap * 100));
-        
-        return bestMatch;
+        for (MergePreviewLayer old : MainApplication.getLayerManager().getLayersOfType(MergePreviewLayer.class)) {
+            MainApplication.getLayerManager().removeLayer(old);
+        }
+        MainApplication.getLayerManager().addLayer(new MergePreviewLayer(dataSet, result));
+        new Notification(String.format("Merge preview: %d pairs, %d conflicts.\n\n"
+                + "Select new buildings and use the preview layer's menu to reject pairs or apply the rest.",
+                result.mergedCount, result.conflictCount))
+            .setIcon(JOptionPane.INFORMATION_MESSAGE)
+            .setDuration(Notification.TIME_LONG)
+            .show();
     }
     
     /**
-     * Calculates what percentage of the old building is covered by the new building.
-     * Uses a combination of bounding box overlap and node proximity.
+     * Registers the merge commands as one undoable step and reports the outcome.
+     * Must be called on the EDT.
      */
-    private double calculateOverlapPercentage(Way newWay, Way oldWay) {
-        try {
-            // Calculate areas
-            double newArea = Geometry.computeArea(newWay);
-            double oldArea = Geometry.computeArea(oldWay);
-            
-            if (oldArea == 0 || newArea == 0) {
-                System.out.println("    [DPWMapper] Zero area detected");
-                return 0;
+    static void applyResult(DataSet dataSet, MergePlan result) {
+        // Show results to user
+        if (result.isEmpty()) {
+            if (result.newBuildingCount == 0) {
+                new Notification("No new buildings found to merge.\n\nWorkflow: 1) Download data, 2) Trace new buildings, 3) Run Merge & Fix")
+                    .setIcon(JOptionPane.INFORMATION_MESSAGE)
+                    .setDuration(Notification.TIME_LONG)
+                    .show();
+            } else {
+                new Notification(String.format("Found %d new buildings but no overlapping matches.\n\nNew buildings preserved.", result.newBuildingCount))
+                    .setIcon(JOptionPane.INFORMATION_MESSAGE)
+                    .setDuration(Notification.TIME_LONG)
+                    .show();
             }
+            return;
+        }
+        
+        MergeMetrics metrics = result.metrics;
+        
+        // Select conflicted objects for manual review, otherwise only the NEW buildings that
+        // survive the merge, so validation checks just those
+        Collection<OsmPrimitive> selection = !result.conflicts.isEmpty()
+            ? result.conflicts
+            : validationSelection(result.preserved, Config.getPref().getBoolean(SELECT_NODES_PREFERENCE, false));
+        
+        // Merge, filter update and selection as one data set update: listeners see one batched
+        // event, and our own workspace preparation is not triggered by it
+        AutoHideListener.runOwnUpdate(dataSet, () -> {
+            // Execute all edits as a single undoable operation
+            long phase = metrics.start();
+            UndoRedoHandler.getInstance().add(result.toCommand());
+            metrics.record(MergeMetrics.Phase.UNDO_REGISTRATION, phase);
             
-            System.out.println("    [DPWMapper] New area: " + String.format("%.2f", newArea) + " sq m");
-            System.out.println("    [DPWMapper] Old area: " + String.format("%.2f", oldArea) + " sq m");
-            
-            // Get bounding boxes
-            BBox newBBox = newWay.getBBox();
-            BBox oldBBox = oldWay.getBBox();
-            
-            // Calculate bounding box intersection area
-            double bboxOverlap = calculateBBoxOverlap(newBBox, oldBBox, oldBBox);
-            System.out.println("    [DPWMapper] BBox overlap: " + String.format("%.0f%%", bboxOverlap * 100));
+            // Merged old buildings now carry new geometry; re-filter just what the merge touched
+            phase = metrics.start();
+            CleanSlateFilter.refilter(result.touched);
+            metrics.record(MergeMetrics.Phase.FILTERING, phase);
             
-            // If bounding boxes barely overlap, no need to check further
-            if (bboxOverlap < 0.3) {
-                System.out.println("    [DPWMapper] BBox overlap too low, skipping");
-                return 0;
+            if (!selection.isEmpty()) {
+                dataSet.setSelected(selection);
             }
-            
-            // Calculate node-based overlap (bidirectional)
-            double nodeOverlap = calculateNodeOverlap(newWay, oldWay);
-            System.out.println("    [DPWMapper] Node overlap: " + String.format("%.0f%%", nodeOverlap * 100));
-            
-            // Combine both metrics: use average weighted towards node overlap
-            double combinedOverlap = (bboxOverlap * 0.3) + (nodeOverlap * 0.7);
-            System.out.println("    [DPWMapper] Combined overlap: " + String.format("%.0f%%", combinedOverlap * 100));
-            
-            return combinedOverlap;
-            
-        } catch (Exception e) {
-            System.out.println("    [DPWMapper] calculateOverlapPercentage ERROR: " + e.getMessage());
-            e.printStackTrace();
-            return 0;
-        }
-    }
-    
-    /**
-     * Calculate bounding box overlap percentage.
-     */
-    private double calculateBBoxOverlap(BBox bbox1, BBox bbox2, BBox referenceBBox) {
-        // Calculate intersection rectangle
-        double intersectMinLat = Math.max(bbox1.getBottomRight().lat(), bbox2.getBottomRight().lat());
-        double intersectMaxLat = Math.min(bbox1.getTopLeft().lat(), bbox2.getTopLeft().lat());
-        double intersectMinLon = Math.max(bbox1.getTopLeft().lon(), bbox2.getTopLeft().lon());
-        double intersectMaxLon = Math.min(bbox1.getBottomRight().lon(), bbox2.getBottomRight().lon());
+        });
         
-        if (intersectMinLat >= intersectMaxLat || intersectMinLon >= intersectMaxLon) {
-            return 0; // No intersection
+        DPWLog.debug(metrics::summary);
+        if (Config.getPref().getBoolean(MergeMetrics.PANEL_PREFERENCE, false)) {
+            showMetrics(metrics);
         }
         
-        // Calculate areas (approximation using lat/lon degrees)
-        double intersectArea = (intersectMaxLat - intersectMinLat) * (intersectMaxLon - intersectMinLon);
-        double referenceArea = (referenceBBox.getTopLeft().lat() - referenceBBox.getBottomRight().lat()) * 
-                               (referenceBBox.getBottomRight().lon() - referenceBBox.getTopLeft().lon());
+        String message = String.format(
+            "✓ Merged %d buildings\n%d new buildings preserved\n\n" +
+            "VALIDATION TIP:\n" +
+            "• Only NEW buildings are now selected\n" +
+            "• Click 'Validate' to check ONLY your work\n" +
+            "• Old data errors (hidden) can be ignored",
+            result.mergedCount,
+            result.newBuildingCount - result.mergedCount
+        );
         
-        if (referenceArea == 0) {
-            return 0;
-        }
+        new Notification(message)
+            .setIcon(JOptionPane.INFORMATION_MESSAGE)
+            .setDuration(Notification.TIME_LONG)
+            .show();
         
-        return intersectArea / referenceArea;
+        if (result.conflicts.isEmpty() && !selection.isEmpty()) {
+            DPWLog.debug(() -> "Selected " + selection.size() + " new objects for validation");
+            
+            // Show helpful message
+            new Notification("Ready for validation!\n\nOnly NEW buildings are selected.\nClick 'Validate' to check your work only.")
+                .setIcon(JOptionPane.INFORMATION_MESSAGE)
+                .setDuration(Notification.TIME_LONG)
+                .show();
+        }
     }
     
     /**
-     * Calculate node-based overlap using bidirectional check.
+     * The new buildings still in the data set after a merge, optionally with their new nodes
+     * (for relations the member ways and their new nodes). Avoids scanning the whole data set.
      */
-    private double calculateNodeOverlap(Way newWay, Way oldWay) {
-        List<Node> newNodes = newWay.getNodes();
-        List<Node> oldNodes = oldWay.getNodes();
-        
-        if (newNodes.isEmpty() || oldNodes.isEmpty()) {
-            return 0;
-        }
-        
-        // BIDIRECTIONAL CHECK: Count nodes from BOTH ways that are inside the OTHER
-        int newNodesInsideOld = 0;
-        for (Node newNode : newNodes) {
-            if (Geometry.nodeInsidePolygon(newNode, oldNodes)) {
-                newNodesInsideOld++;
+    private static Collection<OsmPrimitive> validationSelection(List<OsmPrimitive> preserved, boolean withNodes) {
+        Set<OsmPrimitive> selection = new LinkedHashSet<>();
+        for (OsmPrimitive building : preserved) {
+            if (building.isDeleted()) {
+                continue;
             }
-        }
-        
-        int oldNodesInsideNew = 0;
-        for (Node oldNode : oldNodes) {
-            if (Geometry.nodeInsidePolygon(oldNode, newNodes)) {
-                oldNodesInsideNew++;
+            selection.add(building);
+            if (!withNodes) {
+                continue;
+            }
+            Collection<? extends OsmPrimitive> parts = building instanceof Relation
+                ? ((Relation) building).getMemberPrimitivesList()
+                : Collections.singletonList(building);
+            for (OsmPrimitive part : parts) {
+                if (part instanceof Way) {
+                    for (Node node : ((Way) part).getNodes()) {
+                        if (node.isNew() && !node.isDeleted()) {
+                            selection.add(node);
+                        }
+                    }
+                }
             }
         }
-        
-        double newInsidePercentage = (double) newNodesInsideOld / newNodes.size();
-        double oldInsidePercentage = (double) oldNodesInsideNew / oldNodes.size();
-        
-        System.out.println("    [DPWMapper] New nodes inside old: " + newNodesInsideOld + "/" + newNodes.size() + " (" + String.format("%.0f%%", newInsidePercentage * 100) + ")");
-        System.out.println("    [DPWMapper] Old nodes inside new: " + oldNodesInsideNew + "/" + oldNodes.size() + " (" + String.format("%.0f%%", oldInsidePercentage * 100) + ")");
-        
-        // Use the MAXIMUM of both percentages
-        return Math.max(newInsidePercentage, oldInsidePercentage);
+        return selection;
     }
     
     /**
-     * Temporarily disables the clean slate filter so we can access hidden objects.
+     * Shows the timings and counts of a merge in a non-modal window, with a JSON export for comparing runs.
      */
-    private void disableCleanSlateFilter() {
-        try {
-            org.openstreetmap.josm.gui.dialogs.FilterTableModel filterModel = MainApplication.getMap().filterDialog.getFilterModel();
-            
-            for (int i = 0; i < filterModel.getRowCount(); i++) {
-                org.openstreetmap.josm.data.osm.Filter filter = filterModel.getValue(i);
-                if (filter != null && "-new".equals(filter.text)) {
-                    filter.enable = false;
-                    filterModel.executeFilters();
-                    break;
+    private static void showMetrics(MergeMetrics metrics) {
+        JTextArea text = new JTextArea(metrics.summary());
+        text.setEditable(false);
+        text.setFont(new Font(Font.MONOSPACED, Font.PLAIN, text.getFont().getSize()));
+        
+        JDialog dialog = new JDialog(MainApplication.getMainFrame(), "DPW Mapper - Merge Metrics", false);
+        JButton exportButton = new JButton("Export JSON...");
+        exportButton.addActionListener(ev -> {
+            JFileChooser chooser = new JFileChooser();
+            chooser.setSelectedFile(new File("merge-metrics.json"));
+            if (chooser.showSaveDialog(dialog) == JFileChooser.APPROVE_OPTION) {
+                try {
+                    metrics.writeTo(chooser.getSelectedFile());
+                } catch (IOException ex) {
+                    DPWLog.error("Could not export merge metrics", ex);
+                    JOptionPane.showMessageDialog(dialog, "Could not export: " + ex.getMessage(),
+                        "DPW Mapper", JOptionPane.ERROR_MESSAGE);
                 }
             }
-        } catch (Exception ex) {
-            // Filter might not exist, that's okay
-        }
+        });
+        JButton closeButton = new JButton("Close");
+        closeButton.addActionListener(ev -> dialog.dispose());
+        
+        JPanel buttons = new JPanel();
+        buttons.add(exportButton);
+        buttons.add(closeButton);
+        JPanel panel = new JPanel(new BorderLayout(0, 10));
+        panel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+        panel.add(new JScrollPane(text), BorderLayout.CENTER);
+        panel.add(buttons, BorderLayout.SOUTH);
+        
+        dialog.add(panel);
+        dialog.pack();
+        dialog.setLocationRelativeTo(MainApplication.getMainFrame());
+        dialog.setVisible(true);
     }
     
     /**
-     * Re-enables the clean slate filter after merge is complete.
+     * Writes the collected trace, if any. Called from the worker thread so the EDT never waits for the disk.
      */
-    private void enableCleanSlateFilter() {
+    private static void writeTrace(MergeTrace trace) {
         try {
-            org.openstreetmap.josm.gui.dialogs.FilterTableModel filterModel = MainApplication.getMap().filterDialog.getFilterModel();
-            
-            for (int i = 0; i < filterModel.getRowCount(); i++) {
-                org.openstreetmap.josm.data.osm.Filter filter = filterModel.getValue(i);
-                if (filter != null && "-new".equals(filter.text)) {
-                    filter.enable = true;
-                    filterModel.executeFilters();
-                    break;
-                }
+            File file = trace.write();
+            if (file != null) {
+                DPWLog.info("Merge trace written to " + file);
             }
-        } catch (Exception ex) {
-            // Filter might not exist, that's okay
+        } catch (IOException ex) {
+            DPWLog.error("Could not write merge trace", ex);
         }
     }
-    
-
-    
-    /**
-     * Helper class to store merge operation results.
-     */
-    private static class MergeResult {
-        List<org.openstreetmap.josm.command.Command> commands = new ArrayList<>();
-        List<OsmPrimitive> conflicts = new ArrayList<>();
-        int mergedCount = 0;
-        int conflictCount = 0;
-        int newBuildingCount = 0;
-    }
 }
@@ -0,0 +1,286 @@
+package org.openstreetmap.josm.plugins.dpwmapper;
+
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.preferences.JosmBaseDirectories;
+import org.openstreetmap.josm.data.preferences.JosmUrls;
+import org.openstreetmap.josm.data.projection.ProjectionRegistry;
+import org.openstreetmap.josm.data.projection.Projections;
+import org.openstreetmap.josm.gui.progress.NullProgressMonitor;
+import org.openstreetmap.josm.io.Compression;
+import org.openstreetmap.josm.io.IllegalDataException;
+import org.openstreetmap.josm.io.OsmReader;
+import org.openstreetmap.josm.io.OsmWriter;
+import org.openstreetmap.josm.io.OsmWriterFactory;
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.spi.preferences.MemoryPreferences;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Headless Merge &amp; Fix over saved {@code .osm} files, for re-running a day's work on a server.
+ *
+ * <pre>
+ * java -cp DPWMapper.jar:josm-tested.jar org.openstreetmap.josm.plugins.dpwmapper.MergeCli \
+ *     [--assignment greedy|optimal] [--transfer replace|reuse] [--profile NAME] [--keep-unchanged]
+ *     [--threads N] [--trace] [--metrics]
+ *     [--osc [--tile-metres N]] &lt;input&gt; &lt;output-dir&gt;
+ * </pre>
+ *
+ * {@code input} is a file or a directory of {@code .osm} files (optionally {@code .gz}/{@code .bz2}/{@code .xz}
+ * compressed). Each file is merged on its own and written uncompressed to the output directory under
+ * the same name, so it can be opened and uploaded from JOSM as usual. Files are processed in parallel.
+ *
+ * With {@code --osc} files are not loaded into a data set at all: only their buildings are streamed
+ * into a {@link StreamingMerge}, which merges them tile by tile and writes the changes as
+ * {@code <name>.osc}. Use this for project areas too large for memory.
+ *
+ * {@code --profile} selects one of the {@link MatchingProfile}s bundled in {@code dpwmapper.properties};
+ * without it the default profile is used. With {@code --keep-unchanged}, new buildings that retrace an
+ * old one within the profile's fingerprint tolerance are dropped and the old building is left out of
+ * the changes.
+ */
+public final class MergeCli {
+
+    private static final String USAGE = "Usage: MergeCli [--assignment greedy|optimal] [--transfer replace|reuse]"
+        + " [--profile NAME] [--keep-unchanged] [--threads N] [--trace] [--metrics] [--osc [--tile-metres N]] <input file or directory> <output directory>";
+
+    private final MergeEngine engine;
+    private final boolean trace;
+    private final boolean metrics;
+    private final File outputDirectory;
+    /** Set when writing osmChange files tile by tile, null for whole-file merges */
+    private final StreamingMerge streaming;
+
+    private MergeCli(MergeEngine engine, boolean trace, boolean metrics, File outputDirectory, StreamingMerge streaming) {
+        this.engine = engine;
+        this.trace = trace;
+        this.metrics = metrics;
+        this.outputDirectory = outputDirectory;
+        this.streaming = streaming;
+    }
+
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    /**
+     * Runs the command line and returns the process exit code: 0 if all files were merged,
+     * 1 if any file failed, 2 for invalid arguments.
+     */
+    static int run(String[] args) {
+        MergeEngine.AssignmentMode assignment = MergeEngine.AssignmentMode.GREEDY;
+        GeometryTransfer.Mode transfer = GeometryTransfer.Mode.REPLACE_NODES;
+        String profile = MatchingProfile.DEFAULT_NAME;
+        boolean keepUnchanged = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean trace = false;
+        boolean metrics = false;
+        boolean osc = false;
+        double tileMetres = StreamingMerge.DEFAULT_TILE_METRES;
+        List<String> positional = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                case "--assignment":
+                    assignment = MergeEngine.AssignmentMode.valueOf(args[++i].toUpperCase(Locale.ROOT));
+                    break;
+                case "--transfer":
+                    transfer = "reuse".equalsIgnoreCase(args[++i])
+                        ? GeometryTransfer.Mode.REUSE_NODES : GeometryTransfer.Mode.REPLACE_NODES;
+                    break;
+                case "--profile":
+                    profile = args[++i];
+                    break;
+                case "--keep-unchanged":
+                    keepUnchanged = true;
+                    break;
+                case "--threads":
+                    threads = Math.max(1, Integer.parseInt(args[++i]));
+                    break;
+                case "--trace":
+                    trace = true;
+                    break;
+                case "--metrics":
+                    metrics = true;
+                    break;
+                case "--osc":
+                    osc = true;
+                    break;
+                case "--tile-metres":
+                    tileMetres = Double.parseDouble(args[++i]);
+                    if (!(tileMetres > 0)) {
+                        throw new IllegalArgumentException("Tile size must be positive");
+                    }
+                    break;
+                default:
+                    positional.add(args[i]);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException ex) {
+            System.err.println(USAGE);
+            return 2;
+        }
+        if (positional.size() != 2) {
+            System.err.println(USAGE);
+            return 2;
+        }
+
+        File input = new File(positional.get(0));
+        File outputDirectory = new File(positional.get(1));
+        List<File> files = listInputs(input);
+        if (files.isEmpty()) {
+            System.err.println("No .osm files found in " + input);
+            return 2;
+        }
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+            System.err.println("Cannot create " + outputDirectory);
+            return 2;
+        }
+
+        initialize();
+        MergeEngine engine;
+        try {
+            engine = new MergeEngine(assignment, transfer).withProfile(MatchingProfile.named(profile))
+                .withKeepUnchanged(keepUnchanged);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            return 2;
+        }
+        MergeCli cli = new MergeCli(engine, trace, metrics, outputDirectory,
+            osc ? new StreamingMerge(engine, tileMetres) : null);
+        return cli.processAll(files, threads);
+    }
+
+    /**
+     * Minimal JOSM setup for reading, merging and writing data without a GUI, as JOSM's own
+     * command line tools do. Preferences are kept in memory and never saved.
+     */
+    private static void initialize() {
+        Config.setPreferencesInstance(new MemoryPreferences());
+        Config.setBaseDirectoriesProvider(JosmBaseDirectories.getInstance());
+        Config.setUrlsProvider(JosmUrls.getInstance());
+        // Node moves are computed in projected coordinates
+        ProjectionRegistry.setProjection(Projections.getProjectionByCode("EPSG:3857"));
+    }
+
+    private static List<File> listInputs(File input) {
+        List<File> files = new ArrayList<>();
+        if (input.isFile()) {
+            files.add(input);
+        } else {
+            File[] children = input.listFiles((dir, name) -> isOsmFile(name));
+            if (children != null) {
+                Arrays.sort(children);
+                files.addAll(Arrays.asList(children));
+            }
+        }
+        return files;
+    }
+
+    private static boolean isOsmFile(String name) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        return lower.endsWith(".osm") || lower.endsWith(".osm.gz") || lower.endsWith(".osm.bz2") || lower.endsWith(".osm.xz");
+    }
+
+    /**
+     * Merges all files on a fixed pool; each file has its own data set, so they share nothing.
+     * Prints one summary line per file in input order.
+     */
+    private int processAll(List<File> files, int threads) {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, files.size()));
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (File file : files) {
+                results.add(executor.submit(() -> process(file)));
+            }
+            int failed = 0;
+            for (int i = 0; i < files.size(); i++) {
+                try {
+                    System.out.println(results.get(i).get());
+                } catch (ExecutionException ex) {
+                    failed++;
+                    System.err.println(files.get(i).getName() + ": FAILED " + ex.getCause());
+                }
+            }
+            System.out.println(String.format("%d files, %d failed", files.size(), failed));
+            return failed == 0 ? 0 : 1;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return 1;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Reads, merges and writes one file. Returns its summary line.
+     */
+    private String process(File file) throws IOException, IllegalDataException, XMLStreamException {
+        if (streaming != null) {
+            return processStreaming(file);
+        }
+        DataSet dataSet;
+        try (InputStream in = Compression.getUncompressedFileInputStream(file)) {
+            dataSet = OsmReader.parseDataSet(in, NullProgressMonitor.INSTANCE);
+        }
+
+        MergeTrace fileTrace = trace ? MergeTrace.collecting() : MergeTrace.NONE;
+        MergePlan plan = engine.plan(dataSet, MergeEngine.MergeProgress.NONE, fileTrace);
+        if (!plan.isEmpty()) {
+            plan.toCommand().executeCommand();
+        }
+
+        String name = outputName(file);
+        File output = new File(outputDirectory, name);
+        try (OsmWriter writer = OsmWriterFactory.createOsmWriter(new PrintWriter(new OutputStreamWriter(
+                Files.newOutputStream(output.toPath()), StandardCharsets.UTF_8)), false, dataSet.getVersion())) {
+            writer.write(dataSet);
+        }
+        fileTrace.writeTo(new File(outputDirectory, name + ".trace.log"));
+        if (metrics) {
+            plan.metrics.writeTo(new File(outputDirectory, name + ".metrics.json"));
+        }
+
+        return String.format("%s: %d new buildings, %d merged, %d conflicts",
+            file.getName(), plan.newBuildingCount, plan.mergedCount, plan.conflictCount);
+    }
+
+    /**
+     * Streams one file through the tiled merge into an osmChange file. Returns its summary line.
+     */
+    private String processStreaming(File file) throws IOException, XMLStreamException {
+        String name = outputName(file);
+        String base = name.substring(0, name.length() - ".osm".length());
+        MergeTrace fileTrace = trace ? MergeTrace.collecting() : MergeTrace.NONE;
+        StreamingMerge.Summary summary = streaming.run(file, new File(outputDirectory, base + ".osc"), fileTrace);
+        fileTrace.writeTo(new File(outputDirectory, base + ".osc.trace.log"));
+
+        String line = String.format("%s: %d new buildings, %d merged, %d conflicts in %d tiles",
+            file.getName(), summary.newBuildings, summary.merged, summary.conflicts, summary.tiles);
+        if (summary.skippedPrimitives > 0) {
+            line += String.format(", %d other new primitives not written", summary.skippedPrimitives);
+        }
+        return line;
+    }
+
+    /** Output file name: the input name without a compression suffix. */
+    private static String outputName(File file) {
+        String name = file.getName();
+        return name.substring(0, name.toLowerCase(Locale.ROOT).lastIndexOf(".osm") + 4);
+    }
+}
@@ -0,0 +1,216 @@
+package org.openstreetmap.josm.plugins.dpwmapper;
+
+import org.openstreetmap.josm.command.Command;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Relation;
+import org.openstreetmap.josm.data.osm.Way;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The whole merge as one undoable command, stored as flat arrays instead of thousands of
+ * generic commands.
+ *
+ * A {@code SequenceCommand} of move, change-nodes and delete commands keeps a copy of every
+ * primitive it touches; this command keeps only the node arrays of each changed way before and
+ * after, packed coordinates of moved nodes, the deleted primitives and one modified flag per
+ * primitive. Execute and undo run as one data set update, so listeners see a single batched
+ * event instead of one per primitive, and the plugin does not prepare the workspace again.
+ */
+final class MergeCommand extends Command {
+
+    private final String description;
+    private final int buildings;
+
+    private final Node[] movedNodes;
+    /** Per moved node: lat, lon before, lat, lon after */
+    private final double[] coordinates;
+
+    private final Way[] ways;
+    private final Node[][] nodesBefore;
+    private final Node[][] nodesAfter;
+
+    /** Relations first, then ways, then nodes, so nothing is deleted while a live primitive refers to it */
+    private final OsmPrimitive[] deleted;
+
+    /** Every primitive above once, with its modified flag before the merge */
+    private final OsmPrimitive[] participants;
+    private final boolean[] modifiedBefore;
+
+    /**
+     * Edits of one merged building, collected while planning and packed into a command later.
+     */
+    static final class Edits {
+        final List<Node> movedNodes = new ArrayList<>();
+        final List<LatLon> targets = new ArrayList<>();
+        final List<Way> ways = new ArrayList<>();
+        final List<List<Node>> wayNodes = new ArrayList<>();
+        final List<OsmPrimitive> deleted = new ArrayList<>();
+
+        void move(Node node, LatLon target) {
+            movedNodes.add(node);
+            targets.add(target);
+        }
+
+        void changeNodes(Way way, List<Node> nodes) {
+            ways.add(way);
+            wayNodes.add(nodes);
+        }
+
+        void delete(OsmPrimitive primitive) {
+            deleted.add(primitive);
+        }
+
+        /** Data set of the edited primitives, or null if there are no edits */
+        DataSet dataSet() {
+            if (!ways.isEmpty()) {
+                return ways.get(0).getDataSet();
+            }
+            return deleted.isEmpty() ? null : deleted.get(0).getDataSet();
+        }
+
+        /** Adds the edits of another transfer, e.g. one ring of a multipolygon */
+        void addAll(Edits other) {
+            movedNodes.addAll(other.movedNodes);
+            targets.addAll(other.targets);
+            ways.addAll(other.ways);
+            wayNodes.addAll(other.wayNodes);
+            deleted.addAll(other.deleted);
+        }
+    }
+
+    /**
+     * Packs the edits against the current state of the data set.
+     *
+     * @param dataSet the data set the edited primitives belong to
+     */
+    MergeCommand(DataSet dataSet, String description, Collection<Edits> edits) {
+        super(dataSet);
+        this.description = description;
+        this.buildings = edits.size();
+
+        int moves = 0;
+        int changes = 0;
+        List<OsmPrimitive> toDelete = new ArrayList<>();
+        for (Edits edit : edits) {
+            moves += edit.movedNodes.size();
+            changes += edit.ways.size();
+            toDelete.addAll(edit.deleted);
+        }
+
+        Map<OsmPrimitive, Boolean> modified = new IdentityHashMap<>();
+        movedNodes = new Node[moves];
+        coordinates = new double[moves * 4];
+        ways = new Way[changes];
+        nodesBefore = new Node[changes][];
+        nodesAfter = new Node[changes][];
+        int m = 0;
+        int w = 0;
+        for (Edits edit : edits) {
+            for (int k = 0; k < edit.movedNodes.size(); k++, m++) {
+                Node node = edit.movedNodes.get(k);
+                LatLon target = edit.targets.get(k);
+                movedNodes[m] = node;
+                coordinates[m * 4] = node.lat();
+                coordinates[m * 4 + 1] = node.lon();
+                coordinates[m * 4 + 2] = target.lat();
+                coordinates[m * 4 + 3] = target.lon();
+                modified.putIfAbsent(node, node.isModified());
+            }
+            for (int k = 0; k < edit.ways.size(); k++, w++) {
+                Way way = edit.ways.get(k);
+                ways[w] = way;
+                nodesBefore[w] = way.getNodes().toArray(new Node[0]);
+                nodesAfter[w] = edit.wayNodes.get(k).toArray(new Node[0]);
+                modified.putIfAbsent(way, way.isModified());
+            }
+        }
+
+        Collections.sort(toDelete, (a, b) -> Integer.compare(deleteOrder(a), deleteOrder(b)));
+        deleted = toDelete.toArray(new OsmPrimitive[0]);
+        for (OsmPrimitive primitive : deleted) {
+            modified.putIfAbsent(primitive, primitive.isModified());
+        }
+
+        participants = modified.keySet().toArray(new OsmPrimitive[0]);
+        modifiedBefore = new boolean[participants.length];
+        for (int p = 0; p < participants.length; p++) {
+            modifiedBefore[p] = modified.get(participants[p]);
+        }
+    }
+
+    private static int deleteOrder(OsmPrimitive primitive) {
+        if (primitive instanceof Relation) {
+            return 0;
+        }
+        return primitive instanceof Way ? 1 : 2;
+    }
+
+    /** Number of primitives the command changes or deletes */
+    int size() {
+        return participants.length;
+    }
+
+    @Override
+    public boolean executeCommand() {
+        AutoHideListener.runOwnUpdate(getAffectedDataSet(), () -> {
+            for (int m = 0; m < movedNodes.length; m++) {
+                movedNodes[m].setCoor(new LatLon(coordinates[m * 4 + 2], coordinates[m * 4 + 3]));
+                movedNodes[m].setModified(true);
+            }
+            for (int w = 0; w < ways.length; w++) {
+                ways[w].setNodes(Arrays.asList(nodesAfter[w]));
+                ways[w].setModified(true);
+            }
+            for (OsmPrimitive primitive : deleted) {
+                primitive.setDeleted(true);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public void undoCommand() {
+        AutoHideListener.runOwnUpdate(getAffectedDataSet(), () -> {
+            for (int d = deleted.length - 1; d >= 0; d--) {
+                deleted[d].setDeleted(false);
+            }
+            for (int w = ways.length - 1; w >= 0; w--) {
+                ways[w].setNodes(Arrays.asList(nodesBefore[w]));
+            }
+            for (int m = movedNodes.length - 1; m >= 0; m--) {
+                movedNodes[m].setCoor(new LatLon(coordinates[m * 4], coordinates[m * 4 + 1]));
+            }
+            for (int p = 0; p < participants.length; p++) {
+                participants[p].setModified(modifiedBefore[p]);
+            }
+        });
+    }
+
+    @Override
+    public void fillModifiedData(Collection<OsmPrimitive> modified, Collection<OsmPrimitive> deletedPrimitives,
+            Collection<OsmPrimitive> added) {
+        modified.addAll(Arrays.asList(movedNodes));
+        modified.addAll(Arrays.asList(ways));
+        deletedPrimitives.addAll(Arrays.asList(deleted));
+    }
+
+    @Override
+    public Collection<? extends OsmPrimitive> getParticipatingPrimitives() {
+        return Collections.unmodifiableList(Arrays.asList(participants));
+    }
+
+    @Override
+    public String getDescriptionText() {
+        return description + " (" + buildings + " buildings)";
+    }
+}
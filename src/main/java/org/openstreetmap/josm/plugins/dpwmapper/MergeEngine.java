@@ -0,0 +1,678 @@
+package org.openstreetmap.josm.plugins.dpwmapper;
+
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.spi.preferences.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Matches new buildings to the old buildings they retrace and plans the commands that
+ * move the new geometry onto the old ids. Buildings are closed ways or multipolygon relations.
+ *
+ * The engine only reads the {@link DataSet} and has no GUI dependencies, so it runs
+ * the same inside JOSM ({@link MergeAndFixAction}) and headless ({@link MergeCli}).
+ */
+final class MergeEngine {
+    
+    /** Leave old buildings that were retraced unchanged as they are, instead of transferring the geometry */
+    static final String KEEP_UNCHANGED_PREFERENCE = "dpwmapper.merge.keep-unchanged";
+    private static final int PARALLEL_THRESHOLD = 64; // smaller merges are not worth splitting
+    
+    private final AssignmentMode assignment;
+    private final GeometryTransfer.Mode transfer;
+    private final Predicate<Node> pinned;
+    private final OldBuildingCache oldBuildingCache; // null: extract old buildings on every plan
+    private final PrecomputedScores precomputed; // only consulted together with the cache
+    private final MatchingProfile profile;
+    private final CandidateGates gates;
+    private final boolean keepUnchanged;
+    
+    MergeEngine(AssignmentMode assignment, GeometryTransfer.Mode transfer) {
+        this(assignment, transfer, node -> false, null, PrecomputedScores.NONE, MatchingProfile.defaults(), false);
+    }
+    
+    private MergeEngine(AssignmentMode assignment, GeometryTransfer.Mode transfer, Predicate<Node> pinned,
+            OldBuildingCache oldBuildingCache, PrecomputedScores precomputed, MatchingProfile profile,
+            boolean keepUnchanged) {
+        this.assignment = assignment;
+        this.transfer = transfer;
+        this.pinned = pinned;
+        this.oldBuildingCache = oldBuildingCache;
+        this.precomputed = precomputed;
+        this.profile = profile;
+        this.gates = profile.gates();
+        this.keepUnchanged = keepUnchanged;
+    }
+    
+    /**
+     * Returns an engine that also treats the given nodes as shared, for data sets that hold only
+     * part of the data (their other referrers or tags are not loaded). Pinned nodes are never
+     * moved or deleted by the geometry transfer.
+     */
+    MergeEngine withPinnedNodes(Predicate<Node> pinnedNodes) {
+        return new MergeEngine(assignment, transfer, pinnedNodes, oldBuildingCache, precomputed, profile, keepUnchanged);
+    }
+    
+    /**
+     * Returns an engine that takes the old buildings from the given cache instead of extracting
+     * them on every plan. The cache must belong to the data set that is planned.
+     */
+    MergeEngine withOldBuildingCache(OldBuildingCache cache) {
+        return new MergeEngine(assignment, transfer, pinned, cache, precomputed, profile, keepUnchanged);
+    }
+    
+    /**
+     * Returns an engine that reuses candidate scores computed ahead of time, e.g. while tracing.
+     * Scores are only taken if they were computed against the current generation of the old
+     * building cache; everything else is scored as usual.
+     */
+    MergeEngine withPrecomputedScores(PrecomputedScores scores) {
+        return new MergeEngine(assignment, transfer, pinned, oldBuildingCache, scores, profile, keepUnchanged);
+    }
+    
+    /**
+     * Returns an engine that matches with the threshold, index cell size and gates of the profile.
+     */
+    MergeEngine withProfile(MatchingProfile matchingProfile) {
+        return new MergeEngine(assignment, transfer, pinned, oldBuildingCache, precomputed, matchingProfile, keepUnchanged);
+    }
+    
+    /**
+     * Returns an engine that, for new buildings matched by geometry fingerprint, only deletes the
+     * new building and leaves the old one untouched, so it stays out of the changeset.
+     */
+    MergeEngine withKeepUnchanged(boolean keep) {
+        return new MergeEngine(assignment, transfer, pinned, oldBuildingCache, precomputed, profile, keep);
+    }
+    
+    MatchingProfile profile() {
+        return profile;
+    }
+    
+    /**
+     * Creates an engine with the modes and matching profile set in the preferences.
+     */
+    static MergeEngine fromPreferences() {
+        return new MergeEngine(AssignmentMode.fromPreferences(), GeometryTransfer.Mode.fromPreferences())
+            .withProfile(MatchingProfile.fromPreferences())
+            .withKeepUnchanged(Config.getPref().getBoolean(KEEP_UNCHANGED_PREFERENCE, false));
+    }
+    
+    /**
+     * Plans the merge of all new buildings in the data set, without progress or trace.
+     */
+    MergePlan plan(DataSet dataSet) {
+        return plan(dataSet, MergeProgress.NONE, MergeTrace.NONE);
+    }
+    
+    /**
+     * Plans the merge of the new buildings onto the old ones, reporting each processed
+     * new building. Only reads the data set; the returned commands are not executed.
+     * Every match decision is recorded in the trace if it is enabled.
+     *
+     * @throws CancellationException if the progress reports cancellation
+     */
+    MergePlan plan(DataSet dataSet, MergeProgress progress, MergeTrace trace) {
+        MergePlan result = new MergePlan(new MergeMetrics(profile));
+        MergeMetrics metrics = result.metrics;
+        metrics.settings = "profile=" + profile.name + " assignment=" + assignment + " transfer=" + transfer
+            + " grid-cell=" + (profile.gridCellMetres > 0 ? profile.gridCellMetres : "auto")
+            + " fingerprint=" + profile.fingerprintMetres + " keep-unchanged=" + keepUnchanged + " " + gates;
+        
+        // Separate buildings into new and old
+        long phase = metrics.start();
+        List<OsmPrimitive> newBuildings = dataSet.getWays().stream()
+            .filter(w -> w.isNew() && !w.isDeleted() && w.isClosed() && w.hasTag("building"))
+            .collect(Collectors.toCollection(ArrayList::new));
+        dataSet.getRelations().stream()
+            .filter(r -> r.isNew() && !r.isDeleted() && BuildingRings.isBuildingRelation(r))
+            .forEach(newBuildings::add);
+        metrics.record(MergeMetrics.Phase.COLLECTION, phase);
+        checkCancelled(progress, "while collecting buildings");
+        
+        // Extract projected coordinates once; scoring never touches the ways again.
+        // Old buildings are indexed so each new building only sees its neighbours
+        List<OsmPrimitive> oldBuildings;
+        BuildingSnapshot oldSnapshot;
+        SpatialGridIndex oldIndex;
+        GeometryFingerprint oldFingerprints = null;
+        int oldBuildingCount;
+        ScoredCandidates[] known = new ScoredCandidates[newBuildings.size()];
+        if (oldBuildingCache != null) {
+            phase = metrics.start();
+            OldBuildingCache.View view = oldBuildingCache.refresh(profile);
+            for (int i = 0; i < known.length; i++) {
+                checkCancelled(progress, "while looking up precomputed scores");
+                known[i] = precomputed.get(newBuildings.get(i), view.generation, gates);
+                if (known[i] != null) {
+                    metrics.precomputed++;
+                }
+            }
+            oldBuildings = view.buildings;
+            oldSnapshot = view.snapshot;
+            oldIndex = view.index;
+            oldFingerprints = view.fingerprints;
+            oldBuildingCount = view.count;
+        } else {
+            phase = metrics.start();
+            oldBuildings = OldBuildingCache.collect(dataSet);
+            metrics.record(MergeMetrics.Phase.COLLECTION, phase);
+            phase = metrics.start();
+            oldSnapshot = BuildingSnapshot.of(oldBuildings, BuildingSnapshot.referenceLatitude(newBuildings, oldBuildings));
+            oldIndex = buildIndex(oldSnapshot, profile);
+            oldBuildingCount = oldBuildings.size();
+        }
+        BuildingSnapshot newSnapshot = BuildingSnapshot.of(newBuildings, oldSnapshot.referenceLatitude);
+        result.newSnapshot = newSnapshot;
+        metrics.record(MergeMetrics.Phase.INDEXING, phase);
+        checkCancelled(progress, "after indexing");
+        
+        result.newBuildingCount = newBuildings.size();
+        metrics.newBuildings = newBuildings.size();
+        metrics.oldBuildings = oldBuildingCount;
+        
+        DPWLog.info("Merge analysis: " + newBuildings.size() + " new buildings, " + oldBuildingCount + " old buildings, profile "
+            + profile);
+        if (trace.isEnabled()) {
+            trace.line("# new=" + newBuildings.size() + " old=" + oldBuildingCount + " mode=" + assignment
+                + " profile=" + profile.name + " gates: " + gates);
+        }
+        
+        // Phase 0: near-identical retraces match by fingerprint and skip candidate scoring
+        int[] retraced = new int[newBuildings.size()];
+        Arrays.fill(retraced, -1);
+        boolean[] shortcut = new boolean[newBuildings.size()];
+        if (profile.fingerprintMetres > 0) {
+            phase = metrics.start();
+            if (oldFingerprints == null) {
+                oldFingerprints = GeometryFingerprint.index(oldSnapshot, profile.fingerprintMetres);
+            }
+            metrics.fingerprinted = matchFingerprints(newSnapshot, oldSnapshot, oldFingerprints, known, retraced, shortcut);
+            metrics.record(MergeMetrics.Phase.FINGERPRINT, phase);
+            DPWLog.debug(() -> "Matched by fingerprint: " + metrics.fingerprinted);
+            checkCancelled(progress, "after fingerprint matching");
+        }
+        
+        // Phase 1: score every new building against its candidates. Pure geometry, so it runs in parallel.
+        // Precomputed scores are not counted again
+        phase = metrics.start();
+        ScoredCandidates[] scores = scoreAll(newSnapshot, oldSnapshot, oldIndex, known, gates, metrics.candidates, progress);
+        metrics.record(MergeMetrics.Phase.SCORING, phase);
+        DPWLog.info("Candidate pairs: " + metrics.candidates);
+        if (trace.isEnabled()) {
+            trace.line("# pairs: " + metrics.candidates);
+        }
+        
+        // Phase 2: decide which old building each new building takes over
+        DPWLog.debug(() -> "Assignment mode: " + assignment);
+        phase = metrics.start();
+        int[] matches = assign(scores, oldBuildings.size(), progress);
+        // A fingerprint match has its old building as only candidate. If that went to another new
+        // building, the retrace is scored in full after all and the assignment redone, so it can
+        // still take another candidate. Each building is rescored at most once
+        PolygonKernel.Scratch scratch = new PolygonKernel.Scratch();
+        int rescored = 0;
+        for (boolean lost = true; lost; ) {
+            lost = false;
+            for (int i = 0; i < matches.length; i++) {
+                if (shortcut[i] && matches[i] != retraced[i]) {
+                    scores[i] = scoreCandidates(newSnapshot, i, oldSnapshot, oldIndex, gates, metrics.candidates, scratch);
+                    shortcut[i] = false;
+                    rescored++;
+                    lost = true;
+                }
+            }
+            if (lost) {
+                matches = assign(scores, oldBuildings.size(), progress);
+            }
+        }
+        if (rescored > 0) {
+            metrics.fingerprinted -= rescored;
+            int count = rescored;
+            DPWLog.debug(() -> "Fingerprint matches taken by other buildings, rescored: " + count);
+        }
+        metrics.record(MergeMetrics.Phase.ASSIGNMENT, phase);
+        
+        phase = metrics.start();
+        // Track which old buildings have been matched, by snapshot index
+        boolean[] matchedOldBuildings = new boolean[oldBuildings.size()];
+        
+        for (int i = 0; i < newBuildings.size(); i++) {
+            checkCancelled(progress, "while building commands");
+            OsmPrimitive newBuilding = newBuildings.get(i);
+            OsmPrimitive bestMatch = matches[i] < 0 ? null : oldBuildings.get(matches[i]);
+            if (trace.isEnabled()) {
+                traceDecision(trace, newSnapshot, i, scores[i], oldSnapshot, matches[i]);
+            }
+            
+            if (bestMatch == null) {
+                result.addUnmatched(newBuilding);
+            } else {
+                double overlap = scores[i].overlapOf(matches[i]);
+                // Check for conflicts (multiple new buildings matching one old)
+                if (matchedOldBuildings[matches[i]]) {
+                    result.addConflict(newBuilding, bestMatch, overlap);
+                    continue;
+                }
+                
+                // A relation matched by a building with other rings, e.g. a compound traced as one outline
+                if (!GeometryTransfer.canTransfer(bestMatch, newBuilding)) {
+                    DPWLog.debug(() -> "Rings of " + newBuilding.getUniqueId() + " and " + bestMatch.getUniqueId()
+                        + " cannot be paired, left for review");
+                    result.addConflict(newBuilding, bestMatch, overlap);
+                    continue;
+                }
+                
+                // Collect the merge edits: old building's ID and tags, new building's geometry.
+                // An unchanged retrace may leave the old building alone
+                try {
+                    boolean keep = keepUnchanged && retraced[i] == matches[i];
+                    result.addMerged(newBuilding, bestMatch, overlap, keep
+                        ? GeometryTransfer.discard((Way) newBuilding, pinned)
+                        : GeometryTransfer.transfer(bestMatch, newBuilding, transfer, pinned));
+                    if (keep) {
+                        metrics.keptUnchanged++;
+                    }
+                    matchedOldBuildings[matches[i]] = true;
+                    metrics.recordMatch(overlap);
+                    
+                } catch (Exception ex) {
+                    DPWLog.error("Merge of new building " + newBuilding.getUniqueId() + " failed", ex);
+                    result.addConflict(newBuilding, bestMatch, overlap);
+                }
+            }
+        }
+        
+        metrics.record(MergeMetrics.Phase.COMMANDS, phase);
+        metrics.merged = result.mergedCount;
+        metrics.conflicts = result.conflictCount;
+        
+        DPWLog.info("Merge analysis done: " + result.mergedCount + " matched, " + result.conflictCount + " conflicts");
+        return result;
+    }
+    
+    /**
+     * Fills {@code known} for the new buildings that retrace a single old building within the
+     * profile's fingerprint tolerance, with that building as their only candidate, and records the
+     * old building in {@code retraced}. Known entries keep their scores and are only recorded. The
+     * exact overlap of the one pair is still computed, so matches below the threshold are scored in
+     * full after all. Buildings that skip candidate scoring are flagged in {@code shortcut}, and
+     * their number returned.
+     */
+    private int matchFingerprints(BuildingSnapshot newSnapshot, BuildingSnapshot oldSnapshot,
+            GeometryFingerprint fingerprints, ScoredCandidates[] known, int[] retraced, boolean[] shortcut) {
+        PolygonKernel.Scratch scratch = new PolygonKernel.Scratch();
+        int matched = 0;
+        for (int i = 0; i < known.length; i++) {
+            int oldId = fingerprints.find(newSnapshot, i);
+            if (oldId < 0) {
+                continue;
+            }
+            if (known[i] != null) {
+                // Scored while tracing
+                if (known[i].overlapOf(oldId) > 0) {
+                    retraced[i] = oldId;
+                }
+                continue;
+            }
+            double overlap = calculateOverlapPercentage(newSnapshot, i, oldSnapshot, oldId, scratch);
+            if (overlap > gates.threshold) {
+                known[i] = new ScoredCandidates(1, new int[] {oldId}, new double[] {overlap});
+                retraced[i] = oldId;
+                shortcut[i] = true;
+                matched++;
+            }
+        }
+        return matched;
+    }
+    
+    /**
+     * Scores every new building against the old buildings its bounding box touches.
+     * Scoring has no side effects, so large inputs are spread over the common fork-join pool;
+     * each slot of the returned table is written by exactly one task.
+     *
+     * @throws CancellationException if the progress reports cancellation
+     */
+    static ScoredCandidates[] scoreAll(BuildingSnapshot newSnapshot, BuildingSnapshot oldSnapshot,
+            SpatialGridIndex oldIndex, MergeProgress progress) {
+        return scoreAll(newSnapshot, oldSnapshot, oldIndex, new ScoredCandidates[newSnapshot.size()],
+            CandidateGates.LOSSLESS, null, progress);
+    }
+    
+    /**
+     * Like {@link #scoreAll(BuildingSnapshot, BuildingSnapshot, SpatialGridIndex, MergeProgress)}, but keeps
+     * the non-null entries of {@code known} and only scores the rest, pruning pairs with the gates.
+     * Returns {@code known}, filled in.
+     *
+     * @param counters receives the per-tier counts, may be null
+     */
+    static ScoredCandidates[] scoreAll(BuildingSnapshot newSnapshot, BuildingSnapshot oldSnapshot,
+            SpatialGridIndex oldIndex, ScoredCandidates[] known, CandidateGates gates,
+            CandidateGates.Counters counters, MergeProgress progress) {
+        int total = newSnapshot.size();
+        ScoredCandidates[] table = known;
+        AtomicInteger processed = new AtomicInteger();
+        ThreadLocal<PolygonKernel.Scratch> scratch = ThreadLocal.withInitial(PolygonKernel.Scratch::new);
+        
+        IntStream range = IntStream.range(0, total);
+        if (total >= PARALLEL_THRESHOLD) {
+            range = range.parallel();
+        }
+        range.forEach(i -> {
+            if (progress.isCancelled()) {
+                throw new CancellationException("Merge cancelled after " + processed.get() + " buildings");
+            }
+            if (table[i] == null) {
+                table[i] = scoreCandidates(newSnapshot, i, oldSnapshot, oldIndex, gates, counters, scratch.get());
+            }
+            progress.buildingProcessed(processed.incrementAndGet(), total);
+        });
+        progress.buildingProcessed(total, total);
+        
+        return table;
+    }
+    
+    /**
+     * Scores one new building against the old buildings whose bounding box intersects it,
+     * with the lossless gates only.
+     */
+    static ScoredCandidates scoreCandidates(BuildingSnapshot newSnapshot, int newId,
+            BuildingSnapshot oldSnapshot, SpatialGridIndex oldIndex, PolygonKernel.Scratch scratch) {
+        return scoreCandidates(newSnapshot, newId, oldSnapshot, oldIndex, CandidateGates.LOSSLESS, null, scratch);
+    }
+    
+    /**
+     * Scores one new building against the old buildings whose bounding box intersects it.
+     * Pairs rejected by the gates are skipped; only candidates above the overlap threshold
+     * are kept, in old building list order.
+     *
+     * @param counters receives the per-tier counts, may be null
+     */
+    static ScoredCandidates scoreCandidates(BuildingSnapshot newSnapshot, int newId,
+            BuildingSnapshot oldSnapshot, SpatialGridIndex oldIndex, CandidateGates gates,
+            CandidateGates.Counters counters, PolygonKernel.Scratch scratch) {
+        if (!newSnapshot.isValid(newId)) {
+            return new ScoredCandidates(0, new int[0], new double[0]);
+        }
+        double[] box = newSnapshot.boxes;
+        int[] candidates = oldIndex.query(box[newId * 4], box[newId * 4 + 1], box[newId * 4 + 2], box[newId * 4 + 3]);
+        
+        // Counted locally and added once per building to keep the shared counters out of the loop
+        int[] tiers = new int[CandidateGates.MATCHED + 1];
+        tiers[CandidateGates.CANDIDATES] = candidates.length;
+        int[] ids = new int[candidates.length];
+        double[] overlaps = new double[candidates.length];
+        int kept = 0;
+        for (int candidate : candidates) {
+            int tier = gates.reject(newSnapshot, newId, oldSnapshot, candidate);
+            tiers[tier]++;
+            if (tier != CandidateGates.EXACT) {
+                continue;
+            }
+            // Precise check: Calculate overlap percentage
+            double overlap = calculateOverlapPercentage(newSnapshot, newId, oldSnapshot, candidate, scratch);
+            if (overlap > gates.threshold) {
+                ids[kept] = candidate;
+                overlaps[kept] = overlap;
+                kept++;
+            }
+        }
+        tiers[CandidateGates.MATCHED] = kept;
+        if (counters != null) {
+            counters.add(tiers);
+        }
+        
+        return new ScoredCandidates(tiers[CandidateGates.EXACT], Arrays.copyOf(ids, kept), Arrays.copyOf(overlaps, kept));
+    }
+    
+    /**
+     * Builds a grid index over the bounding boxes of the snapshot's buildings, with a cell size
+     * measured from the buildings.
+     */
+    static SpatialGridIndex buildIndex(BuildingSnapshot snapshot) {
+        return buildIndex(snapshot, MatchingProfile.defaults());
+    }
+    
+    /**
+     * Builds a grid index over the bounding boxes of the snapshot's buildings, with the cell size
+     * of the profile. Index ids are positions in the snapshot; buildings without a usable ring are left out.
+     */
+    static SpatialGridIndex buildIndex(BuildingSnapshot snapshot, MatchingProfile profile) {
+        double[] boxes = snapshot.boxes;
+        SpatialGridIndex index = new SpatialGridIndex(profile.cellSize(boxes, snapshot.size()));
+        for (int i = 0; i < snapshot.size(); i++) {
+            if (snapshot.isValid(i)) {
+                index.insert(i, boxes[i * 4], boxes[i * 4 + 1], boxes[i * 4 + 2], boxes[i * 4 + 3]);
+            }
+        }
+        return index;
+    }
+    
+    /**
+     * Runs the configured assignment over the scored candidates.
+     */
+    private int[] assign(ScoredCandidates[] scores, int oldCount, MergeProgress progress) {
+        return assignment == AssignmentMode.OPTIMAL
+            ? OptimalAssignment.solve(scores, oldCount, progress)
+            : assignGreedy(scores, oldCount, progress);
+    }
+    
+    /**
+     * Throws a {@link CancellationException} if the progress reports cancellation. Checked between
+     * the phases and inside their loops, so a cancelled merge releases the read lock promptly.
+     */
+    static void checkCancelled(MergeProgress progress, String where) {
+        if (progress.isCancelled()) {
+            throw new CancellationException("Merge cancelled " + where);
+        }
+    }
+    
+    /**
+     * First-come assignment: new buildings pick their best free candidate in data set order.
+     * This is the original matching behaviour.
+     */
+    static int[] assignGreedy(ScoredCandidates[] scores, int oldCount) {
+        return assignGreedy(scores, oldCount, MergeProgress.NONE);
+    }
+    
+    /**
+     * {@link #assignGreedy(ScoredCandidates[], int)}, stopping if the progress reports cancellation.
+     */
+    static int[] assignGreedy(ScoredCandidates[] scores, int oldCount, MergeProgress progress) {
+        int[] assignment = new int[scores.length];
+        boolean[] alreadyMatched = new boolean[oldCount];
+        for (int i = 0; i < scores.length; i++) {
+            checkCancelled(progress, "during assignment");
+            assignment[i] = findBestMatch(scores[i], alreadyMatched);
+            if (assignment[i] >= 0) {
+                alreadyMatched[assignment[i]] = true;
+            }
+        }
+        return assignment;
+    }
+    
+    /**
+     * Finds the best matching old building for a new building from its scored candidates.
+     * The first candidate with the highest overlap wins, skipping old buildings already taken.
+     * Returns the position of the match in the old building list, or -1 if no suitable
+     * match found. Candidates are above the overlap threshold already.
+     */
+    static int findBestMatch(ScoredCandidates candidates, boolean[] alreadyMatched) {
+        int bestMatch = -1;
+        double maxOverlap = 0;
+        
+        for (int j = 0; j < candidates.oldIds.length; j++) {
+            if (alreadyMatched[candidates.oldIds[j]]) {
+                continue;
+            }
+            double overlap = candidates.overlaps[j];
+            if (overlap > maxOverlap) {
+                maxOverlap = overlap;
+                bestMatch = candidates.oldIds[j];
+            }
+        }
+        
+        return bestMatch;
+    }
+    
+    /**
+     * Records one new building's candidates and the outcome as a single trace line.
+     */
+    private static void traceDecision(MergeTrace trace, BuildingSnapshot newSnapshot, int newId,
+            ScoredCandidates candidates, BuildingSnapshot oldSnapshot, int match) {
+        StringBuilder line = new StringBuilder(64)
+            .append("new ").append(label(newSnapshot, newId))
+            .append(" checked=").append(candidates.checked)
+            .append(" candidates=[");
+        for (int j = 0; j < candidates.oldIds.length; j++) {
+            if (j > 0) {
+                line.append(", ");
+            }
+            line.append(label(oldSnapshot, candidates.oldIds[j]))
+                .append('=').append(String.format(Locale.ROOT, "%.4f", candidates.overlaps[j]));
+        }
+        line.append("] -> ").append(match < 0 ? "none" : "old " + label(oldSnapshot, match));
+        trace.line(line.toString());
+    }
+    
+    /** OSM id of a building for the trace, prefixed with "r" for relations */
+    private static String label(BuildingSnapshot snapshot, int building) {
+        return (snapshot.relations[building] ? "r" : "") + snapshot.ids[building];
+    }
+    
+    /**
+     * Calculates how well a new building overlaps an old one as the exact intersection over union
+     * of the two polygons, from 0 (disjoint) to 1 (identical).
+     */
+    static double calculateOverlapPercentage(BuildingSnapshot newSnapshot, int newId,
+            BuildingSnapshot oldSnapshot, int oldId, PolygonKernel.Scratch scratch) {
+        if (newSnapshot.multipolygons[newId] != null || oldSnapshot.multipolygons[oldId] != null) {
+            double newArea = newSnapshot.areas[newId];
+            double oldArea = oldSnapshot.areas[oldId];
+            if (newArea <= 0 || oldArea <= 0) {
+                return 0;
+            }
+            double intersection = ringIntersectionArea(newSnapshot, newId, oldSnapshot, oldId, scratch);
+            double union = newArea + oldArea - intersection;
+            return union <= 0 ? 0 : Math.min(1, intersection / union);
+        }
+        return PolygonKernel.intersectionOverUnion(
+            newSnapshot.coords, newSnapshot.offset(newId), newSnapshot.vertexCount(newId),
+            newSnapshot.areas[newId], newSnapshot.convex[newId],
+            oldSnapshot.coords, oldSnapshot.offset(oldId), oldSnapshot.vertexCount(oldId),
+            oldSnapshot.areas[oldId], oldSnapshot.convex[oldId],
+            scratch);
+    }
+    
+    /**
+     * Intersection area of two buildings with any number of rings. Each building is its outer rings
+     * minus its inner rings, so the intersection is the sum over all ring pairs, counted negatively
+     * when exactly one ring of the pair is inner. Ring pairs with disjoint boxes are skipped.
+     */
+    private static double ringIntersectionArea(BuildingSnapshot a, int i, BuildingSnapshot b, int j,
+            PolygonKernel.Scratch scratch) {
+        double sum = 0;
+        for (int r = 0; r < a.ringCount(i); r++) {
+            for (int s = 0; s < b.ringCount(j); s++) {
+                if (a.ringBox(i, r, 0) > b.ringBox(j, s, 2) || b.ringBox(j, s, 0) > a.ringBox(i, r, 2)
+                        || a.ringBox(i, r, 1) > b.ringBox(j, s, 3) || b.ringBox(j, s, 1) > a.ringBox(i, r, 3)) {
+                    continue;
+                }
+                double area = PolygonKernel.intersectionArea(
+                    a.coords, a.ringOffset(i, r), a.ringVertexCount(i, r), a.isConvexRing(i, r),
+                    b.coords, b.ringOffset(j, s), b.ringVertexCount(j, s), b.isConvexRing(j, s),
+                    scratch);
+                sum += a.isInnerRing(i, r) == b.isInnerRing(j, s) ? area : -area;
+            }
+        }
+        return Math.max(0, sum);
+    }
+    
+    /**
+     * Source of candidate scores computed before the merge.
+     */
+    interface PrecomputedScores {
+        PrecomputedScores NONE = (newBuilding, generation, gates) -> null;
+        
+        /**
+         * Returns the scores of the new building against the given old building cache generation,
+         * or null if there are none or they were computed against another generation or with
+         * other gates, e.g. before the matching profile or a gate preference changed.
+         */
+        ScoredCandidates get(OsmPrimitive newBuilding, long generation, CandidateGates gates);
+    }
+    
+    /**
+     * Receives progress from {@link #plan(DataSet, MergeProgress, MergeTrace)}, possibly from a worker thread.
+     */
+    interface MergeProgress {
+        MergeProgress NONE = new MergeProgress() {
+            @Override
+            public void buildingProcessed(int processed, int total) {
+                // ignore
+            }
+            
+            @Override
+            public boolean isCancelled() {
+                return false;
+            }
+        };
+        
+        void buildingProcessed(int processed, int total);
+        
+        boolean isCancelled();
+    }
+    
+    /**
+     * How new buildings are paired with old buildings once all overlaps are known.
+     */
+    enum AssignmentMode {
+        /** Each new building takes its best free candidate, in data set order (default) */
+        GREEDY,
+        /** Maximum total overlap over each cluster of competing buildings */
+        OPTIMAL;
+        
+        /**
+         * Reads the mode from the {@code dpwmapper.merge.assignment} preference.
+         */
+        static AssignmentMode fromPreferences() {
+            String value = Config.getPref().get("dpwmapper.merge.assignment", "greedy");
+            return "optimal".equalsIgnoreCase(value) ? OPTIMAL : GREEDY;
+        }
+    }
+    
+    /**
+     * Old buildings that overlap one new building above the threshold, with their overlap.
+     * Immutable once built, so the scoring phase can fill the table from several threads.
+     */
+    static final class ScoredCandidates {
+        /** Number of candidates whose overlap was computed */
+        final int checked;
+        /** Positions in the old building list, ascending */
+        final int[] oldIds;
+        final double[] overlaps;
+        
+        ScoredCandidates(int checked, int[] oldIds, double[] overlaps) {
+            this.checked = checked;
+            this.oldIds = oldIds;
+            this.overlaps = overlaps;
+        }
+        
+        /** Overlap with the given old building, or 0 if it is not a candidate */
+        double overlapOf(int oldId) {
+            int j = Arrays.binarySearch(oldIds, oldId);
+            return j >= 0 ? overlaps[j] : 0;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package org.openstreetmap.josm.plugins.dpwmapper;
+
+import org.openstreetmap.josm.spi.preferences.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timings and counts of one merge, for comparing machines and data sets.
+ *
+ * Phases are timed by their callers with {@link #start()} and {@link #record}; the
+ * candidate counters are filled while scoring and the histogram while assigning. The
+ * result can be read as a short text summary or exported as JSON.
+ */
+final class MergeMetrics {
+
+    static final String PANEL_PREFERENCE = "dpwmapper.merge.metrics";
+
+    /** Timed phases, in the order they run */
+    enum Phase {
+        COLLECTION("collection"),
+        INDEXING("indexing"),
+        FINGERPRINT("fingerprint"),
+        SCORING("scoring"),
+        ASSIGNMENT("assignment"),
+        COMMANDS("commands"),
+        UNDO_REGISTRATION("undo-registration"),
+        FILTERING("filtering");
+
+        final String key;
+
+        Phase(String key) {
+            this.key = key;
+        }
+    }
+
+    /** Histogram of the overlap of accepted matches, in bins of this width from the threshold up to 1 */
+    private static final double BIN_WIDTH = 0.05;
+
+    private final long[] phaseNanos = new long[Phase.values().length];
+    /** Matching profile of the merge; the histogram starts at its threshold */
+    private final String profile;
+    private final double threshold;
+    private final int[] overlapHistogram;
+    private final Date started = new Date();
+
+    final CandidateGates.Counters candidates = new CandidateGates.Counters();
+    int newBuildings;
+    int oldBuildings;
+    /** New buildings whose scores came from live matching */
+    int precomputed;
+    /** New buildings matched by geometry fingerprint without candidate scoring */
+    int fingerprinted;
+    /** Of those, the ones left as they were instead of transferring their geometry */
+    int keptUnchanged;
+    int merged;
+    int conflicts;
+    String settings = "";
+
+    MergeMetrics() {
+        this(MatchingProfile.defaults());
+    }
+
+    MergeMetrics(MatchingProfile matchingProfile) {
+        profile = matchingProfile.name;
+        threshold = matchingProfile.threshold;
+        overlapHistogram = new int[Math.max(1, (int) Math.ceil((1 - threshold) / BIN_WIDTH - 1e-9))];
+    }
+
+    /** Returns a start time for {@link #record}. */
+    long start() {
+        return System.nanoTime();
+    }
+
+    /** Adds the time since {@code start} to the phase. */
+    void record(Phase phase, long start) {
+        phaseNanos[phase.ordinal()] += System.nanoTime() - start;
+    }
+
+    long millis(Phase phase) {
+        return TimeUnit.NANOSECONDS.toMillis(phaseNanos[phase.ordinal()]);
+    }
+
+    long totalMillis() {
+        long total = 0;
+        for (long nanos : phaseNanos) {
+            total += nanos;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(total);
+    }
+
+    /** Counts the overlap of an accepted match in the histogram. */
+    void recordMatch(double overlap) {
+        int bin = (int) ((overlap - threshold) / BIN_WIDTH);
+        overlapHistogram[Math.max(0, Math.min(overlapHistogram.length - 1, bin))]++;
+    }
+
+    private double binStart(int bin) {
+        return threshold + bin * BIN_WIDTH;
+    }
+
+    /**
+     * Multi-line text for the summary panel and the log.
+     */
+    String summary() {
+        StringBuilder text = new StringBuilder(512);
+        text.append(String.format(Locale.ROOT, "Profile: %s%n", profile));
+        text.append(String.format(Locale.ROOT, "%d new, %d old buildings: %d merged, %d conflicts%n",
+            newBuildings, oldBuildings, merged, conflicts));
+        if (precomputed > 0) {
+            text.append(String.format(Locale.ROOT, "%d scored while tracing%n", precomputed));
+        }
+        if (fingerprinted > 0) {
+            text.append(String.format(Locale.ROOT, "%d unchanged retraces matched by fingerprint, %d kept as they were%n",
+                fingerprinted, keptUnchanged));
+        }
+        text.append(String.format(Locale.ROOT, "%nTotal %d ms%n", totalMillis()));
+        for (Phase phase : Phase.values()) {
+            text.append(String.format(Locale.ROOT, "  %-18s %8d ms%n", phase.key, millis(phase)));
+        }
+        text.append(String.format(Locale.ROOT, "%nCandidate pairs%n"));
+        for (int tier = 0; tier < CandidateGates.TIER_COUNT; tier++) {
+            text.append(String.format(Locale.ROOT, "  %-18s %8d%n", CandidateGates.tierName(tier), candidates.get(tier)));
+        }
+        text.append(String.format(Locale.ROOT, "%nOverlap of merged buildings%n"));
+        for (int bin = 0; bin < overlapHistogram.length; bin++) {
+            text.append(String.format(Locale.ROOT, "  %.2f-%.2f %8d%n", binStart(bin), binStart(bin + 1), overlapHistogram[bin]));
+        }
+        text.append(String.format(Locale.ROOT, "%nSettings: %s", settings));
+        return text.toString();
+    }
+
+    /**
+     * The metrics and the machine they were taken on as a JSON object.
+     */
+    String toJson() {
+        Runtime runtime = Runtime.getRuntime();
+        StringBuilder json = new StringBuilder(1024).append("{\n");
+        json.append("  \"started\": ").append(quote(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ", Locale.ROOT).format(started))).append(",\n");
+        json.append("  \"environment\": {")
+            .append("\"processors\": ").append(runtime.availableProcessors())
+            .append(", \"maxMemoryMb\": ").append(runtime.maxMemory() / (1024 * 1024))
+            .append(", \"java\": ").append(quote(System.getProperty("java.version")))
+            .append(", \"os\": ").append(quote(System.getProperty("os.name") + " " + System.getProperty("os.arch")))
+            .append("},\n");
+        json.append("  \"profile\": ").append(quote(profile)).append(",\n");
+        json.append("  \"settings\": ").append(quote(settings)).append(",\n");
+        json.append("  \"counts\": {")
+            .append("\"newBuildings\": ").append(newBuildings)
+            .append(", \"oldBuildings\": ").append(oldBuildings)
+            .append(", \"precomputed\": ").append(precomputed)
+            .append(", \"fingerprinted\": ").append(fingerprinted)
+            .append(", \"keptUnchanged\": ").append(keptUnchanged)
+            .append(", \"merged\": ").append(merged)
+            .append(", \"conflicts\": ").append(conflicts)
+            .append("},\n");
+        json.append("  \"phasesMs\": {");
+        for (Phase phase : Phase.values()) {
+            json.append(phase.ordinal() > 0 ? ", " : "").append(quote(phase.key)).append(": ").append(millis(phase));
+        }
+        json.append("},\n");
+        json.append("  \"candidatePairs\": {");
+        for (int tier = 0; tier < CandidateGates.TIER_COUNT; tier++) {
+            json.append(tier > 0 ? ", " : "").append(quote(CandidateGates.tierName(tier))).append(": ").append(candidates.get(tier));
+        }
+        json.append("},\n");
+        json.append("  \"matchOverlapHistogram\": [");
+        for (int bin = 0; bin < overlapHistogram.length; bin++) {
+            json.append(bin > 0 ? ", " : "")
+                .append(String.format(Locale.ROOT, "{\"from\": %.2f, \"to\": %.2f, \"count\": %d}",
+                    binStart(bin), Math.min(1, binStart(bin + 1)), overlapHistogram[bin]));
+        }
+        json.append("]\n}\n");
+        return json.toString();
+    }
+
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    /**
+     * Writes the JSON to a new file in the plugin cache directory.
+     *
+     * @return the written file
+     * @throws IOException if the file cannot be written
+     */
+    File write() throws IOException {
+        File directory = new File(Config.getDirs().getCacheDirectory(true), "dpwmapper");
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS", Locale.ROOT).format(started);
+        File file = new File(directory, "merge-metrics-" + stamp + ".json");
+        writeTo(file);
+        return file;
+    }
+
+    /**
+     * Writes the JSON to the given file, replacing it.
+     *
+     * @throws IOException if the file cannot be written
+     */
+    void writeTo(File file) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            writer.write(toJson());
+        }
+    }
+}
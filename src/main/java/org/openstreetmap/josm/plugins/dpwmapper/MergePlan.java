@@ -0,0 +1,143 @@
+package org.openstreetmap.josm.plugins.dpwmapper;
+
+import org.openstreetmap.josm.command.Command;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Relation;
+import org.openstreetmap.josm.data.osm.Way;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Outcome of {@link MergeEngine#plan}: the edits to make and what they affect.
+ * Nothing in the data set has changed until {@link #toCommand()} is executed.
+ */
+final class MergePlan {
+    /** Edits of the merged buildings, in decision order */
+    List<MergeCommand.Edits> edits = new ArrayList<>();
+    List<OsmPrimitive> conflicts = new ArrayList<>();
+    /** New buildings that keep their own ids: unmatched, conflicting or failed. Merged ones are deleted */
+    List<OsmPrimitive> preserved = new ArrayList<>();
+    /** Primitives whose filter state may change once the edits are applied */
+    Set<OsmPrimitive> touched = new HashSet<>();
+    /** One decision per new building, in the order of {@link #newSnapshot} */
+    final List<Decision> decisions = new ArrayList<>();
+    /** Geometry of the new buildings, for previews; null for plans that were not made by the engine */
+    BuildingSnapshot newSnapshot;
+    int mergedCount = 0;
+    int conflictCount = 0;
+    int newBuildingCount = 0;
+    /** Timings and counts, completed by the caller when it applies the edits */
+    final MergeMetrics metrics;
+
+    MergePlan() {
+        this(new MergeMetrics());
+    }
+
+    MergePlan(MergeMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /** Outcome of one new building */
+    enum Outcome {
+        MERGED,
+        /** Matched, but the old building was taken or the geometry could not be transferred */
+        CONFLICT,
+        UNMATCHED
+    }
+
+    /**
+     * What the merge decided for one new building.
+     */
+    static final class Decision {
+        final OsmPrimitive newBuilding;
+        /** The matched old building, null if unmatched */
+        final OsmPrimitive oldBuilding;
+        final double overlap;
+        final Outcome outcome;
+        /** Edits of a merged building, null otherwise */
+        final MergeCommand.Edits edits;
+
+        Decision(OsmPrimitive newBuilding, OsmPrimitive oldBuilding, double overlap, Outcome outcome, MergeCommand.Edits edits) {
+            this.newBuilding = newBuilding;
+            this.oldBuilding = oldBuilding;
+            this.overlap = overlap;
+            this.outcome = outcome;
+            this.edits = edits;
+        }
+    }
+
+    void addMerged(OsmPrimitive newBuilding, OsmPrimitive oldBuilding, double overlap, MergeCommand.Edits pairEdits) {
+        decisions.add(new Decision(newBuilding, oldBuilding, overlap, Outcome.MERGED, pairEdits));
+        edits.add(pairEdits);
+        touch(touched, oldBuilding);
+        touch(touched, newBuilding);
+        mergedCount++;
+    }
+
+    void addConflict(OsmPrimitive newBuilding, OsmPrimitive oldBuilding, double overlap) {
+        decisions.add(new Decision(newBuilding, oldBuilding, overlap, Outcome.CONFLICT, null));
+        conflicts.add(newBuilding);
+        preserved.add(newBuilding);
+        conflictCount++;
+    }
+
+    void addUnmatched(OsmPrimitive newBuilding) {
+        decisions.add(new Decision(newBuilding, null, 0, Outcome.UNMATCHED, null));
+        preserved.add(newBuilding);
+    }
+
+    /**
+     * Returns this plan without the given merged decisions: their new buildings are kept as
+     * they are and their old buildings are left untouched. Shares the metrics with this plan.
+     */
+    MergePlan without(Set<Decision> rejected) {
+        MergePlan plan = new MergePlan(metrics);
+        plan.newSnapshot = newSnapshot;
+        plan.newBuildingCount = newBuildingCount;
+        for (Decision decision : decisions) {
+            if (decision.outcome == Outcome.MERGED && !rejected.contains(decision)) {
+                plan.addMerged(decision.newBuilding, decision.oldBuilding, decision.overlap, decision.edits);
+            } else if (decision.outcome == Outcome.CONFLICT) {
+                plan.addConflict(decision.newBuilding, decision.oldBuilding, decision.overlap);
+            } else {
+                plan.addUnmatched(decision.newBuilding);
+            }
+        }
+        metrics.merged = plan.mergedCount;
+        return plan;
+    }
+
+    /**
+     * Adds a building, its member ways and their nodes to the touched primitives.
+     */
+    private static void touch(Set<OsmPrimitive> touched, OsmPrimitive building) {
+        touched.add(building);
+        if (building instanceof Way) {
+            touched.addAll(((Way) building).getNodes());
+            return;
+        }
+        for (OsmPrimitive member : ((Relation) building).getMemberPrimitivesList()) {
+            touched.add(member);
+            if (member instanceof Way) {
+                touched.addAll(((Way) member).getNodes());
+            }
+        }
+    }
+
+    boolean isEmpty() {
+        return edits.isEmpty();
+    }
+
+    /**
+     * Returns all edits as one undoable step. The before state is read from the data set now,
+     * so call this right before executing the command.
+     */
+    Command toCommand() {
+        DataSet dataSet = edits.isEmpty() ? null : edits.get(0).dataSet();
+        return new MergeCommand(dataSet, "DPW Auto-Merge", edits);
+    }
+}
@@ -0,0 +1,318 @@
+package org.openstreetmap.josm.plugins.dpwmapper;
+
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Relation;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.data.osm.event.*;
+import org.openstreetmap.josm.data.osm.visitor.BoundingXYVisitor;
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.MapView;
+import org.openstreetmap.josm.gui.Notification;
+import org.openstreetmap.josm.gui.dialogs.LayerListDialog;
+import org.openstreetmap.josm.gui.layer.Layer;
+import org.openstreetmap.josm.tools.ImageProvider;
+
+import javax.swing.AbstractAction;
+import javax.swing.Action;
+import javax.swing.Icon;
+import javax.swing.JOptionPane;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.Stroke;
+import java.awt.event.ActionEvent;
+import java.awt.geom.Path2D;
+import java.awt.geom.Point2D;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Shows a merge plan before it is applied: merged pairs in green, conflicts in orange and
+ * unmatched new buildings in blue, each matched old outline dashed.
+ *
+ * Only buildings in the viewport are drawn, looked up in a grid index over the new buildings'
+ * boxes, so panning stays smooth with tens of thousands of pairs. A pair is rejected by selecting
+ * its new building and choosing "Reject selected pairs" in the layer menu; "Apply" runs the
+ * remaining pairs as one undoable step. Any edit of the data makes the preview stale, and a
+ * stale preview cannot be applied.
+ */
+final class MergePreviewLayer extends Layer implements DataSetListener {
+
+    private static final Color MERGED = new Color(0x2e, 0xa0, 0x43);
+    private static final Color CONFLICT = new Color(0xf0, 0x8c, 0x00);
+    private static final Color UNMATCHED = new Color(0x30, 0x7f, 0xe0);
+    private static final Color REJECTED = Color.GRAY;
+    private static final Stroke NEW_OUTLINE = new BasicStroke(2);
+    private static final Stroke OLD_OUTLINE = new BasicStroke(1, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER,
+        10, new float[] {4, 4}, 0);
+    /** Old outlines can stick out of the box of their new building; the viewport query is grown by this */
+    private static final double MARGIN_METRES = 20;
+
+    private final DataSet dataSet;
+    private final MergePlan plan;
+    private final SpatialGridIndex index;
+    /** Extent of all new buildings in snapshot metres: minX, minY, maxX, maxY */
+    private final double[] extent = {
+        Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+    // EDT only
+    private final Set<MergePlan.Decision> rejected = Collections.newSetFromMap(new IdentityHashMap<>());
+    private volatile boolean stale;
+
+    MergePreviewLayer(DataSet dataSet, MergePlan plan) {
+        super("Merge preview");
+        this.dataSet = dataSet;
+        this.plan = plan;
+        BuildingSnapshot snapshot = plan.newSnapshot;
+        this.index = MergeEngine.buildIndex(snapshot);
+        for (int i = 0; i < snapshot.size(); i++) {
+            if (snapshot.isValid(i)) {
+                for (int c = 0; c < 4; c++) {
+                    double value = snapshot.boxes[i * 4 + c];
+                    extent[c] = c < 2 ? Math.min(extent[c], value) : Math.max(extent[c], value);
+                }
+            }
+        }
+        dataSet.addDataSetListener(this);
+    }
+
+    @Override
+    public void paint(Graphics2D g, MapView mv, Bounds box) {
+        BuildingSnapshot snapshot = plan.newSnapshot;
+        // Clamped to the data, so a zoomed-out view does not walk empty grid cells
+        double minX = Math.max(extent[0], snapshot.x(box.getMinLon()) - MARGIN_METRES);
+        double minY = Math.max(extent[1], snapshot.y(box.getMinLat()) - MARGIN_METRES);
+        double maxX = Math.min(extent[2], snapshot.x(box.getMaxLon()) + MARGIN_METRES);
+        double maxY = Math.min(extent[3], snapshot.y(box.getMaxLat()) + MARGIN_METRES);
+        if (minX > maxX || minY > maxY) {
+            return;
+        }
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        for (int i : index.query(minX, minY, maxX, maxY)) {
+            MergePlan.Decision decision = plan.decisions.get(i);
+            g.setColor(rejected.contains(decision) ? REJECTED : color(decision.outcome));
+            if (decision.oldBuilding != null) {
+                g.setStroke(OLD_OUTLINE);
+                draw(g, mv, decision.oldBuilding);
+            }
+            g.setStroke(NEW_OUTLINE);
+            draw(g, mv, decision.newBuilding);
+        }
+    }
+
+    private static Color color(MergePlan.Outcome outcome) {
+        switch (outcome) {
+            case MERGED:
+                return MERGED;
+            case CONFLICT:
+                return CONFLICT;
+            default:
+                return UNMATCHED;
+        }
+    }
+
+    private static void draw(Graphics2D g, MapView mv, OsmPrimitive building) {
+        if (building.isDeleted()) {
+            return;
+        }
+        if (building instanceof Way) {
+            drawWay(g, mv, (Way) building);
+        } else {
+            for (OsmPrimitive member : ((Relation) building).getMemberPrimitivesList()) {
+                if (member instanceof Way) {
+                    drawWay(g, mv, (Way) member);
+                }
+            }
+        }
+    }
+
+    private static void drawWay(Graphics2D g, MapView mv, Way way) {
+        Path2D.Double path = new Path2D.Double();
+        for (int k = 0; k < way.getNodesCount(); k++) {
+            Node node = way.getNode(k);
+            if (!node.isLatLonKnown()) {
+                return;
+            }
+            Point2D point = mv.getPoint2D(node);
+            if (k == 0) {
+                path.moveTo(point.getX(), point.getY());
+            } else {
+                path.lineTo(point.getX(), point.getY());
+            }
+        }
+        g.draw(path);
+    }
+
+    /**
+     * Rejects the merged pairs whose new or old building is selected in the data layer.
+     */
+    private int rejectSelected() {
+        Set<OsmPrimitive> selected = new HashSet<>(dataSet.getSelected());
+        int count = 0;
+        for (MergePlan.Decision decision : plan.decisions) {
+            if (decision.outcome == MergePlan.Outcome.MERGED
+                    && (selected.contains(decision.newBuilding) || selected.contains(decision.oldBuilding))
+                    && rejected.add(decision)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Applies the pairs that were not rejected and removes the preview.
+     */
+    private void apply() {
+        if (stale) {
+            new Notification("The data changed since the preview was made.\n\nRun Preview Merge again.")
+                .setIcon(JOptionPane.WARNING_MESSAGE)
+                .show();
+            return;
+        }
+        MergePlan accepted = plan.without(rejected);
+        DPWLog.info("Applying merge preview: " + accepted.mergedCount + " pairs, " + rejected.size() + " rejected");
+        MainApplication.getLayerManager().removeLayer(this);
+        MergeAndFixAction.applyResult(dataSet, accepted);
+    }
+
+    private String summary() {
+        int merged = plan.mergedCount - rejected.size();
+        return String.format(Locale.ROOT, "%d merged, %d rejected, %d conflicts, %d unmatched%s",
+            merged, rejected.size(), plan.conflictCount, plan.newBuildingCount - plan.mergedCount - plan.conflictCount,
+            stale ? " (stale)" : "");
+    }
+
+    @Override
+    public Icon getIcon() {
+        return ImageProvider.get("dialogs", "validator");
+    }
+
+    @Override
+    public String getToolTipText() {
+        return "Merge preview: " + summary();
+    }
+
+    @Override
+    public void mergeFrom(Layer from) {
+        throw new UnsupportedOperationException("Merge previews cannot be merged");
+    }
+
+    @Override
+    public boolean isMergable(Layer other) {
+        return false;
+    }
+
+    @Override
+    public void visitBoundingBox(BoundingXYVisitor v) {
+        if (extent[0] <= extent[2]) {
+            BuildingSnapshot snapshot = plan.newSnapshot;
+            v.visit(new Bounds(snapshot.lat(extent[1]), snapshot.lon(extent[0]), snapshot.lat(extent[3]), snapshot.lon(extent[2])));
+        }
+    }
+
+    @Override
+    public Object getInfoComponent() {
+        return getToolTipText();
+    }
+
+    @Override
+    public Action[] getMenuEntries() {
+        return new Action[] {
+            LayerListDialog.getInstance().createShowHideLayerAction(),
+            LayerListDialog.getInstance().createDeleteLayerAction(),
+            SeparatorLayerAction.INSTANCE,
+            new AbstractAction("Apply accepted pairs") {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    apply();
+                }
+            },
+            new AbstractAction("Reject selected pairs") {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    int count = rejectSelected();
+                    if (count == 0) {
+                        new Notification("Select the new buildings of the pairs to reject first.")
+                            .setIcon(JOptionPane.INFORMATION_MESSAGE)
+                            .show();
+                        return;
+                    }
+                    DPWLog.debug(() -> "Rejected " + count + " pairs");
+                    invalidate();
+                }
+            },
+            new AbstractAction("Restore rejected pairs") {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    rejected.clear();
+                    invalidate();
+                }
+            },
+        };
+    }
+
+    @Override
+    public synchronized void destroy() {
+        dataSet.removeDataSetListener(this);
+        super.destroy();
+    }
+
+    private void markStale() {
+        if (!stale) {
+            stale = true;
+            DPWLog.debug(() -> "Merge preview is stale");
+        }
+    }
+
+    @Override
+    public void primitivesAdded(PrimitivesAddedEvent event) {
+        markStale();
+    }
+
+    @Override
+    public void primitivesRemoved(PrimitivesRemovedEvent event) {
+        markStale();
+    }
+
+    @Override
+    public void tagsChanged(TagsChangedEvent event) {
+        markStale();
+    }
+
+    @Override
+    public void nodeMoved(NodeMovedEvent event) {
+        markStale();
+    }
+
+    @Override
+    public void wayNodesChanged(WayNodesChangedEvent event) {
+        markStale();
+    }
+
+    @Override
+    public void relationMembersChanged(RelationMembersChangedEvent event) {
+        markStale();
+    }
+
+    @Override
+    public void otherDatasetChange(AbstractDatasetChangedEvent event) {
+        // Selection, flag and filter changes leave the plan valid
+    }
+
+    @Override
+    public void dataChanged(DataChangedEvent event) {
+        if (event.getEvents() != null) {
+            for (AbstractDatasetChangedEvent e : event.getEvents()) {
+                e.fire(this);
+            }
+        } else {
+            markStale();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package org.openstreetmap.josm.plugins.dpwmapper;
+
+import org.openstreetmap.josm.spi.preferences.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Optional per-merge trace of every match decision.
+ *
+ * Lines are collected in memory during the sequential phase of the merge and written
+ * as one file when it ends, so tracing never adds console or disk I/O per candidate.
+ * Enable with {@code dpwmapper.merge.trace=true}; files go to {@code <cache>/dpwmapper/}.
+ */
+final class MergeTrace {
+
+    static final String TRACE_PREFERENCE = "dpwmapper.merge.trace";
+
+    /** Disabled trace, used by headless callers and benchmarks */
+    static final MergeTrace NONE = new MergeTrace(false);
+
+    private final boolean enabled;
+    private final StringBuilder buffer;
+
+    private MergeTrace(boolean enabled) {
+        this.enabled = enabled;
+        this.buffer = enabled ? new StringBuilder(1 << 16) : null;
+    }
+
+    /**
+     * Returns a collecting trace if enabled in the preferences, otherwise {@link #NONE}.
+     */
+    static MergeTrace fromPreferences() {
+        return Config.getPref().getBoolean(TRACE_PREFERENCE, false) ? collecting() : NONE;
+    }
+
+    /**
+     * Returns a new trace that collects lines regardless of the preferences.
+     */
+    static MergeTrace collecting() {
+        return new MergeTrace(true);
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Appends one line. Callers check {@link #isEnabled()} first, so no text is built for disabled traces.
+     */
+    MergeTrace line(String text) {
+        if (enabled) {
+            buffer.append(text).append('\n');
+        }
+        return this;
+    }
+
+    /**
+     * Writes the collected lines to a new file in the plugin cache directory.
+     *
+     * @return the written file, or null if the trace is disabled or empty
+     * @throws IOException if the file cannot be written
+     */
+    File write() throws IOException {
+        if (!enabled || buffer.length() == 0) {
+            return null;
+        }
+        File directory = new File(Config.getDirs().getCacheDirectory(true), "dpwmapper");
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS", Locale.ROOT).format(new Date());
+        File file = new File(directory, "merge-trace-" + stamp + ".log");
+        writeTo(file);
+        return file;
+    }
+
+    /**
+     * Writes the collected lines to the given file, replacing it. Does nothing if the trace is disabled.
+     *
+     * @throws IOException if the file cannot be written
+     */
+    void writeTo(File file) throws IOException {
+        if (!enabled) {
+            return;
+        }
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            writer.append(buffer);
+        }
+    }
+}
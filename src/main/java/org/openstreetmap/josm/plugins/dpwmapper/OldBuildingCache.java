@@ -0,0 +1,267 @@
+package org.openstreetmap.josm.plugins.dpwmapper;
+
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Relation;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.data.osm.event.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Projected geometry, grid index and fingerprints of the old buildings of one data set, kept between
+ * Merge &amp; Fix runs.
+ *
+ * Old buildings rarely change during a session, so the first merge extracts them all and
+ * later merges only re-extract the ways that dataset events reported as moved, re-noded,
+ * retagged or removed. Multipolygon buildings are re-joined only when a member way or the
+ * member list changed. A full rebuild happens only when old buildings appear, e.g. after
+ * a download. Caches are created on first use and evicted when their layer is removed.
+ */
+final class OldBuildingCache implements DataSetListener {
+
+    private static final Map<DataSet, OldBuildingCache> CACHES = new ConcurrentHashMap<>();
+
+    private final DataSet dataSet;
+
+    // All guarded by this. Snapshot index -> building; entries of buildings that stopped being old buildings stay as empty rings
+    private List<OsmPrimitive> buildings;
+    private final Map<OsmPrimitive, Integer> positions = new IdentityHashMap<>();
+    private BuildingSnapshot snapshot;
+    private SpatialGridIndex index;
+    /** Grid cell setting of the profile the index was built for */
+    private double gridCellMetres;
+    /** Built on first use with the profile's fingerprint tolerance, null until then */
+    private GeometryFingerprint fingerprints;
+    private final Set<OsmPrimitive> dirty = new HashSet<>();
+    private boolean stale = true;
+    /** Incremented whenever the snapshot or index changes, so scores against older views can be discarded */
+    private long generation;
+
+    private OldBuildingCache(DataSet dataSet) {
+        this.dataSet = dataSet;
+    }
+
+    /**
+     * Returns the cache of the data set, creating it and subscribing it to the data set's events on first use.
+     */
+    static OldBuildingCache forDataSet(DataSet dataSet) {
+        return CACHES.computeIfAbsent(dataSet, ds -> {
+            OldBuildingCache cache = new OldBuildingCache(ds);
+            ds.addDataSetListener(cache);
+            return cache;
+        });
+    }
+
+    /**
+     * Drops the cache of a data set whose layer is gone.
+     */
+    static void evict(DataSet dataSet) {
+        OldBuildingCache cache = CACHES.remove(dataSet);
+        if (cache != null) {
+            dataSet.removeDataSetListener(cache);
+        }
+    }
+
+    /** Old buildings as seen by one merge */
+    static final class View {
+        /** Snapshot index -> way or relation, including ones that are no longer old buildings */
+        final List<OsmPrimitive> buildings;
+        final BuildingSnapshot snapshot;
+        /** Holds only the current old buildings with a usable ring */
+        final SpatialGridIndex index;
+        /** Fingerprints of the snapshot, null if the profile has fingerprinting off */
+        final GeometryFingerprint fingerprints;
+        /** Number of current old buildings */
+        final int count;
+        final long generation;
+
+        View(List<OsmPrimitive> buildings, BuildingSnapshot snapshot, SpatialGridIndex index,
+                GeometryFingerprint fingerprints, int count, long generation) {
+            this.buildings = buildings;
+            this.snapshot = snapshot;
+            this.index = index;
+            this.fingerprints = fingerprints;
+            this.count = count;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * Brings the cache up to date with the data set and returns it, indexed with the grid cell
+     * size of the profile. Call with the data set's read lock held; the view stays valid until
+     * the next call.
+     */
+    synchronized View refresh(MatchingProfile profile) {
+        List<OsmPrimitive> current = collect(dataSet);
+        // A profile with another cell size needs another index
+        stale |= profile.gridCellMetres != gridCellMetres;
+        for (int i = 0; i < current.size() && !stale; i++) {
+            stale = !positions.containsKey(current.get(i));
+        }
+
+        if (stale) {
+            generation++;
+            rebuild(current, profile);
+            DPWLog.debug(() -> "Old building cache rebuilt: " + buildings.size() + " buildings");
+        } else {
+            int updated = dirty.size();
+            if (updated > 0) {
+                generation++;
+            }
+            for (OsmPrimitive building : dirty) {
+                Integer position = positions.get(building);
+                if (position != null) {
+                    reextract(position, building);
+                }
+            }
+            DPWLog.debug(() -> "Old building cache: " + updated + " of " + buildings.size() + " buildings updated");
+        }
+        dirty.clear();
+        // Kept up to date with the snapshot like the index; only another tolerance rebuilds it
+        if (profile.fingerprintMetres > 0
+                && (fingerprints == null || fingerprints.tolerance() != profile.fingerprintMetres)) {
+            fingerprints = GeometryFingerprint.index(snapshot, profile.fingerprintMetres);
+        }
+        return new View(buildings, snapshot, index, profile.fingerprintMetres > 0 ? fingerprints : null,
+            current.size(), generation);
+    }
+
+    private void rebuild(List<OsmPrimitive> current, MatchingProfile profile) {
+        buildings = current;
+        positions.clear();
+        for (int i = 0; i < buildings.size(); i++) {
+            positions.put(buildings.get(i), i);
+        }
+        snapshot = BuildingSnapshot.of(buildings, BuildingSnapshot.referenceLatitude(buildings, Collections.<Way>emptyList()));
+        index = MergeEngine.buildIndex(snapshot, profile);
+        gridCellMetres = profile.gridCellMetres;
+        fingerprints = null;
+        stale = false;
+    }
+
+    private void reextract(int i, OsmPrimitive building) {
+        if (isOldBuilding(building)) {
+            snapshot.update(i, building);
+        } else {
+            snapshot.clear(i);
+        }
+        if (snapshot.isValid(i)) {
+            double[] boxes = snapshot.boxes;
+            index.update(i, boxes[i * 4], boxes[i * 4 + 1], boxes[i * 4 + 2], boxes[i * 4 + 3]);
+        } else {
+            index.remove(i);
+        }
+        if (fingerprints != null) {
+            fingerprints.update(i);
+        }
+    }
+
+    /**
+     * Old building ways followed by old building relations, in data set order.
+     */
+    static List<OsmPrimitive> collect(DataSet dataSet) {
+        List<OsmPrimitive> result = new ArrayList<>();
+        for (Way way : dataSet.getWays()) {
+            if (isOldBuilding(way)) {
+                result.add(way);
+            }
+        }
+        for (Relation relation : dataSet.getRelations()) {
+            if (isOldBuilding(relation)) {
+                result.add(relation);
+            }
+        }
+        return result;
+    }
+
+    static boolean isOldBuilding(Way way) {
+        return !way.isNew() && !way.isDeleted() && way.isClosed() && way.hasTag("building");
+    }
+
+    static boolean isOldBuilding(OsmPrimitive primitive) {
+        if (primitive instanceof Way) {
+            return isOldBuilding((Way) primitive);
+        }
+        return primitive instanceof Relation && !primitive.isNew() && !primitive.isDeleted()
+            && BuildingRings.isBuildingRelation((Relation) primitive);
+    }
+
+    /** Marks a cached building dirty, and for a way also the cached relations it is a member of */
+    private synchronized void markDirty(OsmPrimitive primitive) {
+        if (positions.containsKey(primitive)) {
+            dirty.add(primitive);
+        }
+        if (primitive instanceof Way) {
+            for (OsmPrimitive referrer : primitive.getReferrers()) {
+                if (referrer instanceof Relation && positions.containsKey(referrer)) {
+                    dirty.add(referrer);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void nodeMoved(NodeMovedEvent event) {
+        for (OsmPrimitive referrer : event.getNode().getReferrers()) {
+            markDirty(referrer);
+        }
+    }
+
+    @Override
+    public void wayNodesChanged(WayNodesChangedEvent event) {
+        markDirty(event.getChangedWay());
+    }
+
+    // Covers deleted and purged ways; undeleted ones come back through primitivesAdded
+    @Override
+    public void primitivesRemoved(PrimitivesRemovedEvent event) {
+        for (OsmPrimitive primitive : event.getPrimitives()) {
+            markDirty(primitive);
+        }
+    }
+
+    @Override
+    public void primitivesAdded(PrimitivesAddedEvent event) {
+        // Known ways are re-extracted; unknown old buildings are found by the scan in refresh
+        for (OsmPrimitive primitive : event.getPrimitives()) {
+            markDirty(primitive);
+        }
+    }
+
+    @Override
+    public void tagsChanged(TagsChangedEvent event) {
+        markDirty(event.getPrimitive());
+    }
+
+    @Override
+    public void dataChanged(DataChangedEvent event) {
+        if (event.getEvents() != null) {
+            for (AbstractDatasetChangedEvent e : event.getEvents()) {
+                e.fire(this);
+            }
+        } else {
+            // JOSM drops the event list for very large batches
+            synchronized (this) {
+                stale = true;
+            }
+        }
+    }
+
+    @Override
+    public void relationMembersChanged(RelationMembersChangedEvent event) {
+        markDirty(event.getRelation());
+    }
+
+    @Override
+    public void otherDatasetChange(AbstractDatasetChangedEvent event) {
+        // Flag and changeset changes do not affect geometry
+    }
+}
@@ -0,0 +1,272 @@
+package org.openstreetmap.josm.plugins.dpwmapper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Globally optimal matching of new buildings to old buildings.
+ *
+ * The scored candidates form a sparse bipartite graph (new buildings on one side,
+ * old buildings on the other, overlap as edge weight). Each connected component is
+ * solved on its own: small components exactly with the Hungarian algorithm, large
+ * ones greedily by descending overlap so dense clusters cannot blow up the run time.
+ */
+final class OptimalAssignment {
+
+    /**
+     * Largest component (new x old buildings) solved exactly. The Hungarian algorithm
+     * is cubic, so this keeps one component at a few tens of milliseconds.
+     */
+    static final int HUNGARIAN_MAX_CELLS = 300 * 300;
+
+    private OptimalAssignment() {
+        // Hide default constructor for utilities classes
+    }
+
+    /**
+     * Assigns at most one old building to every new building, maximising the total overlap.
+     *
+     * @param scores scored candidates per new building, as produced by the scoring phase
+     * @param oldCount number of old buildings the candidate ids refer to
+     * @return for each new building the assigned old building id, or -1
+     */
+    static int[] solve(MergeEngine.ScoredCandidates[] scores, int oldCount) {
+        return solve(scores, oldCount, MergeEngine.MergeProgress.NONE);
+    }
+
+    /**
+     * {@link #solve(MergeEngine.ScoredCandidates[], int)}, stopping between components if the
+     * progress reports cancellation.
+     */
+    static int[] solve(MergeEngine.ScoredCandidates[] scores, int oldCount, MergeEngine.MergeProgress progress) {
+        int newCount = scores.length;
+        int[] assignment = new int[newCount];
+        Arrays.fill(assignment, -1);
+
+        // Union-find over new buildings (0..newCount-1) and old buildings (newCount..)
+        int[] parent = new int[newCount + oldCount];
+        for (int i = 0; i < parent.length; i++) {
+            parent[i] = i;
+        }
+        for (int i = 0; i < newCount; i++) {
+            for (int oldId : scores[i].oldIds) {
+                union(parent, i, newCount + oldId);
+            }
+        }
+
+        // Group new buildings by component root, in ascending order
+        int[] componentOf = new int[parent.length];
+        Arrays.fill(componentOf, -1);
+        List<List<Integer>> components = new ArrayList<>();
+        for (int i = 0; i < newCount; i++) {
+            if (scores[i].oldIds.length == 0) {
+                continue;
+            }
+            int root = find(parent, i);
+            if (componentOf[root] < 0) {
+                componentOf[root] = components.size();
+                components.add(new ArrayList<>());
+            }
+            components.get(componentOf[root]).add(i);
+        }
+
+        // Scratch map from old building id to its position inside the current component
+        int[] oldLocal = new int[oldCount];
+        Arrays.fill(oldLocal, -1);
+        for (List<Integer> component : components) {
+            MergeEngine.checkCancelled(progress, "during assignment");
+            solveComponent(component, scores, oldLocal, assignment);
+        }
+        return assignment;
+    }
+
+    private static void solveComponent(List<Integer> newIds, MergeEngine.ScoredCandidates[] scores,
+            int[] oldLocal, int[] assignment) {
+        // Collect the old buildings of the component in ascending id order
+        List<Integer> oldIds = new ArrayList<>();
+        for (int newId : newIds) {
+            for (int oldId : scores[newId].oldIds) {
+                if (oldLocal[oldId] < 0) {
+                    oldLocal[oldId] = 0;
+                    oldIds.add(oldId);
+                }
+            }
+        }
+        oldIds.sort(null);
+        for (int k = 0; k < oldIds.size(); k++) {
+            oldLocal[oldIds.get(k)] = k;
+        }
+
+        int rows = newIds.size();
+        int cols = oldIds.size();
+        int[] local;
+        if (rows == 1 || cols == 1 || (long) rows * cols > HUNGARIAN_MAX_CELLS) {
+            local = greedyByScore(newIds, scores, oldLocal, cols);
+        } else {
+            local = hungarian(newIds, scores, oldLocal, cols);
+        }
+
+        for (int r = 0; r < rows; r++) {
+            if (local[r] >= 0) {
+                assignment[newIds.get(r)] = oldIds.get(local[r]);
+            }
+        }
+        for (int oldId : oldIds) {
+            oldLocal[oldId] = -1;
+        }
+    }
+
+    /**
+     * Takes edges in descending overlap order while both ends are free.
+     * Ties go to the lower new building id, then the lower old building id.
+     */
+    private static int[] greedyByScore(List<Integer> newIds, MergeEngine.ScoredCandidates[] scores,
+            int[] oldLocal, int cols) {
+        int edgeCount = 0;
+        for (int newId : newIds) {
+            edgeCount += scores[newId].oldIds.length;
+        }
+        // Sort edge indices by score; edges are encoded as row * cols + col
+        long[] edges = new long[edgeCount];
+        double[] weights = new double[edgeCount];
+        int e = 0;
+        for (int r = 0; r < newIds.size(); r++) {
+            MergeEngine.ScoredCandidates candidates = scores[newIds.get(r)];
+            for (int j = 0; j < candidates.oldIds.length; j++) {
+                edges[e] = (long) r * cols + oldLocal[candidates.oldIds[j]];
+                weights[e] = candidates.overlaps[j];
+                e++;
+            }
+        }
+        Integer[] order = new Integer[edgeCount];
+        for (int k = 0; k < edgeCount; k++) {
+            order[k] = k;
+        }
+        Arrays.sort(order, (a, b) -> {
+            int byWeight = Double.compare(weights[b], weights[a]);
+            return byWeight != 0 ? byWeight : Long.compare(edges[a], edges[b]);
+        });
+
+        int[] rowMatch = new int[newIds.size()];
+        Arrays.fill(rowMatch, -1);
+        boolean[] colTaken = new boolean[cols];
+        for (int k : order) {
+            int r = (int) (edges[k] / cols);
+            int c = (int) (edges[k] % cols);
+            if (rowMatch[r] < 0 && !colTaken[c]) {
+                rowMatch[r] = c;
+                colTaken[c] = true;
+            }
+        }
+        return rowMatch;
+    }
+
+    /**
+     * Maximum weight matching of a dense component with the Hungarian algorithm
+     * (potentials and augmenting paths, O(n^2 m)). Pairs without an edge cost nothing
+     * and are dropped from the result.
+     */
+    private static int[] hungarian(List<Integer> newIds, MergeEngine.ScoredCandidates[] scores,
+            int[] oldLocal, int cols) {
+        int rows = newIds.size();
+        boolean transposed = rows > cols;
+        int n = transposed ? cols : rows;
+        int m = transposed ? rows : cols;
+
+        // Cost is the negated overlap, so minimising cost maximises overlap
+        double[] cost = new double[n * m];
+        boolean[] edge = new boolean[n * m];
+        for (int r = 0; r < rows; r++) {
+            MergeEngine.ScoredCandidates candidates = scores[newIds.get(r)];
+            for (int j = 0; j < candidates.oldIds.length; j++) {
+                int c = oldLocal[candidates.oldIds[j]];
+                int cell = transposed ? c * m + r : r * m + c;
+                cost[cell] = -candidates.overlaps[j];
+                edge[cell] = true;
+            }
+        }
+
+        // 1-based arrays as in the textbook formulation; index 0 is the virtual start column
+        double[] u = new double[n + 1];
+        double[] v = new double[m + 1];
+        int[] p = new int[m + 1];
+        int[] way = new int[m + 1];
+        double[] minv = new double[m + 1];
+        boolean[] used = new boolean[m + 1];
+        for (int i = 1; i <= n; i++) {
+            p[0] = i;
+            int j0 = 0;
+            Arrays.fill(minv, Double.POSITIVE_INFINITY);
+            Arrays.fill(used, false);
+            do {
+                used[j0] = true;
+                int i0 = p[j0];
+                double delta = Double.POSITIVE_INFINITY;
+                int j1 = 0;
+                for (int j = 1; j <= m; j++) {
+                    if (!used[j]) {
+                        double cur = cost[(i0 - 1) * m + (j - 1)] - u[i0] - v[j];
+                        if (cur < minv[j]) {
+                            minv[j] = cur;
+                            way[j] = j0;
+                        }
+                        if (minv[j] < delta) {
+                            delta = minv[j];
+                            j1 = j;
+                        }
+                    }
+                }
+                for (int j = 0; j <= m; j++) {
+                    if (used[j]) {
+                        u[p[j]] += delta;
+                        v[j] -= delta;
+                    } else {
+                        minv[j] -= delta;
+                    }
+                }
+                j0 = j1;
+            } while (p[j0] != 0);
+            do {
+                int j1 = way[j0];
+                p[j0] = p[j1];
+                j0 = j1;
+            } while (j0 != 0);
+        }
+
+        int[] rowMatch = new int[rows];
+        Arrays.fill(rowMatch, -1);
+        for (int j = 1; j <= m; j++) {
+            if (p[j] == 0) {
+                continue;
+            }
+            int i = p[j] - 1;
+            int c = j - 1;
+            if (!edge[i * m + c]) {
+                continue;
+            }
+            if (transposed) {
+                rowMatch[c] = i;
+            } else {
+                rowMatch[i] = c;
+            }
+        }
+        return rowMatch;
+    }
+
+    private static int find(int[] parent, int x) {
+        while (parent[x] != x) {
+            parent[x] = parent[parent[x]];
+            x = parent[x];
+        }
+        return x;
+    }
+
+    private static void union(int[] parent, int a, int b) {
+        int rootA = find(parent, a);
+        int rootB = find(parent, b);
+        if (rootA != rootB) {
+            parent[Math.max(rootA, rootB)] = Math.min(rootA, rootB);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package org.openstreetmap.josm.plugins.dpwmapper;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Minimal streaming writer for osmChange ({@code .osc}) files.
+ *
+ * Unlike JOSM's writer it never holds the whole change in memory: callers open a
+ * create, modify or delete block, write primitives into it and close it, as often as they
+ * like. Versions of 0 (unknown or new) are left out.
+ */
+final class OsmChangeWriter implements AutoCloseable {
+
+    private final XMLStreamWriter xml;
+    private boolean inBlock;
+
+    OsmChangeWriter(OutputStream out) throws XMLStreamException {
+        xml = XMLOutputFactory.newInstance().createXMLStreamWriter(out, "UTF-8");
+        xml.writeStartDocument("UTF-8", "1.0");
+        xml.writeCharacters("\n");
+        xml.writeStartElement("osmChange");
+        xml.writeAttribute("version", "0.6");
+        xml.writeAttribute("generator", "DPWMapper");
+    }
+
+    /**
+     * Opens a block; {@code action} is {@code create}, {@code modify} or {@code delete}.
+     */
+    void begin(String action) throws XMLStreamException {
+        end();
+        xml.writeCharacters("\n  ");
+        xml.writeStartElement(action);
+        inBlock = true;
+    }
+
+    /** Closes the open block, if any. */
+    void end() throws XMLStreamException {
+        if (inBlock) {
+            xml.writeCharacters("\n  ");
+            xml.writeEndElement();
+            inBlock = false;
+        }
+    }
+
+    void node(long id, int version, double lat, double lon) throws XMLStreamException {
+        xml.writeCharacters("\n    ");
+        xml.writeEmptyElement("node");
+        writeIdentity(id, version);
+        xml.writeAttribute("lat", String.format(Locale.ROOT, "%.7f", lat));
+        xml.writeAttribute("lon", String.format(Locale.ROOT, "%.7f", lon));
+    }
+
+    /** Node in a delete block, which needs no coordinates. */
+    void deletedNode(long id, int version) throws XMLStreamException {
+        xml.writeCharacters("\n    ");
+        xml.writeEmptyElement("node");
+        writeIdentity(id, version);
+    }
+
+    void way(long id, int version, List<Long> nodeIds, Map<String, String> tags) throws XMLStreamException {
+        xml.writeCharacters("\n    ");
+        xml.writeStartElement("way");
+        writeIdentity(id, version);
+        for (Long nodeId : nodeIds) {
+            xml.writeCharacters("\n      ");
+            xml.writeEmptyElement("nd");
+            xml.writeAttribute("ref", Long.toString(nodeId));
+        }
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            xml.writeCharacters("\n      ");
+            xml.writeEmptyElement("tag");
+            xml.writeAttribute("k", tag.getKey());
+            xml.writeAttribute("v", tag.getValue());
+        }
+        xml.writeCharacters("\n    ");
+        xml.writeEndElement();
+    }
+
+    private void writeIdentity(long id, int version) throws XMLStreamException {
+        xml.writeAttribute("id", Long.toString(id));
+        if (version > 0) {
+            xml.writeAttribute("version", Integer.toString(version));
+        }
+    }
+
+    /**
+     * Closes the open block and the document. The underlying stream is left open.
+     */
+    @Override
+    public void close() throws XMLStreamException {
+        end();
+        xml.writeCharacters("\n");
+        xml.writeEndElement();
+        xml.writeCharacters("\n");
+        xml.writeEndDocument();
+        xml.close();
+    }
+}
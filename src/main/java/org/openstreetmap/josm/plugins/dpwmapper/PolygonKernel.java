@@ -0,0 +1,265 @@
+package org.openstreetmap.josm.plugins.dpwmapper;
+
+/**
+ * Exact polygon area and intersection on projected coordinate arrays.
+ *
+ * Rings are stored as interleaved {@code x0, y0, x1, y1, ...} starting at an offset,
+ * without repeating the first vertex at the end. Either orientation is accepted.
+ * Nothing here allocates once the caller's {@link Scratch} buffers have grown to size.
+ */
+final class PolygonKernel {
+
+    private PolygonKernel() {
+        // Hide default constructor for utilities classes
+    }
+
+    /**
+     * Reusable clipping buffers. Not thread-safe: use one instance per thread.
+     */
+    static final class Scratch {
+        // Clipping ping-pongs between these; the current polygon is always in "in"
+        private double[] in = new double[64];
+        private double[] out = new double[64];
+        private final double[] triangleA = new double[6];
+        private final double[] triangleB = new double[6];
+
+        private void ensureIn(int vertices) {
+            if (vertices * 2 > in.length) {
+                in = new double[vertices * 4];
+            }
+        }
+
+        private void ensureOut(int vertices) {
+            if (vertices * 2 > out.length) {
+                out = new double[vertices * 4];
+            }
+        }
+
+        private void swap() {
+            double[] tmp = in;
+            in = out;
+            out = tmp;
+        }
+    }
+
+    /**
+     * Signed area of a ring (shoelace formula), positive for counter-clockwise rings.
+     */
+    static double signedArea(double[] xy, int offset, int count) {
+        if (count < 3) {
+            return 0;
+        }
+        // Shift to the first vertex to keep the products small and precise
+        double x0 = xy[offset];
+        double y0 = xy[offset + 1];
+        double twice = 0;
+        for (int i = 1; i < count - 1; i++) {
+            int p = offset + i * 2;
+            twice += (xy[p] - x0) * (xy[p + 3] - y0) - (xy[p + 2] - x0) * (xy[p + 1] - y0);
+        }
+        return twice / 2;
+    }
+
+    /**
+     * Area centroid of a ring, written to {@code target[targetOffset]} (x) and the slot after it (y).
+     * Degenerate rings get the mean of their vertices.
+     */
+    static void centroid(double[] xy, int offset, int count, double[] target, int targetOffset) {
+        double x0 = count > 0 ? xy[offset] : 0;
+        double y0 = count > 0 ? xy[offset + 1] : 0;
+        double twice = 0, cx = 0, cy = 0, sumX = 0, sumY = 0;
+        for (int i = 0; i < count; i++) {
+            int p = offset + i * 2;
+            int q = offset + ((i + 1) % count) * 2;
+            double ax = xy[p] - x0, ay = xy[p + 1] - y0;
+            double bx = xy[q] - x0, by = xy[q + 1] - y0;
+            double cross = ax * by - bx * ay;
+            twice += cross;
+            cx += (ax + bx) * cross;
+            cy += (ay + by) * cross;
+            sumX += ax;
+            sumY += ay;
+        }
+        if (twice != 0) {
+            target[targetOffset] = x0 + cx / (3 * twice);
+            target[targetOffset + 1] = y0 + cy / (3 * twice);
+        } else {
+            target[targetOffset] = x0 + (count > 0 ? sumX / count : 0);
+            target[targetOffset + 1] = y0 + (count > 0 ? sumY / count : 0);
+        }
+    }
+
+    /**
+     * Returns true if the ring is convex (collinear vertices allowed).
+     */
+    static boolean isConvex(double[] xy, int offset, int count) {
+        if (count < 3) {
+            return false;
+        }
+        int sign = 0;
+        for (int i = 0; i < count; i++) {
+            int a = offset + i * 2;
+            int b = offset + ((i + 1) % count) * 2;
+            int c = offset + ((i + 2) % count) * 2;
+            double cross = (xy[b] - xy[a]) * (xy[c + 1] - xy[b + 1]) - (xy[b + 1] - xy[a + 1]) * (xy[c] - xy[b]);
+            if (cross != 0) {
+                int s = cross > 0 ? 1 : -1;
+                if (sign == 0) {
+                    sign = s;
+                } else if (s != sign) {
+                    return false;
+                }
+            }
+        }
+        return sign != 0;
+    }
+
+    /**
+     * Area of the intersection of two simple rings.
+     *
+     * If one of them is convex, the other is clipped against it directly (Sutherland–Hodgman),
+     * which is correct for any simple subject. Otherwise both rings are split into triangle
+     * fans and the signed pairwise triangle intersections are summed, which is exact for
+     * arbitrary simple polygons at O(n·m) small clips.
+     */
+    static double intersectionArea(double[] a, int aOffset, int aCount, boolean aConvex,
+            double[] b, int bOffset, int bCount, boolean bConvex, Scratch scratch) {
+        if (aCount < 3 || bCount < 3) {
+            return 0;
+        }
+        if (bConvex) {
+            return Math.abs(clipArea(a, aOffset, aCount, b, bOffset, bCount, scratch));
+        }
+        if (aConvex) {
+            return Math.abs(clipArea(b, bOffset, bCount, a, aOffset, aCount, scratch));
+        }
+        return Math.abs(fanIntersectionArea(a, aOffset, aCount, b, bOffset, bCount, scratch));
+    }
+
+    /**
+     * Intersection over union of two rings with known absolute areas.
+     */
+    static double intersectionOverUnion(double[] a, int aOffset, int aCount, double aArea, boolean aConvex,
+            double[] b, int bOffset, int bCount, double bArea, boolean bConvex, Scratch scratch) {
+        if (aArea <= 0 || bArea <= 0) {
+            return 0;
+        }
+        double intersection = intersectionArea(a, aOffset, aCount, aConvex, b, bOffset, bCount, bConvex, scratch);
+        double union = aArea + bArea - intersection;
+        return union <= 0 ? 0 : Math.min(1, intersection / union);
+    }
+
+    /**
+     * Clips the subject ring against a convex clip ring and returns the signed area of the result.
+     */
+    private static double clipArea(double[] subject, int sOffset, int sCount,
+            double[] clip, int cOffset, int cCount, Scratch scratch) {
+        scratch.ensureIn(sCount);
+        System.arraycopy(subject, sOffset, scratch.in, 0, sCount * 2);
+        int n = clipConvex(scratch, sCount, clip, cOffset, cCount);
+        return signedArea(scratch.in, 0, n);
+    }
+
+    /**
+     * Sutherland–Hodgman clipping of the polygon in {@code scratch.in} against every edge
+     * of a convex ring. The clipped polygon is left in {@code scratch.in}; returns its vertex count.
+     */
+    private static int clipConvex(Scratch scratch, int count, double[] clip, int cOffset, int cCount) {
+        double orientation = signedArea(clip, cOffset, cCount) >= 0 ? 1 : -1;
+        int n = count;
+        for (int e = 0; e < cCount && n > 0; e++) {
+            int p = cOffset + e * 2;
+            int q = cOffset + ((e + 1) % cCount) * 2;
+            double ex = clip[q] - clip[p];
+            double ey = clip[q + 1] - clip[p + 1];
+            double px = clip[p];
+            double py = clip[p + 1];
+
+            // Each input vertex yields at most one kept vertex and one crossing
+            scratch.ensureOut(n * 2);
+            double[] src = scratch.in;
+            double[] dst = scratch.out;
+            int m = 0;
+            double prevX = src[(n - 1) * 2];
+            double prevY = src[(n - 1) * 2 + 1];
+            double prevSide = orientation * (ex * (prevY - py) - ey * (prevX - px));
+            for (int i = 0; i < n; i++) {
+                double curX = src[i * 2];
+                double curY = src[i * 2 + 1];
+                double curSide = orientation * (ex * (curY - py) - ey * (curX - px));
+                if (curSide >= 0) {
+                    if (prevSide < 0) {
+                        double t = prevSide / (prevSide - curSide);
+                        dst[m * 2] = prevX + t * (curX - prevX);
+                        dst[m * 2 + 1] = prevY + t * (curY - prevY);
+                        m++;
+                    }
+                    dst[m * 2] = curX;
+                    dst[m * 2 + 1] = curY;
+                    m++;
+                } else if (prevSide >= 0) {
+                    double t = prevSide / (prevSide - curSide);
+                    dst[m * 2] = prevX + t * (curX - prevX);
+                    dst[m * 2 + 1] = prevY + t * (curY - prevY);
+                    m++;
+                }
+                prevX = curX;
+                prevY = curY;
+                prevSide = curSide;
+            }
+            scratch.swap();
+            n = m;
+        }
+        return n;
+    }
+
+    /**
+     * Sum over all triangle pairs of the two fans, each weighted by the product of
+     * the triangle orientations. The result is the intersection area, signed by the
+     * product of the ring orientations.
+     */
+    private static double fanIntersectionArea(double[] a, int aOffset, int aCount,
+            double[] b, int bOffset, int bCount, Scratch scratch) {
+        double[] ta = scratch.triangleA;
+        double[] tb = scratch.triangleB;
+        double total = 0;
+        for (int i = 1; i < aCount - 1; i++) {
+            double signA = triangle(a, aOffset, i, ta);
+            if (signA == 0) {
+                continue;
+            }
+            for (int j = 1; j < bCount - 1; j++) {
+                double signB = triangle(b, bOffset, j, tb);
+                if (signB == 0 || !boxesOverlap(ta, tb)) {
+                    continue;
+                }
+                System.arraycopy(ta, 0, scratch.in, 0, 6);
+                int n = clipConvex(scratch, 3, tb, 0, 3);
+                total += signA * signB * Math.abs(signedArea(scratch.in, 0, n));
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Writes the fan triangle (v0, vi, vi+1) into {@code target} and returns its orientation:
+     * 1 for counter-clockwise, -1 for clockwise, 0 if degenerate.
+     */
+    private static double triangle(double[] xy, int offset, int i, double[] target) {
+        target[0] = xy[offset];
+        target[1] = xy[offset + 1];
+        target[2] = xy[offset + i * 2];
+        target[3] = xy[offset + i * 2 + 1];
+        target[4] = xy[offset + i * 2 + 2];
+        target[5] = xy[offset + i * 2 + 3];
+        double area = signedArea(target, 0, 3);
+        return area > 0 ? 1 : area < 0 ? -1 : 0;
+    }
+
+    private static boolean boxesOverlap(double[] ta, double[] tb) {
+        return Math.max(ta[0], Math.max(ta[2], ta[4])) >= Math.min(tb[0], Math.min(tb[2], tb[4]))
+            && Math.max(tb[0], Math.max(tb[2], tb[4])) >= Math.min(ta[0], Math.min(ta[2], ta[4]))
+            && Math.max(ta[1], Math.max(ta[3], ta[5])) >= Math.min(tb[1], Math.min(tb[3], tb[5]))
+            && Math.max(tb[1], Math.max(tb[3], tb[5])) >= Math.min(ta[1], Math.min(ta[3], ta[5]));
+    }
+}
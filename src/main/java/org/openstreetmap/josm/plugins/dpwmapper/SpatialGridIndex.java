@@ -0,0 +1,184 @@
+package org.openstreetmap.josm.plugins.dpwmapper;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Uniform grid over bounding boxes, used to find the old buildings that can
+ * possibly overlap a new building without walking the whole dataset.
+ *
+ * Entries are plain int ids (the position of the building in the caller's list),
+ * so the index stays independent of how the buildings themselves are stored.
+ * An entry is registered in every cell its bounding box touches; queries check
+ * the exact boxes and return each matching id once, in ascending order.
+ */
+class SpatialGridIndex {
+
+    private final double cellSize;
+    private final Map<Long, int[]> cells = new HashMap<>();
+
+    // Bounding boxes by id: minX, minY, maxX, maxY
+    private double[] boxes = new double[64];
+    private int size = 0;
+
+    /**
+     * @param cellSize edge length of a grid cell, in the same units as the boxes
+     */
+    SpatialGridIndex(double cellSize) {
+        if (!(cellSize > 0)) {
+            throw new IllegalArgumentException("Grid cell size must be positive: " + cellSize);
+        }
+        this.cellSize = cellSize;
+    }
+
+    /**
+     * Picks a cell size of about twice the average box extent, which keeps most
+     * buildings in one to four cells and cells sparsely populated.
+     *
+     * @param boxes packed minX, minY, maxX, maxY per entry
+     * @param count number of entries in {@code boxes}
+     * @param fallback cell size to use when there is nothing to measure
+     */
+    static double suggestCellSize(double[] boxes, int count, double fallback) {
+        double sum = 0;
+        int measured = 0;
+        for (int i = 0; i < count; i++) {
+            double extent = Math.max(boxes[i * 4 + 2] - boxes[i * 4], boxes[i * 4 + 3] - boxes[i * 4 + 1]);
+            if (extent > 0) {
+                sum += extent;
+                measured++;
+            }
+        }
+        return measured == 0 ? fallback : 2 * sum / measured;
+    }
+
+    /**
+     * Registers a box under the given id. Ids must be inserted in ascending order.
+     */
+    void insert(int id, double minX, double minY, double maxX, double maxY) {
+        if (id < size) {
+            throw new IllegalArgumentException("Ids must be inserted in ascending order: " + id);
+        }
+        ensureCapacity(id + 1);
+        // Skipped ids stay out of every cell
+        Arrays.fill(boxes, size * 4, id * 4, Double.NaN);
+        size = id + 1;
+        addToCells(id, minX, minY, maxX, maxY);
+    }
+
+    /**
+     * Moves an inserted or removed id to a new box. Not safe while other threads query.
+     */
+    void update(int id, double minX, double minY, double maxX, double maxY) {
+        remove(id);
+        addToCells(id, minX, minY, maxX, maxY);
+    }
+
+    /**
+     * Takes an id out of the index; queries no longer return it. Not safe while other threads query.
+     */
+    void remove(int id) {
+        if (id >= size || Double.isNaN(boxes[id * 4])) {
+            return;
+        }
+        int minCellX = cell(boxes[id * 4]), maxCellX = cell(boxes[id * 4 + 2]);
+        int minCellY = cell(boxes[id * 4 + 1]), maxCellY = cell(boxes[id * 4 + 3]);
+        for (int cx = minCellX; cx <= maxCellX; cx++) {
+            for (int cy = minCellY; cy <= maxCellY; cy++) {
+                int[] bucket = cells.get(key(cx, cy));
+                for (int j = 1; bucket != null && j <= bucket[0]; j++) {
+                    if (bucket[j] == id) {
+                        // Order within a bucket does not matter, queries sort their result
+                        bucket[j] = bucket[bucket[0]--];
+                        break;
+                    }
+                }
+            }
+        }
+        boxes[id * 4] = Double.NaN;
+    }
+
+    private void addToCells(int id, double minX, double minY, double maxX, double maxY) {
+        boxes[id * 4] = minX;
+        boxes[id * 4 + 1] = minY;
+        boxes[id * 4 + 2] = maxX;
+        boxes[id * 4 + 3] = maxY;
+
+        int minCellX = cell(minX), maxCellX = cell(maxX);
+        int minCellY = cell(minY), maxCellY = cell(maxY);
+        for (int cx = minCellX; cx <= maxCellX; cx++) {
+            for (int cy = minCellY; cy <= maxCellY; cy++) {
+                Long key = key(cx, cy);
+                int[] bucket = cells.get(key);
+                if (bucket == null) {
+                    // bucket[0] holds the number of ids stored after it
+                    bucket = new int[5];
+                } else if (bucket[0] + 1 == bucket.length) {
+                    bucket = Arrays.copyOf(bucket, bucket.length * 2);
+                }
+                bucket[++bucket[0]] = id;
+                cells.put(key, bucket);
+            }
+        }
+    }
+
+    /**
+     * Returns the ids of all boxes intersecting the query box, ascending and without duplicates.
+     * Safe to call from several threads once all inserts are done.
+     */
+    int[] query(double minX, double minY, double maxX, double maxY) {
+        int[] result = new int[16];
+        int found = 0;
+
+        int minCellX = cell(minX), maxCellX = cell(maxX);
+        int minCellY = cell(minY), maxCellY = cell(maxY);
+        for (int cx = minCellX; cx <= maxCellX; cx++) {
+            for (int cy = minCellY; cy <= maxCellY; cy++) {
+                int[] bucket = cells.get(key(cx, cy));
+                if (bucket == null) {
+                    continue;
+                }
+                for (int j = 1; j <= bucket[0]; j++) {
+                    int id = bucket[j];
+                    if (boxes[id * 4] > maxX || boxes[id * 4 + 2] < minX
+                            || boxes[id * 4 + 1] > maxY || boxes[id * 4 + 3] < minY) {
+                        continue;
+                    }
+                    if (found == result.length) {
+                        result = Arrays.copyOf(result, found * 2);
+                    }
+                    result[found++] = id;
+                }
+            }
+        }
+
+        // A box spanning several cells is reported once per cell
+        Arrays.sort(result, 0, found);
+        int unique = 0;
+        for (int j = 0; j < found; j++) {
+            if (unique == 0 || result[unique - 1] != result[j]) {
+                result[unique++] = result[j];
+            }
+        }
+        return Arrays.copyOf(result, unique);
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void ensureCapacity(int entries) {
+        if (entries * 4 > boxes.length) {
+            boxes = Arrays.copyOf(boxes, Math.max(entries * 4, boxes.length * 2));
+        }
+    }
+
+    private int cell(double coordinate) {
+        return (int) Math.floor(coordinate / cellSize);
+    }
+
+    private static Long key(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xffffffffL);
+    }
+}
@@ -0,0 +1,339 @@
+package org.openstreetmap.josm.plugins.dpwmapper;
+
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.Way;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Merge &amp; Fix for files too large to load into JOSM, written as an osmChange file.
+ *
+ * The buildings are read into a disk-backed {@link BuildingStore} and sorted by square tile with an
+ * {@link ExternalSort}: a new building goes to the tile of its centroid, an old building to every
+ * tile it could be compared from, i.e. whose area grown by half the largest new building it touches.
+ * Each tile is merged on its own in a small data set holding its new buildings and every old
+ * building their boxes touch, including old buildings that straddle the tile edge, so tiling never
+ * changes which pairs are compared. An old building assigned by one tile, even one kept unchanged
+ * for a retrace, is not offered to the next.
+ *
+ * Memory is bounded by the sort chunks plus one tile. The only state kept across tiles are the ids
+ * of the old buildings already assigned and of the new nodes already written, which grow with the
+ * number of merged buildings but not with the size of the file.
+ */
+final class StreamingMerge {
+
+    static final double DEFAULT_TILE_METRES = 1000;
+
+    private final MergeEngine engine;
+    private final double tileMetres;
+    private final int chunkSize;
+
+    /** Totals over all tiles */
+    static final class Summary {
+        int tiles;
+        int newBuildings;
+        int merged;
+        int conflicts;
+        /** New primitives other than buildings, which are not carried into the change file */
+        int skippedPrimitives;
+    }
+
+    StreamingMerge(MergeEngine engine, double tileMetres) {
+        this(engine, tileMetres, ExternalSort.DEFAULT_CHUNK_SIZE);
+    }
+
+    StreamingMerge(MergeEngine engine, double tileMetres, int chunkSize) {
+        if (!(tileMetres > 0)) {
+            throw new IllegalArgumentException("Tile size must be positive: " + tileMetres);
+        }
+        this.engine = engine;
+        this.tileMetres = tileMetres;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Merges the new buildings of {@code input} and writes the result to {@code output}.
+     */
+    Summary run(File input, File output, MergeTrace trace) throws IOException, XMLStreamException {
+        File directory = Files.createTempDirectory("dpwmapper-osc").toFile();
+        try (BuildingStore store = BuildingStore.read(input, directory, chunkSize);
+             ExternalSort<TileEntry> tiles = new ExternalSort<>(directory, TileEntry.CODEC, TileEntry.ORDER, chunkSize)) {
+            Summary summary = new Summary();
+            summary.skippedPrimitives = store.otherNewPrimitives;
+
+            // New buildings may reach this far beyond the tile that holds their centroid
+            double margin = 0;
+            ExternalSort.Cursor<BuildingStore.Building> buildings = store.buildings();
+            for (BuildingStore.Building b = buildings.next(); b != null; b = buildings.next()) {
+                if (b.isNew()) {
+                    summary.newBuildings++;
+                    margin = Math.max(margin, Math.max(b.maxX - b.minX, b.maxY - b.minY) / 2);
+                }
+            }
+
+            buildings = store.buildings();
+            for (BuildingStore.Building b = buildings.next(); b != null; b = buildings.next()) {
+                if (b.isNew()) {
+                    tiles.add(new TileEntry(tile((b.minX + b.maxX) / 2), tile((b.minY + b.maxY) / 2), b));
+                } else {
+                    for (long x = tile(b.minX - margin); x <= tile(b.maxX + margin); x++) {
+                        for (long y = tile(b.minY - margin); y <= tile(b.maxY + margin); y++) {
+                            tiles.add(new TileEntry(x, y, b));
+                        }
+                    }
+                }
+            }
+
+            Set<Long> claimed = new HashSet<>();
+            Set<Long> created = new HashSet<>();
+            try (OutputStream out = Files.newOutputStream(output.toPath());
+                 OsmChangeWriter writer = new OsmChangeWriter(out)) {
+                ExternalSort.Cursor<TileEntry> entries = tiles.sorted();
+                List<BuildingStore.Building> oldBuildings = new ArrayList<>();
+                List<BuildingStore.Building> newBuildings = new ArrayList<>();
+                for (TileEntry first = entries.peek(); first != null; first = entries.peek()) {
+                    oldBuildings.clear();
+                    newBuildings.clear();
+                    while (entries.peek() != null && entries.peek().sameTile(first)) {
+                        BuildingStore.Building b = entries.next().building;
+                        if (b.isNew()) {
+                            newBuildings.add(b);
+                        } else if (!claimed.contains(b.id)) {
+                            oldBuildings.add(b);
+                        }
+                    }
+                    if (newBuildings.isEmpty()) {
+                        continue;
+                    }
+                    Tile tile = new Tile();
+                    tile.load(newBuildings, oldBuildings);
+                    MergePlan plan = engine.withPinnedNodes(tile::isPinned).plan(tile.dataSet, MergeEngine.MergeProgress.NONE, trace);
+                    if (!plan.isEmpty()) {
+                        plan.toCommand().executeCommand();
+                    }
+                    // Every old building the plan assigned is claimed, including one kept unchanged
+                    // for a retrace, so no later tile can merge another trace onto it
+                    for (MergePlan.Decision decision : plan.decisions) {
+                        if (decision.outcome == MergePlan.Outcome.MERGED) {
+                            claimed.add(decision.oldBuilding.getId());
+                        }
+                    }
+                    tile.write(writer, created);
+                    summary.tiles++;
+                    summary.merged += plan.mergedCount;
+                    summary.conflicts += plan.conflictCount;
+                }
+            }
+            return summary;
+        } finally {
+            if (!directory.delete()) {
+                DPWLog.warn("Could not delete " + directory);
+            }
+        }
+    }
+
+    private long tile(double coordinate) {
+        return (long) Math.floor(coordinate / tileMetres);
+    }
+
+    /**
+     * A building filed under one tile. Old buildings before new ones, each in file order.
+     */
+    private static final class TileEntry {
+        static final Comparator<TileEntry> ORDER = Comparator.<TileEntry>comparingLong(e -> e.tileX)
+            .thenComparingLong(e -> e.tileY)
+            .thenComparing(e -> e.building.isNew());
+
+        static final ExternalSort.Codec<TileEntry> CODEC = new ExternalSort.Codec<TileEntry>() {
+            @Override
+            public void write(DataOutput out, TileEntry entry) throws IOException {
+                out.writeLong(entry.tileX);
+                out.writeLong(entry.tileY);
+                BuildingStore.BUILDING_CODEC.write(out, entry.building);
+            }
+
+            @Override
+            public TileEntry read(DataInput in) throws IOException {
+                return new TileEntry(in.readLong(), in.readLong(), BuildingStore.BUILDING_CODEC.read(in));
+            }
+        };
+
+        final long tileX;
+        final long tileY;
+        final BuildingStore.Building building;
+
+        TileEntry(long tileX, long tileY, BuildingStore.Building building) {
+            this.tileX = tileX;
+            this.tileY = tileY;
+            this.building = building;
+        }
+
+        boolean sameTile(TileEntry other) {
+            return tileX == other.tileX && tileY == other.tileY;
+        }
+    }
+
+    /** A node as in the input file */
+    private static final class NodeInfo {
+        final long id;
+        final int version;
+        final boolean pinned;
+
+        NodeInfo(long id, int version, boolean pinned) {
+            this.id = id;
+            this.version = version;
+            this.pinned = pinned;
+        }
+    }
+
+    /**
+     * The data set of one tile and the mapping from its primitives back to the file.
+     */
+    private static final class Tile {
+
+        private final DataSet dataSet = new DataSet();
+        private final Map<Long, Node> nodes = new LinkedHashMap<>();
+        private final Map<Node, NodeInfo> nodeData = new IdentityHashMap<>();
+        private final Map<Way, BuildingStore.Building> wayData = new IdentityHashMap<>();
+        private final List<Way> ways = new ArrayList<>();
+
+        void load(List<BuildingStore.Building> newBuildings, List<BuildingStore.Building> oldBuildings) {
+            double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+            double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+            for (BuildingStore.Building b : newBuildings) {
+                minX = Math.min(minX, b.minX);
+                minY = Math.min(minY, b.minY);
+                maxX = Math.max(maxX, b.maxX);
+                maxY = Math.max(maxY, b.maxY);
+            }
+            for (BuildingStore.Building b : oldBuildings) {
+                if (b.minX <= maxX && b.maxX >= minX && b.minY <= maxY && b.maxY >= minY) {
+                    addWay(b);
+                }
+            }
+            for (BuildingStore.Building b : newBuildings) {
+                addWay(b);
+            }
+        }
+
+        boolean isPinned(Node node) {
+            NodeInfo info = nodeData.get(node);
+            return info != null && info.pinned;
+        }
+
+        private void addWay(BuildingStore.Building b) {
+            Way way = b.isNew() ? new Way() : new Way(b.id, Math.max(1, b.version));
+            List<Node> wayNodes = new ArrayList<>(b.nodeIds.length + 1);
+            for (int k = 0; k < b.nodeIds.length; k++) {
+                wayNodes.add(node(b, k));
+            }
+            wayNodes.add(wayNodes.get(0));
+            for (int t = 0; t < b.tags.length; t += 2) {
+                way.put(b.tags[t], b.tags[t + 1]);
+            }
+            way.setNodes(wayNodes);
+            dataSet.addPrimitive(way);
+            wayData.put(way, b);
+            ways.add(way);
+        }
+
+        private Node node(BuildingStore.Building b, int k) {
+            Node node = nodes.get(b.nodeIds[k]);
+            if (node == null) {
+                LatLon coor = new LatLon(b.lats[k], b.lons[k]);
+                if (b.nodeIds[k] < 0) {
+                    node = new Node(coor);
+                } else {
+                    // Version 0 would make JOSM treat the node as incomplete
+                    node = new Node(b.nodeIds[k], Math.max(1, b.nodeVersions[k]));
+                    node.setCoor(coor);
+                }
+                dataSet.addPrimitive(node);
+                nodes.put(b.nodeIds[k], node);
+                nodeData.put(node, new NodeInfo(b.nodeIds[k], b.nodeVersions[k], b.pinned[k]));
+            }
+            return node;
+        }
+
+        /**
+         * Writes the tile's changes and records new nodes as created, so they are not written
+         * again by a later tile.
+         */
+        void write(OsmChangeWriter writer, Set<Long> created) throws XMLStreamException {
+            List<Node> createNodes = new ArrayList<>();
+            List<Node> modifyNodes = new ArrayList<>();
+            List<Node> deleteNodes = new ArrayList<>();
+            for (Node node : nodes.values()) {
+                if (node.isNew()) {
+                    if (!node.isDeleted() && created.add(nodeData.get(node).id)) {
+                        createNodes.add(node);
+                    }
+                } else if (node.isDeleted()) {
+                    deleteNodes.add(node);
+                } else if (node.isModified()) {
+                    modifyNodes.add(node);
+                }
+            }
+            List<Way> createWays = new ArrayList<>();
+            List<Way> modifyWays = new ArrayList<>();
+            for (Way way : ways) {
+                if (way.isNew() && !way.isDeleted()) {
+                    createWays.add(way);
+                } else if (!way.isNew() && way.isModified()) {
+                    modifyWays.add(way);
+                }
+            }
+
+            if (!createNodes.isEmpty() || !createWays.isEmpty()) {
+                writer.begin("create");
+                for (Node node : createNodes) {
+                    writer.node(nodeData.get(node).id, 0, node.lat(), node.lon());
+                }
+                for (Way way : createWays) {
+                    writer.way(wayData.get(way).id, 0, nodeIds(way), way.getKeys());
+                }
+            }
+            if (!modifyNodes.isEmpty() || !modifyWays.isEmpty()) {
+                writer.begin("modify");
+                for (Node node : modifyNodes) {
+                    writer.node(node.getId(), nodeData.get(node).version, node.lat(), node.lon());
+                }
+                for (Way way : modifyWays) {
+                    writer.way(way.getId(), wayData.get(way).version, nodeIds(way), way.getKeys());
+                }
+            }
+            if (!deleteNodes.isEmpty()) {
+                writer.begin("delete");
+                for (Node node : deleteNodes) {
+                    writer.deletedNode(node.getId(), nodeData.get(node).version);
+                }
+            }
+            writer.end();
+        }
+
+        /** Node ids as in the input file, so new nodes keep their negative placeholder ids. */
+        private List<Long> nodeIds(Way way) {
+            List<Long> ids = new ArrayList<>(way.getNodesCount());
+            for (Node node : way.getNodes()) {
+                ids.add(nodeData.get(node).id);
+            }
+            return ids;
+        }
+    }
+}
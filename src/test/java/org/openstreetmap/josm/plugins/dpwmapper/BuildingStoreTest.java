@@ -0,0 +1,95 @@
+package org.openstreetmap.josm.plugins.dpwmapper;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Unit tests of {@link BuildingStore}.
+ */
+class BuildingStoreTest {
+
+    @TempDir
+    File directory;
+
+    /**
+     * Old building 10 and new building -1 share node 4; node 3 is tagged; node 2 is also used by
+     * a fence and node 1 by a relation. Way 11 lacks a node, way 12 is not closed.
+     */
+    private static final String OSM = String.join("\n",
+        "<?xml version='1.0' encoding='UTF-8'?>",
+        "<osm version='0.6'>",
+        // Ways before some of their nodes, as the file order must not matter
+        "  <way id='10' version='3'><nd ref='1'/><nd ref='2'/><nd ref='3'/><nd ref='4'/><nd ref='1'/>",
+        "    <tag k='building' v='house'/></way>",
+        "  <node id='1' version='1' lat='1.0' lon='36.0'/>",
+        "  <node id='2' version='1' lat='1.0' lon='36.001'/>",
+        "  <node id='3' version='2' lat='1.001' lon='36.001'><tag k='entrance' v='yes'/></node>",
+        "  <node id='4' version='1' lat='1.001' lon='36.0'/>",
+        "  <node id='5' version='1' lat='1.002' lon='36.0'/>",
+        "  <node id='-1' lat='1.002' lon='36.001'/>",
+        "  <node id='-2' lat='1.003' lon='36.001'/>",
+        "  <node id='-3' lat='1.003' lon='36.0'/>",
+        "  <node id='-9' lat='1.0' lon='36.0'/>",
+        "  <way id='-1'><nd ref='4'/><nd ref='-1'/><nd ref='-2'/><nd ref='-3'/><nd ref='4'/>",
+        "    <tag k='building' v='yes'/></way>",
+        "  <way id='11'><nd ref='1'/><nd ref='99'/><nd ref='5'/><nd ref='1'/><tag k='building' v='yes'/></way>",
+        "  <way id='12'><nd ref='1'/><nd ref='2'/><nd ref='5'/><tag k='building' v='yes'/></way>",
+        "  <way id='-5'><nd ref='2'/><nd ref='5'/><tag k='barrier' v='fence'/></way>",
+        "  <relation id='20'><member type='node' ref='1' role=''/></relation>",
+        "</osm>");
+
+    @Test
+    void joinsNodesAndPinsSharedOnes() throws IOException, XMLStreamException {
+        // A chunk size of 2 spills every sort to several files
+        for (int chunkSize : new int[] {2, ExternalSort.DEFAULT_CHUNK_SIZE}) {
+            File input = new File(directory, "input.osm");
+            Files.write(input.toPath(), OSM.getBytes(StandardCharsets.UTF_8));
+            File work = new File(directory, "work" + chunkSize);
+            assertTrue(work.mkdir());
+
+            List<BuildingStore.Building> buildings = new ArrayList<>();
+            try (BuildingStore store = BuildingStore.read(input, work, chunkSize)) {
+                ExternalSort.Cursor<BuildingStore.Building> cursor = store.buildings();
+                for (BuildingStore.Building b = cursor.next(); b != null; b = cursor.next()) {
+                    buildings.add(b);
+                }
+                assertNull(cursor.next());
+                // Nodes -9 and the fence
+                assertEquals(2, store.otherNewPrimitives);
+            }
+            assertEquals(0, work.list().length, "temporary files must be deleted");
+
+            assertEquals(2, buildings.size());
+            BuildingStore.Building old = buildings.get(0);
+            assertEquals(10, old.id);
+            assertEquals(3, old.version);
+            assertArrayEquals(new String[] {"building", "house"}, old.tags);
+            assertArrayEquals(new long[] {1, 2, 3, 4}, old.nodeIds);
+            assertArrayEquals(new int[] {1, 1, 2, 1}, old.nodeVersions);
+            assertEquals(1.001, old.lats[2], 0);
+            assertEquals(36.001, old.lons[2], 0);
+            // Relation member, fence node, tagged node, shared with the new building
+            assertArrayEquals(new boolean[] {true, true, true, true}, old.pinned);
+            assertTrue(old.maxX - old.minX > 100 && old.maxX - old.minX < 120, "about 111 m wide");
+
+            BuildingStore.Building traced = buildings.get(1);
+            assertTrue(traced.isNew());
+            assertArrayEquals(new long[] {4, -1, -2, -3}, traced.nodeIds);
+            assertArrayEquals(new boolean[] {true, false, false, false}, traced.pinned);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package org.openstreetmap.josm.plugins.dpwmapper;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Unit tests of {@link ExternalSort}.
+ */
+class ExternalSortTest {
+
+    /** Sorted by key only, so the sequence number shows whether equal keys kept their order */
+    private static final ExternalSort.Codec<long[]> PAIRS = new ExternalSort.Codec<long[]>() {
+        @Override
+        public void write(DataOutput out, long[] record) throws IOException {
+            out.writeLong(record[0]);
+            out.writeLong(record[1]);
+        }
+
+        @Override
+        public long[] read(DataInput in) throws IOException {
+            return new long[] {in.readLong(), in.readLong()};
+        }
+    };
+
+    private static final Comparator<long[]> BY_KEY = (a, b) -> Long.compare(a[0], b[0]);
+
+    @TempDir
+    File directory;
+
+    @Test
+    void sortsInMemoryWhenOneChunkIsEnough() throws IOException {
+        assertSortedAndStable(10, 100);
+        assertEquals(0, directory.list().length);
+    }
+
+    @Test
+    void mergesSpilledChunksStably() throws IOException {
+        assertSortedAndStable(1000, 7);
+        assertEquals(0, directory.list().length, "chunk files must be deleted on close");
+    }
+
+    @Test
+    void spillsExactlyFullChunks() throws IOException {
+        assertSortedAndStable(64, 8);
+    }
+
+    @Test
+    void returnsNothingWhenEmpty() throws IOException {
+        try (ExternalSort<long[]> sort = new ExternalSort<>(directory, PAIRS, BY_KEY, 4)) {
+            ExternalSort.Cursor<long[]> cursor = sort.sorted();
+            assertNull(cursor.peek());
+            assertNull(cursor.next());
+        }
+    }
+
+    private void assertSortedAndStable(int count, int chunkSize) throws IOException {
+        Random random = new Random(7);
+        try (ExternalSort<long[]> sort = new ExternalSort<>(directory, PAIRS, BY_KEY, chunkSize)) {
+            for (int i = 0; i < count; i++) {
+                sort.add(new long[] {random.nextInt(20), i});
+            }
+            assertEquals(count, sort.size());
+
+            ExternalSort.Cursor<long[]> cursor = sort.sorted();
+            long[] previous = null;
+            int read = 0;
+            for (long[] record = cursor.next(); record != null; record = cursor.next()) {
+                if (previous != null) {
+                    boolean ordered = previous[0] < record[0] || previous[0] == record[0] && previous[1] < record[1];
+                    assertTrue(ordered, "out of order after " + previous[0] + "/" + previous[1]);
+                }
+                previous = record;
+                read++;
+            }
+            assertEquals(count, read);
+        }
+    }
+
+    @Test
+    void peekDoesNotConsume() throws IOException {
+        try (ExternalSort<long[]> sort = new ExternalSort<>(directory, PAIRS, BY_KEY, 2)) {
+            sort.add(new long[] {3, 0});
+            sort.add(new long[] {1, 1});
+            sort.add(new long[] {2, 2});
+            ExternalSort.Cursor<long[]> cursor = sort.sorted();
+            assertArrayEquals(new long[] {1, 1}, cursor.peek());
+            assertArrayEquals(new long[] {1, 1}, cursor.next());
+            assertArrayEquals(new long[] {2, 2}, cursor.next());
+            assertArrayEquals(new long[] {3, 0}, cursor.peek());
+            assertArrayEquals(new long[] {3, 0}, cursor.next());
+            assertNull(cursor.next());
+        }
+    }
+}
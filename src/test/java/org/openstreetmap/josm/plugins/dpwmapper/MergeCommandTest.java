@@ -0,0 +1,167 @@
+package org.openstreetmap.josm.plugins.dpwmapper;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.data.projection.ProjectionRegistry;
+import org.openstreetmap.josm.data.projection.Projections;
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.spi.preferences.MemoryPreferences;
+
+/**
+ * Unit tests of {@link MergeCommand}.
+ */
+class MergeCommandTest {
+
+    private DataSet dataSet;
+    private Node[] oldNodes;
+    private Node[] newNodes;
+    private Way oldWay;
+    private Way newWay;
+    private MergeCommand command;
+
+    private List<OsmPrimitive> primitives;
+    private List<LatLon> coordinatesBefore;
+    private List<Boolean> modifiedBefore;
+    private List<Node> oldWayNodesBefore;
+    private List<Node> newWayNodesBefore;
+
+    @BeforeAll
+    static void setUpJosm() {
+        Config.setPreferencesInstance(new MemoryPreferences());
+        ProjectionRegistry.setProjection(Projections.getProjectionByCode("EPSG:3857"));
+    }
+
+    /**
+     * An old square building (way 10, nodes 1 to 4, node 2 already modified) and a traced square
+     * next to it. The merge moves nodes 1 to 3 onto the traced corners, drops node 4 from the
+     * old way and deletes it, and deletes the traced way with its nodes.
+     */
+    @BeforeEach
+    void setUp() {
+        dataSet = new DataSet();
+        oldNodes = new Node[4];
+        newNodes = new Node[4];
+        double[][] corners = {{0, 0}, {0, 0.001}, {0.001, 0.001}, {0.001, 0}};
+        for (int k = 0; k < 4; k++) {
+            oldNodes[k] = new Node(k + 1, 1);
+            oldNodes[k].setCoor(new LatLon(1 + corners[k][0], 36 + corners[k][1]));
+            newNodes[k] = new Node(new LatLon(1.00001 + corners[k][0], 36.00001 + corners[k][1]));
+            dataSet.addPrimitive(oldNodes[k]);
+            dataSet.addPrimitive(newNodes[k]);
+        }
+        oldWay = new Way(10, 1);
+        oldWay.setNodes(Arrays.asList(oldNodes[0], oldNodes[1], oldNodes[2], oldNodes[3], oldNodes[0]));
+        oldWay.put("building", "house");
+        dataSet.addPrimitive(oldWay);
+        newWay = new Way();
+        newWay.setNodes(Arrays.asList(newNodes[0], newNodes[1], newNodes[2], newNodes[3], newNodes[0]));
+        newWay.put("building", "yes");
+        dataSet.addPrimitive(newWay);
+        oldNodes[1].setModified(true);
+
+        MergeCommand.Edits edits = new MergeCommand.Edits();
+        for (int k = 0; k < 3; k++) {
+            edits.move(oldNodes[k], newNodes[k].getCoor());
+        }
+        edits.changeNodes(oldWay, Arrays.asList(oldNodes[0], oldNodes[1], oldNodes[2], oldNodes[0]));
+        // Nodes before the way that uses them, the command must order the deletes itself
+        for (Node node : newNodes) {
+            edits.delete(node);
+        }
+        edits.delete(oldNodes[3]);
+        edits.delete(newWay);
+        command = new MergeCommand(dataSet, "DPW Auto-Merge", Collections.singletonList(edits));
+
+        primitives = new ArrayList<>(dataSet.allPrimitives());
+        coordinatesBefore = new ArrayList<>();
+        modifiedBefore = new ArrayList<>();
+        for (OsmPrimitive primitive : primitives) {
+            coordinatesBefore.add(primitive instanceof Node ? ((Node) primitive).getCoor() : null);
+            modifiedBefore.add(primitive.isModified());
+        }
+        oldWayNodesBefore = oldWay.getNodes();
+        newWayNodesBefore = newWay.getNodes();
+    }
+
+    @Test
+    void executeAppliesAllEdits() {
+        assertTrue(command.executeCommand());
+
+        for (int k = 0; k < 3; k++) {
+            assertEquals(newNodes[k].getCoor(), oldNodes[k].getCoor());
+            assertTrue(oldNodes[k].isModified());
+        }
+        assertEquals(Arrays.asList(oldNodes[0], oldNodes[1], oldNodes[2], oldNodes[0]), oldWay.getNodes());
+        assertTrue(oldWay.isModified());
+        assertTrue(oldNodes[3].isDeleted());
+        assertTrue(newWay.isDeleted());
+        for (Node node : newNodes) {
+            assertTrue(node.isDeleted());
+        }
+        assertEquals("DPW Auto-Merge (1 buildings)", command.getDescriptionText());
+    }
+
+    @Test
+    void undoRestoresEverything() {
+        command.executeCommand();
+        command.undoCommand();
+        assertUnchanged();
+    }
+
+    @Test
+    void redoAfterUndoGivesTheSameResult() {
+        command.executeCommand();
+        command.undoCommand();
+        command.executeCommand();
+        assertEquals(newNodes[0].getCoor(), oldNodes[0].getCoor());
+        assertEquals(4, oldWay.getNodesCount());
+        assertTrue(newWay.isDeleted());
+        command.undoCommand();
+        assertUnchanged();
+    }
+
+    @Test
+    void reportsModifiedDeletedAndParticipatingPrimitives() {
+        List<OsmPrimitive> modified = new ArrayList<>();
+        List<OsmPrimitive> deleted = new ArrayList<>();
+        List<OsmPrimitive> added = new ArrayList<>();
+        command.fillModifiedData(modified, deleted, added);
+
+        assertEquals(new HashSet<>(Arrays.asList(oldNodes[0], oldNodes[1], oldNodes[2], oldWay)), new HashSet<>(modified));
+        assertEquals(new HashSet<>(Arrays.asList(newNodes[0], newNodes[1], newNodes[2], newNodes[3], oldNodes[3], newWay)),
+            new HashSet<>(deleted));
+        assertTrue(added.isEmpty());
+        // Every primitive once: 8 nodes and 2 ways
+        assertEquals(10, command.getParticipatingPrimitives().size());
+        assertEquals(10, command.size());
+    }
+
+    private void assertUnchanged() {
+        for (int p = 0; p < primitives.size(); p++) {
+            OsmPrimitive primitive = primitives.get(p);
+            assertFalse(primitive.isDeleted(), primitive + " still deleted");
+            assertEquals(modifiedBefore.get(p), primitive.isModified(), "modified flag of " + primitive);
+            if (primitive instanceof Node) {
+                assertEquals(coordinatesBefore.get(p), ((Node) primitive).getCoor(), "coordinates of " + primitive);
+            }
+        }
+        assertEquals(oldWayNodesBefore, oldWay.getNodes());
+        assertEquals(newWayNodesBefore, newWay.getNodes());
+    }
+}
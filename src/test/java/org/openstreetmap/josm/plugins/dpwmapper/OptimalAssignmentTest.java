@@ -0,0 +1,140 @@
+package org.openstreetmap.josm.plugins.dpwmapper;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests of {@link OptimalAssignment}.
+ */
+class OptimalAssignmentTest {
+
+    /** Candidates of one new building from alternating old id, overlap pairs, old ids ascending */
+    private static MergeEngine.ScoredCandidates candidates(double... pairs) {
+        int[] oldIds = new int[pairs.length / 2];
+        double[] overlaps = new double[pairs.length / 2];
+        for (int k = 0; k < oldIds.length; k++) {
+            oldIds[k] = (int) pairs[k * 2];
+            overlaps[k] = pairs[k * 2 + 1];
+        }
+        return new MergeEngine.ScoredCandidates(oldIds.length, oldIds, overlaps);
+    }
+
+    @Test
+    void givesUpBestPairForHigherTotal() {
+        // Greedy would pair 0-0 (0.90) and leave new building 1 unmatched
+        MergeEngine.ScoredCandidates[] scores = {
+            candidates(0, 0.90, 1, 0.80),
+            candidates(0, 0.85),
+        };
+        assertArrayEquals(new int[] {1, 0}, OptimalAssignment.solve(scores, 2));
+    }
+
+    @Test
+    void solvesMoreNewThanOldBuildings() {
+        // Three new buildings compete for two old ones, so the matrix is solved transposed
+        MergeEngine.ScoredCandidates[] scores = {
+            candidates(0, 0.60),
+            candidates(0, 0.70, 1, 0.95),
+            candidates(1, 0.90),
+        };
+        assertArrayEquals(new int[] {-1, 0, 1}, OptimalAssignment.solve(scores, 2));
+    }
+
+    @Test
+    void solvesMoreOldThanNewBuildings() {
+        MergeEngine.ScoredCandidates[] scores = {
+            candidates(0, 0.90, 1, 0.85, 2, 0.50),
+            candidates(0, 0.88),
+        };
+        assertArrayEquals(new int[] {1, 0}, OptimalAssignment.solve(scores, 3));
+    }
+
+    @Test
+    void keepsComponentsAndUnmatchedBuildingsApart() {
+        MergeEngine.ScoredCandidates[] scores = {
+            candidates(2, 0.70),
+            candidates(),
+            candidates(0, 0.60, 1, 0.65),
+            candidates(3, 0.55),
+        };
+        assertArrayEquals(new int[] {2, -1, 1, 3}, OptimalAssignment.solve(scores, 4));
+    }
+
+    @Test
+    void singleNewBuildingTakesBestCandidate() {
+        MergeEngine.ScoredCandidates[] scores = {
+            candidates(0, 0.55, 1, 0.75, 2, 0.60),
+        };
+        assertArrayEquals(new int[] {1}, OptimalAssignment.solve(scores, 3));
+    }
+
+    @Test
+    void matchesBruteForceOnRandomClusters() {
+        Random random = new Random(42);
+        for (int round = 0; round < 500; round++) {
+            int newCount = 1 + random.nextInt(5);
+            int oldCount = 1 + random.nextInt(5);
+            MergeEngine.ScoredCandidates[] scores = new MergeEngine.ScoredCandidates[newCount];
+            for (int i = 0; i < newCount; i++) {
+                List<Double> pairs = new ArrayList<>();
+                for (int j = 0; j < oldCount; j++) {
+                    if (random.nextDouble() < 0.6) {
+                        pairs.add((double) j);
+                        pairs.add(0.5 + random.nextDouble() / 2);
+                    }
+                }
+                double[] flat = new double[pairs.size()];
+                for (int k = 0; k < flat.length; k++) {
+                    flat[k] = pairs.get(k);
+                }
+                scores[i] = candidates(flat);
+            }
+
+            int[] assignment = OptimalAssignment.solve(scores, oldCount);
+            boolean[] taken = new boolean[oldCount];
+            for (int i = 0; i < newCount; i++) {
+                if (assignment[i] >= 0) {
+                    assertTrue(scores[i].overlapOf(assignment[i]) > 0, "assigned pair must be a candidate");
+                    assertTrue(!taken[assignment[i]], "old building assigned twice");
+                    taken[assignment[i]] = true;
+                }
+            }
+            assertEquals(bestTotal(scores, 0, new boolean[oldCount]), total(scores, assignment), 1e-9,
+                "round " + round);
+        }
+    }
+
+    private static double total(MergeEngine.ScoredCandidates[] scores, int[] assignment) {
+        double sum = 0;
+        for (int i = 0; i < assignment.length; i++) {
+            if (assignment[i] >= 0) {
+                sum += scores[i].overlapOf(assignment[i]);
+            }
+        }
+        return sum;
+    }
+
+    /** Highest total overlap of new buildings from {@code i} on, trying every free candidate or none */
+    private static double bestTotal(MergeEngine.ScoredCandidates[] scores, int i, boolean[] taken) {
+        if (i == scores.length) {
+            return 0;
+        }
+        double best = bestTotal(scores, i + 1, taken);
+        for (int j = 0; j < scores[i].oldIds.length; j++) {
+            int oldId = scores[i].oldIds[j];
+            if (!taken[oldId]) {
+                taken[oldId] = true;
+                best = Math.max(best, scores[i].overlaps[j] + bestTotal(scores, i + 1, taken));
+                taken[oldId] = false;
+            }
+        }
+        return best;
+    }
+}
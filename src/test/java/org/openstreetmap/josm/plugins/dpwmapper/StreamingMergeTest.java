@@ -0,0 +1,83 @@
+package org.openstreetmap.josm.plugins.dpwmapper;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.openstreetmap.josm.data.projection.ProjectionRegistry;
+import org.openstreetmap.josm.data.projection.Projections;
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.spi.preferences.MemoryPreferences;
+
+/**
+ * Unit tests of {@link StreamingMerge}.
+ */
+class StreamingMergeTest {
+
+    /**
+     * Old building 10, about 22 m square; way -1 retraces it exactly and way -2 is the same square
+     * about 6.7 m further east, overlapping it by more than half. With 6 m tiles the two traces
+     * have their centroids in neighbouring tiles, the retrace in the one read first.
+     */
+    private static final String OSM = String.join("\n",
+        "<?xml version='1.0' encoding='UTF-8'?>",
+        "<osm version='0.6'>",
+        "  <node id='1' version='1' lat='1.0' lon='36.0'/>",
+        "  <node id='2' version='1' lat='1.0' lon='36.0002'/>",
+        "  <node id='3' version='1' lat='1.0002' lon='36.0002'/>",
+        "  <node id='4' version='1' lat='1.0002' lon='36.0'/>",
+        "  <way id='10' version='1'><nd ref='1'/><nd ref='2'/><nd ref='3'/><nd ref='4'/><nd ref='1'/>",
+        "    <tag k='building' v='house'/></way>",
+        "  <node id='-1' lat='1.0' lon='36.0'/>",
+        "  <node id='-2' lat='1.0' lon='36.0002'/>",
+        "  <node id='-3' lat='1.0002' lon='36.0002'/>",
+        "  <node id='-4' lat='1.0002' lon='36.0'/>",
+        "  <way id='-1'><nd ref='-1'/><nd ref='-2'/><nd ref='-3'/><nd ref='-4'/><nd ref='-1'/>",
+        "    <tag k='building' v='yes'/></way>",
+        "  <node id='-5' lat='1.0' lon='36.00006'/>",
+        "  <node id='-6' lat='1.0' lon='36.00026'/>",
+        "  <node id='-7' lat='1.0002' lon='36.00026'/>",
+        "  <node id='-8' lat='1.0002' lon='36.00006'/>",
+        "  <way id='-2'><nd ref='-5'/><nd ref='-6'/><nd ref='-7'/><nd ref='-8'/><nd ref='-5'/>",
+        "    <tag k='building' v='yes'/></way>",
+        "</osm>");
+
+    @TempDir
+    File directory;
+
+    @BeforeAll
+    static void setUpJosm() {
+        Config.setPreferencesInstance(new MemoryPreferences());
+        ProjectionRegistry.setProjection(Projections.getProjectionByCode("EPSG:3857"));
+    }
+
+    @Test
+    void oldBuildingKeptForRetraceIsNotOfferedToLaterTile() throws IOException, XMLStreamException {
+        File input = new File(directory, "input.osm");
+        Files.write(input.toPath(), OSM.getBytes(StandardCharsets.UTF_8));
+        File output = new File(directory, "output.osc");
+
+        MergeEngine engine = new MergeEngine(MergeEngine.AssignmentMode.GREEDY, GeometryTransfer.Mode.REPLACE_NODES)
+            .withKeepUnchanged(true);
+        StreamingMerge.Summary summary = new StreamingMerge(engine, 6).run(input, output, MergeTrace.NONE);
+
+        assertEquals(2, summary.tiles);
+        assertEquals(1, summary.merged);
+        String change = new String(Files.readAllBytes(output.toPath()), StandardCharsets.UTF_8);
+        // The retrace is dropped and the old building left as it is
+        assertFalse(change.contains("<way id=\"-1\""), change);
+        assertFalse(change.contains("<way id=\"10\""), change);
+        // The second trace finds the old building taken and is uploaded as a new building
+        assertTrue(change.contains("<way id=\"-2\""), change);
+    }
+}